@@ -19,12 +19,24 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Properties;
 import java.util.stream.Collectors;
 
 import cz.etnetera.reesmo.writer.model.result.ResultLink;
 import cz.etnetera.reesmo.writer.model.result.TestSeverity;
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+import cz.etnetera.reesmo.writer.storage.AdmissionController;
+import cz.etnetera.reesmo.writer.storage.BufferedStorage;
+import cz.etnetera.reesmo.writer.storage.ChunkedUpload;
+import cz.etnetera.reesmo.writer.storage.CompositeStorage;
 import cz.etnetera.reesmo.writer.storage.DummyStorage;
+import cz.etnetera.reesmo.writer.storage.EndpointBalancer;
 import cz.etnetera.reesmo.writer.storage.FileSystemStorage;
+import cz.etnetera.reesmo.writer.storage.FileSystemStorage.Durability;
+import cz.etnetera.reesmo.writer.storage.FileSystemStorage.ShardLevel;
+import cz.etnetera.reesmo.writer.storage.GroupCommit;
+import cz.etnetera.reesmo.writer.storage.ImageAttachmentTransformer;
+import cz.etnetera.reesmo.writer.storage.PriorityStorage;
 import cz.etnetera.reesmo.writer.storage.RestApiStorage;
 
 public enum Property {
@@ -49,7 +61,49 @@ public enum Property {
 	SEVERITY("severity", null),
 	LABELS("labels", new ArrayList<String>()),
 	NOTES("notes", new ArrayList<String>()),
-	LINKS("links", new ArrayList<ResultLink>());
+	LINKS("links", new ArrayList<ResultLink>()),
+	BUFFER("buffer", Bool.FALSE),
+	BUFFER_BUDGET("bufferbudget", BufferedStorage.DEFAULT_BUDGET),
+	BUFFER_SPILL_FILE("bufferspillfile", null),
+	BUFFER_MAX_ATTEMPTS("buffermaxattempts", BufferedStorage.DEFAULT_MAX_ATTEMPTS),
+	IMAGE_MAX_DIMENSION("imagemaxdimension", null),
+	IMAGE_FORMAT("imageformat", null),
+	IMAGE_QUALITY("imagequality", ImageAttachmentTransformer.DEFAULT_QUALITY),
+	IMAGE_KEEP_ORIGINAL("imagekeeporiginal", Bool.FALSE),
+	LAZY_ATTACHMENTS("lazyattachments", Arrays.asList(TestStatus.FAILED, TestStatus.BROKEN)),
+	PASSED_SAMPLE_RATE("passedsamplerate", 1.0),
+	ROLLUP("rollup", Bool.FALSE),
+	ROLLUP_FILE("rollupfile", null),
+	SUITE_SUMMARY_UPLOAD("suitesummaryupload", Bool.FALSE),
+	DURATION_HISTORY("durationhistory", null),
+	SHARDING("sharding", new ArrayList<ShardLevel>()),
+	SHARDING_DEPTH("shardingdepth", 1),
+	INDEX("index", Bool.FALSE),
+	DURABILITY("durability", Durability.NONE),
+	GROUP_COMMIT_WINDOW("groupcommitwindow", GroupCommit.DEFAULT_WINDOW_MILLIS),
+	HEDGE_PERCENTILE("hedgepercentile", null),
+	RESUMABLE_ATTACHMENTS("resumableattachments", Bool.FALSE),
+	ATTACHMENT_RETRIES("attachmentretries", 3),
+	ATTACHMENT_JOURNAL_DIR("attachmentjournaldir", null),
+	RATE_LIMIT("ratelimit", null),
+	ADAPTIVE_CONCURRENCY("adaptiveconcurrency", Bool.FALSE),
+	MAX_CONCURRENCY("maxconcurrency", AdmissionController.DEFAULT_MAX_LIMIT),
+	CHUNKED_UPLOAD_THRESHOLD("chunkeduploadthreshold", null),
+	CHUNK_SIZE("chunksize", ChunkedUpload.DEFAULT_CHUNK_SIZE),
+	CHUNK_PARALLELISM("chunkparallelism", 1),
+	MINIMAL_ACK("minimalack", Bool.FALSE),
+	ROUTES("routes", new ArrayList<String>()),
+	CHILDREN("children", new ArrayList<String>()),
+	COMPOSITE_POLICY("compositepolicy", CompositeStorage.Policy.ALL),
+	WARMUP("warmup", Bool.FALSE),
+	WARMUP_HEALTH_URI("warmuphealthuri", null),
+	PRIORITY_LANES("prioritylanes", Bool.FALSE),
+	PRIORITY_WORKERS("priorityworkers", PriorityStorage.DEFAULT_WORKERS),
+	PRIORITY_WEIGHTS("priorityweights", PriorityStorage.DEFAULT_WEIGHTS),
+	PRIORITY_SHARES("priorityshares", PriorityStorage.DEFAULT_SHARES),
+	LARGE_ATTACHMENT_SIZE("largeattachmentsize", PriorityStorage.DEFAULT_LARGE_ATTACHMENT_SIZE),
+	PRIORITY_MAX_PENDING("prioritymaxpending", PriorityStorage.DEFAULT_MAX_PENDING),
+	PRIORITY_MAX_ATTEMPTS("prioritymaxattempts", PriorityStorage.DEFAULT_MAX_ATTEMPTS);
 
 	private String key;
 
@@ -63,40 +117,137 @@ public enum Property {
 	public Object get() {
 		String value = System.getProperty(key);
 		if (value != null) {
-			switch (this) {
-			case ENABLED:
-				return Bool.valueOfString(value);
-			case STORAGE:
-				if (value.equals(DummyStorage.class.getName()) || value.equals(DummyStorage.class.getSimpleName())
-						|| value.equals(DummyStorage.PROPERTY_NAME)) {
-					return DummyStorage.class;
-				}
-				if (value.equals(FileSystemStorage.class.getName())
-						|| value.equals(FileSystemStorage.class.getSimpleName())
-						|| value.equals(FileSystemStorage.PROPERTY_NAME)) {
-					return FileSystemStorage.class;
-				}
-				if (value.equals(RestApiStorage.class.getName()) || value.equals(RestApiStorage.class.getSimpleName())
-						|| value.equals(RestApiStorage.PROPERTY_NAME)) {
-					return RestApiStorage.class;
-				}
-				break;
-			case BASE_DIR:
-				return new File(value);
-			case SEVERITY:
-				return TestSeverity.valueOf(value);
-			case LABELS:
-				return new ArrayList<String>(Arrays.asList(value.split(";")));
-			case NOTES:
-				return new ArrayList<String>(Arrays.asList(value.split(";")));
-			case LINKS:
-				return convertStringsToResultLinks(value.split(";"));
-			default:
-				return value;
-			}
+			Object converted = convert(value);
+			if (converted != null)
+				return converted;
 		}
 		return def;
 	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Converts string value as given in system property.
+	 * 
+	 * @param value
+	 * @return Converted value or null when value is not valid
+	 */
+	public Object convert(String value) {
+		switch (this) {
+		case ENABLED:
+			return Bool.valueOfString(value);
+		case STORAGE:
+			if (value.equals(DummyStorage.class.getName()) || value.equals(DummyStorage.class.getSimpleName())
+					|| value.equals(DummyStorage.PROPERTY_NAME)) {
+				return DummyStorage.class;
+			}
+			if (value.equals(FileSystemStorage.class.getName())
+					|| value.equals(FileSystemStorage.class.getSimpleName())
+					|| value.equals(FileSystemStorage.PROPERTY_NAME)) {
+				return FileSystemStorage.class;
+			}
+			if (value.equals(RestApiStorage.class.getName()) || value.equals(RestApiStorage.class.getSimpleName())
+					|| value.equals(RestApiStorage.PROPERTY_NAME)) {
+				return RestApiStorage.class;
+			}
+			break;
+		case BASE_DIR:
+			return new File(value);
+		case SEVERITY:
+			return TestSeverity.valueOf(value);
+		case LABELS:
+			return new ArrayList<String>(Arrays.asList(value.split(";")));
+		case NOTES:
+			return new ArrayList<String>(Arrays.asList(value.split(";")));
+		case LINKS:
+			return convertStringsToResultLinks(value.split(";"));
+		case BUFFER:
+			return Bool.valueOfString(value);
+		case BUFFER_BUDGET:
+			return Long.valueOf(value);
+		case BUFFER_SPILL_FILE:
+			return new File(value);
+		case BUFFER_MAX_ATTEMPTS:
+			return Integer.valueOf(value);
+		case IMAGE_MAX_DIMENSION:
+			return Integer.valueOf(value);
+		case IMAGE_QUALITY:
+			return Double.valueOf(value);
+		case IMAGE_KEEP_ORIGINAL:
+			return Bool.valueOfString(value);
+		case LAZY_ATTACHMENTS:
+			return convertStringsToTestStatuses(value.split(";"));
+		case PASSED_SAMPLE_RATE:
+			return Double.valueOf(value);
+		case HEDGE_PERCENTILE:
+			return Double.valueOf(value);
+		case RESUMABLE_ATTACHMENTS:
+			return Bool.valueOfString(value);
+		case ATTACHMENT_RETRIES:
+			return Integer.valueOf(value);
+		case ATTACHMENT_JOURNAL_DIR:
+			return new File(value);
+		case RATE_LIMIT:
+			return Double.valueOf(value);
+		case ADAPTIVE_CONCURRENCY:
+			return Bool.valueOfString(value);
+		case MAX_CONCURRENCY:
+			return Integer.valueOf(value);
+		case CHUNKED_UPLOAD_THRESHOLD:
+			return Long.valueOf(value);
+		case CHUNK_SIZE:
+			return Integer.valueOf(value);
+		case CHUNK_PARALLELISM:
+			return Integer.valueOf(value);
+		case MINIMAL_ACK:
+			return Bool.valueOfString(value);
+		case ROUTES:
+			return convertStringsToNames(value.split(";"));
+		case CHILDREN:
+			return convertStringsToNames(value.split(";"));
+		case COMPOSITE_POLICY:
+			return CompositeStorage.Policy.valueOfString(value);
+		case WARMUP:
+			return Bool.valueOfString(value);
+		case PRIORITY_LANES:
+			return Bool.valueOfString(value);
+		case PRIORITY_WORKERS:
+			return Integer.valueOf(value);
+		case PRIORITY_WEIGHTS:
+			return convertStringsToDoubles(value.split(";"));
+		case PRIORITY_SHARES:
+			return convertStringsToDoubles(value.split(";"));
+		case LARGE_ATTACHMENT_SIZE:
+			return Long.valueOf(value);
+		case PRIORITY_MAX_PENDING:
+			return Integer.valueOf(value);
+		case PRIORITY_MAX_ATTEMPTS:
+			return Integer.valueOf(value);
+		case ROLLUP:
+			return Bool.valueOfString(value);
+		case ROLLUP_FILE:
+			return new File(value);
+		case SUITE_SUMMARY_UPLOAD:
+			return Bool.valueOfString(value);
+		case DURATION_HISTORY:
+			return new File(value);
+		case SHARDING:
+			return convertStringsToShardLevels(value.split(";"));
+		case SHARDING_DEPTH:
+			return Integer.valueOf(value);
+		case INDEX:
+			return Bool.valueOfString(value);
+		case DURABILITY:
+			return Durability.valueOfString(value);
+		case GROUP_COMMIT_WINDOW:
+			return Long.valueOf(value);
+		default:
+			return value;
+		}
+		return null;
+	}
 	
 	public Object get(List<Object> configurations) {
 		return get(configurations, null);
@@ -110,7 +261,8 @@ public enum Property {
 		Object newValue = null;
 		for (Object source : configurations) {
 			newValue = get(source, false);
-			if (value instanceof List && newValue instanceof List) {
+			// properties of route or child replace values, annotations add to them
+			if (value instanceof List && newValue instanceof List && !(source instanceof Properties)) {
 				((List) value).addAll((List) newValue);
 			} else if (newValue != null) {
 				value = newValue;
@@ -135,19 +287,45 @@ public enum Property {
 		return value == null ? defaultValue : value;
 	}
 	
+	/**
+	 * Tells whether value is configured explicitly in configuration or system
+	 * property, default value does not count.
+	 * 
+	 * @param configuration
+	 * @return True if value is set
+	 */
+	public boolean isSet(Object configuration) {
+		if (configuration instanceof List) {
+			for (Object source : (List<?>) configuration) {
+				if (get(source, false) != null)
+					return true;
+			}
+		} else if (get(configuration, false) != null) {
+			return true;
+		}
+		String value = System.getProperty(key);
+		return value != null && convert(value) != null;
+	}
+	
 	public Object get(Object configuration, boolean useSystemProperty) {
 		if (configuration == null)
 			return useSystemProperty ? get() : null;
+		if (configuration instanceof Properties) {
+			// properties use the same keys as system properties
+			String value = ((Properties) configuration).getProperty(key);
+			Object converted = value == null ? null : convert(value);
+			return converted == null && useSystemProperty ? get() : converted;
+		}
 		Object value = null;
 		ReesmoConfiguration conf = null;
 		if (configuration instanceof ReesmoConfiguration) {
 			conf = (ReesmoConfiguration) configuration;
 		} else if (configuration instanceof Method) {
-			conf = ((Method) configuration).getAnnotation(ReesmoConfiguration.class);
+			conf = ReesmoConfigurationLookup.find((Method) configuration);
 		} else if (configuration instanceof Class<?>) {
-			conf = ((Class<?>) configuration).getAnnotation(ReesmoConfiguration.class);
+			conf = ReesmoConfigurationLookup.find((Class<?>) configuration);
 		} else {
-			conf = configuration.getClass().getAnnotation(ReesmoConfiguration.class);
+			conf = ReesmoConfigurationLookup.find(configuration.getClass());
 		}
 		if (conf != null) {
 			switch (this) {
@@ -179,7 +357,8 @@ public enum Property {
 				value = getFirstValue(conf.jobId());
 				break;
 			case ENDPOINT:
-				value = getFirstValue(conf.endpoint());
+				// more endpoints are balanced by rest api storage
+				value = conf.endpoint().length > 0 ? String.join(EndpointBalancer.SEPARATOR, conf.endpoint()) : null;
 				break;
 			case USERNAME:
 				value = getFirstValue(conf.username());
@@ -214,6 +393,136 @@ public enum Property {
 			case LINKS:
 				value = convertStringsToResultLinks(conf.links());
 				break;
+			case BUFFER:
+				value = getFirstValue(conf.buffer());
+				break;
+			case BUFFER_BUDGET:
+				value = getFirstValue(conf.bufferBudget());
+				break;
+			case BUFFER_SPILL_FILE:
+				String spillFile = (String) getFirstValue(conf.bufferSpillFile());
+				value = spillFile == null ? null : new File(spillFile);
+				break;
+			case BUFFER_MAX_ATTEMPTS:
+				value = getFirstValue(conf.bufferMaxAttempts());
+				break;
+			case IMAGE_MAX_DIMENSION:
+				value = getFirstValue(conf.imageMaxDimension());
+				break;
+			case IMAGE_FORMAT:
+				value = getFirstValue(conf.imageFormat());
+				break;
+			case IMAGE_QUALITY:
+				value = getFirstValue(conf.imageQuality());
+				break;
+			case IMAGE_KEEP_ORIGINAL:
+				value = getFirstValue(conf.imageKeepOriginal());
+				break;
+			case LAZY_ATTACHMENTS:
+				value = conf.lazyAttachments().length == 0 ? null : new ArrayList<TestStatus>(Arrays.asList(conf.lazyAttachments()));
+				break;
+			case PASSED_SAMPLE_RATE:
+				value = getFirstValue(conf.passedSampleRate());
+				break;
+			case HEDGE_PERCENTILE:
+				value = getFirstValue(conf.hedgePercentile());
+				break;
+			case RESUMABLE_ATTACHMENTS:
+				value = getFirstValue(conf.resumableAttachments());
+				break;
+			case ATTACHMENT_RETRIES:
+				value = getFirstValue(conf.attachmentRetries());
+				break;
+			case ATTACHMENT_JOURNAL_DIR:
+				String journalDir = (String) getFirstValue(conf.attachmentJournalDir());
+				value = journalDir == null ? null : new File(journalDir);
+				break;
+			case RATE_LIMIT:
+				value = getFirstValue(conf.rateLimit());
+				break;
+			case ADAPTIVE_CONCURRENCY:
+				value = getFirstValue(conf.adaptiveConcurrency());
+				break;
+			case MAX_CONCURRENCY:
+				value = getFirstValue(conf.maxConcurrency());
+				break;
+			case CHUNKED_UPLOAD_THRESHOLD:
+				value = getFirstValue(conf.chunkedUploadThreshold());
+				break;
+			case CHUNK_SIZE:
+				value = getFirstValue(conf.chunkSize());
+				break;
+			case CHUNK_PARALLELISM:
+				value = getFirstValue(conf.chunkParallelism());
+				break;
+			case MINIMAL_ACK:
+				value = getFirstValue(conf.minimalAck());
+				break;
+			case ROUTES:
+				value = conf.routes().length == 0 ? null : convertStringsToNames(conf.routes());
+				break;
+			case CHILDREN:
+				value = conf.children().length == 0 ? null : convertStringsToNames(conf.children());
+				break;
+			case COMPOSITE_POLICY:
+				value = getFirstValue(conf.compositePolicy());
+				break;
+			case WARMUP:
+				value = getFirstValue(conf.warmUp());
+				break;
+			case WARMUP_HEALTH_URI:
+				value = getFirstValue(conf.warmUpHealthUri());
+				break;
+			case PRIORITY_LANES:
+				value = getFirstValue(conf.priorityLanes());
+				break;
+			case PRIORITY_WORKERS:
+				value = getFirstValue(conf.priorityWorkers());
+				break;
+			case PRIORITY_WEIGHTS:
+				value = conf.priorityWeights().length == 0 ? null : Arrays.stream(conf.priorityWeights()).boxed().collect(Collectors.toList());
+				break;
+			case PRIORITY_SHARES:
+				value = conf.priorityShares().length == 0 ? null : Arrays.stream(conf.priorityShares()).boxed().collect(Collectors.toList());
+				break;
+			case LARGE_ATTACHMENT_SIZE:
+				value = getFirstValue(conf.largeAttachmentSize());
+				break;
+			case PRIORITY_MAX_PENDING:
+				value = getFirstValue(conf.priorityMaxPending());
+				break;
+			case PRIORITY_MAX_ATTEMPTS:
+				value = getFirstValue(conf.priorityMaxAttempts());
+				break;
+			case ROLLUP:
+				value = getFirstValue(conf.rollup());
+				break;
+			case ROLLUP_FILE:
+				String rollupFile = (String) getFirstValue(conf.rollupFile());
+				value = rollupFile == null ? null : new File(rollupFile);
+				break;
+			case SUITE_SUMMARY_UPLOAD:
+				value = getFirstValue(conf.suiteSummaryUpload());
+				break;
+			case DURATION_HISTORY:
+				String durationHistory = (String) getFirstValue(conf.durationHistory());
+				value = durationHistory == null ? null : new File(durationHistory);
+				break;
+			case SHARDING:
+				value = conf.sharding().length == 0 ? null : convertStringsToShardLevels(conf.sharding());
+				break;
+			case SHARDING_DEPTH:
+				value = getFirstValue(conf.shardingDepth());
+				break;
+			case INDEX:
+				value = getFirstValue(conf.index());
+				break;
+			case DURABILITY:
+				value = getFirstValue(conf.durability());
+				break;
+			case GROUP_COMMIT_WINDOW:
+				value = getFirstValue(conf.groupCommitWindow());
+				break;
 			default:
 				break;
 			}
@@ -231,8 +540,45 @@ public enum Property {
 		return values[0];
 	}
 	
+	private Object getFirstValue(long[] values) {
+		if (values == null || values.length < 1) {
+			return null;
+		}
+		return values[0];
+	}
+	
+	private Object getFirstValue(int[] values) {
+		if (values == null || values.length < 1) {
+			return null;
+		}
+		return values[0];
+	}
+	
+	private Object getFirstValue(double[] values) {
+		if (values == null || values.length < 1) {
+			return null;
+		}
+		return values[0];
+	}
+	
 	private List<ResultLink> convertStringsToResultLinks(String[] arr) {
-		return ((List<String>) Arrays.asList(arr)).stream().filter(s -> s != null).map(s -> convertStringToResultLink(s)).collect(Collectors.toList());
+		return Arrays.asList(arr).stream().filter(s -> s != null).map(s -> convertStringToResultLink(s)).collect(Collectors.toList());
+	}
+	
+	private List<TestStatus> convertStringsToTestStatuses(String[] arr) {
+		return Arrays.asList(arr).stream().map(String::trim).filter(s -> !s.isEmpty()).map(TestStatus::valueOf).collect(Collectors.toList());
+	}
+	
+	private List<String> convertStringsToNames(String[] arr) {
+		return Arrays.asList(arr).stream().map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+	}
+	
+	private List<Double> convertStringsToDoubles(String[] arr) {
+		return Arrays.asList(arr).stream().map(String::trim).filter(s -> !s.isEmpty()).map(Double::valueOf).collect(Collectors.toList());
+	}
+	
+	private List<ShardLevel> convertStringsToShardLevels(String[] arr) {
+		return Arrays.asList(arr).stream().map(String::trim).filter(s -> !s.isEmpty()).map(ShardLevel::valueOfString).collect(Collectors.toList());
 	}
 	
 	private ResultLink convertStringToResultLink(String s) {
@@ -20,6 +20,9 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 import cz.etnetera.reesmo.writer.model.result.TestSeverity;
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+import cz.etnetera.reesmo.writer.storage.CompositeStorage;
+import cz.etnetera.reesmo.writer.storage.FileSystemStorage;
 import cz.etnetera.reesmo.writer.storage.Storage;
 
 @Retention(RetentionPolicy.RUNTIME)
@@ -68,4 +71,88 @@ public @interface ReesmoConfiguration {
 	
 	String[] links() default {};
 	
+	Bool[] buffer() default {};
+	
+	long[] bufferBudget() default {};
+	
+	String[] bufferSpillFile() default {};
+	
+	int[] bufferMaxAttempts() default {};
+	
+	int[] imageMaxDimension() default {};
+	
+	String[] imageFormat() default {};
+	
+	double[] imageQuality() default {};
+	
+	Bool[] imageKeepOriginal() default {};
+	
+	TestStatus[] lazyAttachments() default {};
+	
+	double[] passedSampleRate() default {};
+	
+	Bool[] rollup() default {};
+	
+	String[] rollupFile() default {};
+	
+	Bool[] suiteSummaryUpload() default {};
+	
+	String[] durationHistory() default {};
+	
+	String[] sharding() default {};
+	
+	int[] shardingDepth() default {};
+	
+	Bool[] index() default {};
+	
+	FileSystemStorage.Durability[] durability() default {};
+	
+	long[] groupCommitWindow() default {};
+	
+	double[] hedgePercentile() default {};
+	
+	Bool[] resumableAttachments() default {};
+	
+	int[] attachmentRetries() default {};
+	
+	String[] attachmentJournalDir() default {};
+	
+	double[] rateLimit() default {};
+	
+	Bool[] adaptiveConcurrency() default {};
+	
+	int[] maxConcurrency() default {};
+	
+	long[] chunkedUploadThreshold() default {};
+	
+	int[] chunkSize() default {};
+	
+	int[] chunkParallelism() default {};
+	
+	Bool[] minimalAck() default {};
+	
+	String[] routes() default {};
+	
+	String[] children() default {};
+	
+	CompositeStorage.Policy[] compositePolicy() default {};
+	
+	Bool[] warmUp() default {};
+	
+	String[] warmUpHealthUri() default {};
+	
+	Bool[] priorityLanes() default {};
+	
+	int[] priorityWorkers() default {};
+	
+	double[] priorityWeights() default {};
+	
+	double[] priorityShares() default {};
+	
+	long[] largeAttachmentSize() default {};
+	
+	int[] priorityMaxPending() default {};
+	
+	int[] priorityMaxAttempts() default {};
+	
 }
@@ -0,0 +1,447 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import cz.etnetera.reesmo.writer.model.result.TestSeverity;
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+import cz.etnetera.reesmo.writer.storage.CompositeStorage;
+import cz.etnetera.reesmo.writer.storage.FileSystemStorage;
+import cz.etnetera.reesmo.writer.storage.Storage;
+
+/**
+ * {@link ReesmoConfiguration} instance created without reflection, used by
+ * tables generated by {@link ReesmoConfigurationProcessor}. Members which
+ * are not set return empty arrays like annotation defaults. Returned arrays
+ * are shared, so they must not be modified. Equality and hash code follow
+ * {@link Annotation} contract, so literal equals annotation with the same
+ * member values.
+ */
+public class ReesmoConfigurationLiteral implements ReesmoConfiguration {
+
+	private static final Method[] MEMBERS = getMembers();
+
+	private final Map<String, Object> values = new TreeMap<>();
+
+	/**
+	 * Sets member value.
+	 * 
+	 * @param member
+	 *            Annotation member name
+	 * @param value
+	 *            Array of member type
+	 * @return
+	 */
+	public ReesmoConfigurationLiteral with(String member, Object value) {
+		values.put(member, value);
+		return this;
+	}
+
+	@Override
+	public Class<? extends Annotation> annotationType() {
+		return ReesmoConfiguration.class;
+	}
+
+	@Override
+	public Bool[] enabled() {
+		return get("enabled", new Bool[0]);
+	}
+
+	@Override
+	public Class<? extends Storage>[] storage() {
+		@SuppressWarnings("unchecked")
+		Class<? extends Storage>[] empty = (Class<? extends Storage>[]) new Class<?>[0];
+		return get("storage", empty);
+	}
+
+	@Override
+	public String[] baseDir() {
+		return get("baseDir", new String[0]);
+	}
+
+	@Override
+	public String[] projectId() {
+		return get("projectId", new String[0]);
+	}
+
+	@Override
+	public String[] projectKey() {
+		return get("projectKey", new String[0]);
+	}
+
+	@Override
+	public String[] suite() {
+		return get("suite", new String[0]);
+	}
+
+	@Override
+	public String[] suiteId() {
+		return get("suiteId", new String[0]);
+	}
+
+	@Override
+	public String[] job() {
+		return get("job", new String[0]);
+	}
+
+	@Override
+	public String[] jobId() {
+		return get("jobId", new String[0]);
+	}
+
+	@Override
+	public String[] endpoint() {
+		return get("endpoint", new String[0]);
+	}
+
+	@Override
+	public String[] username() {
+		return get("username", new String[0]);
+	}
+
+	@Override
+	public String[] password() {
+		return get("password", new String[0]);
+	}
+
+	@Override
+	public String[] milestone() {
+		return get("milestone", new String[0]);
+	}
+
+	@Override
+	public String[] name() {
+		return get("name", new String[0]);
+	}
+
+	@Override
+	public String[] description() {
+		return get("description", new String[0]);
+	}
+
+	@Override
+	public String[] environment() {
+		return get("environment", new String[0]);
+	}
+
+	@Override
+	public String[] author() {
+		return get("author", new String[0]);
+	}
+
+	@Override
+	public TestSeverity[] severity() {
+		return get("severity", new TestSeverity[0]);
+	}
+
+	@Override
+	public String[] labels() {
+		return get("labels", new String[0]);
+	}
+
+	@Override
+	public String[] notes() {
+		return get("notes", new String[0]);
+	}
+
+	@Override
+	public String[] links() {
+		return get("links", new String[0]);
+	}
+
+	@Override
+	public Bool[] buffer() {
+		return get("buffer", new Bool[0]);
+	}
+
+	@Override
+	public long[] bufferBudget() {
+		return get("bufferBudget", new long[0]);
+	}
+
+	@Override
+	public String[] bufferSpillFile() {
+		return get("bufferSpillFile", new String[0]);
+	}
+
+	@Override
+	public int[] bufferMaxAttempts() {
+		return get("bufferMaxAttempts", new int[0]);
+	}
+
+	@Override
+	public int[] imageMaxDimension() {
+		return get("imageMaxDimension", new int[0]);
+	}
+
+	@Override
+	public String[] imageFormat() {
+		return get("imageFormat", new String[0]);
+	}
+
+	@Override
+	public double[] imageQuality() {
+		return get("imageQuality", new double[0]);
+	}
+
+	@Override
+	public Bool[] imageKeepOriginal() {
+		return get("imageKeepOriginal", new Bool[0]);
+	}
+
+	@Override
+	public TestStatus[] lazyAttachments() {
+		return get("lazyAttachments", new TestStatus[0]);
+	}
+
+	@Override
+	public double[] passedSampleRate() {
+		return get("passedSampleRate", new double[0]);
+	}
+
+	@Override
+	public Bool[] rollup() {
+		return get("rollup", new Bool[0]);
+	}
+
+	@Override
+	public String[] rollupFile() {
+		return get("rollupFile", new String[0]);
+	}
+
+	@Override
+	public Bool[] suiteSummaryUpload() {
+		return get("suiteSummaryUpload", new Bool[0]);
+	}
+
+	@Override
+	public String[] durationHistory() {
+		return get("durationHistory", new String[0]);
+	}
+
+	@Override
+	public String[] sharding() {
+		return get("sharding", new String[0]);
+	}
+
+	@Override
+	public int[] shardingDepth() {
+		return get("shardingDepth", new int[0]);
+	}
+
+	@Override
+	public Bool[] index() {
+		return get("index", new Bool[0]);
+	}
+
+	@Override
+	public FileSystemStorage.Durability[] durability() {
+		return get("durability", new FileSystemStorage.Durability[0]);
+	}
+
+	@Override
+	public long[] groupCommitWindow() {
+		return get("groupCommitWindow", new long[0]);
+	}
+
+	@Override
+	public double[] hedgePercentile() {
+		return get("hedgePercentile", new double[0]);
+	}
+
+	@Override
+	public Bool[] resumableAttachments() {
+		return get("resumableAttachments", new Bool[0]);
+	}
+
+	@Override
+	public int[] attachmentRetries() {
+		return get("attachmentRetries", new int[0]);
+	}
+
+	@Override
+	public String[] attachmentJournalDir() {
+		return get("attachmentJournalDir", new String[0]);
+	}
+
+	@Override
+	public double[] rateLimit() {
+		return get("rateLimit", new double[0]);
+	}
+
+	@Override
+	public Bool[] adaptiveConcurrency() {
+		return get("adaptiveConcurrency", new Bool[0]);
+	}
+
+	@Override
+	public int[] maxConcurrency() {
+		return get("maxConcurrency", new int[0]);
+	}
+
+	@Override
+	public long[] chunkedUploadThreshold() {
+		return get("chunkedUploadThreshold", new long[0]);
+	}
+
+	@Override
+	public int[] chunkSize() {
+		return get("chunkSize", new int[0]);
+	}
+
+	@Override
+	public int[] chunkParallelism() {
+		return get("chunkParallelism", new int[0]);
+	}
+
+	@Override
+	public Bool[] minimalAck() {
+		return get("minimalAck", new Bool[0]);
+	}
+
+	@Override
+	public String[] routes() {
+		return get("routes", new String[0]);
+	}
+
+	@Override
+	public String[] children() {
+		return get("children", new String[0]);
+	}
+
+	@Override
+	public CompositeStorage.Policy[] compositePolicy() {
+		return get("compositePolicy", new CompositeStorage.Policy[0]);
+	}
+
+	@Override
+	public Bool[] warmUp() {
+		return get("warmUp", new Bool[0]);
+	}
+
+	@Override
+	public String[] warmUpHealthUri() {
+		return get("warmUpHealthUri", new String[0]);
+	}
+
+	@Override
+	public Bool[] priorityLanes() {
+		return get("priorityLanes", new Bool[0]);
+	}
+
+	@Override
+	public int[] priorityWorkers() {
+		return get("priorityWorkers", new int[0]);
+	}
+
+	@Override
+	public double[] priorityWeights() {
+		return get("priorityWeights", new double[0]);
+	}
+
+	@Override
+	public double[] priorityShares() {
+		return get("priorityShares", new double[0]);
+	}
+
+	@Override
+	public long[] largeAttachmentSize() {
+		return get("largeAttachmentSize", new long[0]);
+	}
+
+	@Override
+	public int[] priorityMaxPending() {
+		return get("priorityMaxPending", new int[0]);
+	}
+
+	@Override
+	public int[] priorityMaxAttempts() {
+		return get("priorityMaxAttempts", new int[0]);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof ReesmoConfiguration))
+			return false;
+		for (Method member : MEMBERS) {
+			if (!Arrays.deepEquals(new Object[] { getValue(member, this) }, new Object[] { getValue(member, obj) }))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hashCode = 0;
+		for (Method member : MEMBERS) {
+			hashCode += (127 * member.getName().hashCode()) ^ getValueHashCode(getValue(member, this));
+		}
+		return hashCode;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("@").append(ReesmoConfiguration.class.getName()).append("(");
+		String separator = "";
+		for (Method member : MEMBERS) {
+			String value = Arrays.deepToString(new Object[] { getValue(member, this) });
+			sb.append(separator).append(member.getName()).append("=").append(value.substring(1, value.length() - 1));
+			separator = ", ";
+		}
+		return sb.append(")").toString();
+	}
+
+	private static Method[] getMembers() {
+		Method[] members = ReesmoConfiguration.class.getDeclaredMethods();
+		Arrays.sort(members, Comparator.comparing(Method::getName));
+		return members;
+	}
+
+	private static Object getValue(Method member, Object configuration) {
+		try {
+			return member.invoke(configuration);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Unable to read member " + member.getName(), e);
+		}
+	}
+
+	/**
+	 * All members are arrays, hash code is the one of {@link Arrays}.
+	 */
+	private static int getValueHashCode(Object value) {
+		if (value instanceof int[])
+			return Arrays.hashCode((int[]) value);
+		if (value instanceof long[])
+			return Arrays.hashCode((long[]) value);
+		if (value instanceof double[])
+			return Arrays.hashCode((double[]) value);
+		return Arrays.hashCode((Object[]) value);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T get(String member, T empty) {
+		Object value = values.get(member);
+		return value == null ? empty : (T) value;
+	}
+
+}
@@ -0,0 +1,98 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds {@link ReesmoConfiguration} of class or method in generated
+ * {@link ReesmoConfigurationTable}s, classes without table are read
+ * reflectively.
+ */
+final class ReesmoConfigurationLookup {
+
+	private static volatile Map<String, ReesmoConfigurationTable> tables;
+
+	private ReesmoConfigurationLookup() {
+	}
+
+	static ReesmoConfiguration find(Class<?> type) {
+		ReesmoConfigurationTable table = getTables().get(type.getName());
+		if (table != null)
+			return table.getTypeConfiguration();
+		return type.getAnnotation(ReesmoConfiguration.class);
+	}
+
+	static ReesmoConfiguration find(Method method) {
+		ReesmoConfigurationTable table = getTables().get(method.getDeclaringClass().getName());
+		if (table != null)
+			return table.getMethodConfiguration(getMethodKey(method));
+		return method.getAnnotation(ReesmoConfiguration.class);
+	}
+
+	static String getMethodKey(Method method) {
+		StringBuilder sb = new StringBuilder(method.getName()).append('(');
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		for (int i = 0; i < parameterTypes.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(parameterTypes[i].getTypeName());
+		}
+		return sb.append(')').toString();
+	}
+
+	private static Map<String, ReesmoConfigurationTable> getTables() {
+		Map<String, ReesmoConfigurationTable> tables = ReesmoConfigurationLookup.tables;
+		if (tables == null) {
+			synchronized (ReesmoConfigurationLookup.class) {
+				tables = ReesmoConfigurationLookup.tables;
+				if (tables == null) {
+					tables = loadTables();
+					ReesmoConfigurationLookup.tables = tables;
+				}
+			}
+		}
+		return tables;
+	}
+
+	private static Map<String, ReesmoConfigurationTable> loadTables() {
+		Map<String, ReesmoConfigurationTable> tables = new HashMap<>();
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		if (classLoader == null)
+			classLoader = ReesmoConfigurationLookup.class.getClassLoader();
+		Iterator<ReesmoConfigurationTable> iterator = ServiceLoader.load(ReesmoConfigurationTable.class, classLoader)
+				.iterator();
+		while (true) {
+			try {
+				if (!iterator.hasNext())
+					break;
+				ReesmoConfigurationTable table = iterator.next();
+				tables.put(table.getTypeName(), table);
+			} catch (ServiceConfigurationError e) {
+				// stale entry of removed class, its configuration is read reflectively
+				LoggerFactory.getLogger(ReesmoConfigurationLookup.class).debug("Skipping configuration table", e);
+			}
+		}
+		return tables;
+	}
+
+}
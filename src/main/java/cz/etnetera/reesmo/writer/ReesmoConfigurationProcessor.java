@@ -0,0 +1,269 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates {@link ReesmoConfigurationTable} for each class which has
+ * {@link ReesmoConfiguration} on itself or on its methods, so configuration
+ * is not read by reflection at runtime. Tables are registered in
+ * {@code META-INF/services}. Processor is enabled by having writer on
+ * compile class path of tests.
+ */
+@SupportedAnnotationTypes("cz.etnetera.reesmo.writer.ReesmoConfiguration")
+public class ReesmoConfigurationProcessor extends AbstractProcessor {
+
+	protected static final String TABLE_SUFFIX = "_ReesmoConfiguration";
+
+	protected static final String SERVICE_FILE = "META-INF/services/" + ReesmoConfigurationTable.class.getName();
+
+	private final Map<TypeElement, Map<String, AnnotationMirror>> types = new LinkedHashMap<>();
+
+	private final Set<String> tables = new TreeSet<>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		if (roundEnv.processingOver()) {
+			writeServiceFile();
+			return false;
+		}
+		TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ReesmoConfiguration.class.getName());
+		if (annotation == null)
+			return false;
+		types.clear();
+		for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+			AnnotationMirror mirror = getMirror(element, annotation);
+			if (element.getKind().isClass() || element.getKind().isInterface()) {
+				getConfigurations((TypeElement) element).put("", mirror);
+			} else if (element.getKind() == ElementKind.METHOD) {
+				getConfigurations((TypeElement) element.getEnclosingElement())
+						.put(getMethodKey((ExecutableElement) element), mirror);
+			}
+		}
+		for (Map.Entry<TypeElement, Map<String, AnnotationMirror>> entry : types.entrySet()) {
+			try {
+				writeTable(entry.getKey(), entry.getValue());
+			} catch (IOException e) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+						"Unable to generate Reesmo configuration table: " + e.getMessage(), entry.getKey());
+			}
+		}
+		return false;
+	}
+
+	protected void writeTable(TypeElement type, Map<String, AnnotationMirror> configurations) throws IOException {
+		String packageName = getPackageName(type);
+		String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+		String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1))
+				.replace('$', '_') + TABLE_SUFFIX;
+		String tableName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+		JavaFileObject source = processingEnv.getFiler().createSourceFile(tableName, type);
+		try (PrintWriter out = new PrintWriter(source.openWriter())) {
+			if (!packageName.isEmpty()) {
+				out.println("package " + packageName + ";");
+				out.println();
+			}
+			out.println("/**");
+			out.println(" * Generated by " + getClass().getName() + " from " + binaryName + ".");
+			out.println(" */");
+			out.println("public final class " + simpleName + " implements "
+					+ ReesmoConfigurationTable.class.getName() + " {");
+			out.println();
+			out.println("\tprivate static final " + ReesmoConfiguration.class.getName() + " TYPE = "
+					+ (configurations.containsKey("") ? getLiteral(configurations.get("")) : "null") + ";");
+			out.println();
+			out.println("\tprivate static final java.util.Map<String, " + ReesmoConfiguration.class.getName()
+					+ "> METHODS = new java.util.HashMap<>();");
+			out.println();
+			out.println("\tstatic {");
+			for (Map.Entry<String, AnnotationMirror> entry : configurations.entrySet()) {
+				if (entry.getKey().isEmpty())
+					continue;
+				out.println("\t\tMETHODS.put(" + processingEnv.getElementUtils().getConstantExpression(entry.getKey())
+						+ ", " + getLiteral(entry.getValue()) + ");");
+			}
+			out.println("\t}");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tpublic String getTypeName() {");
+			out.println("\t\treturn " + processingEnv.getElementUtils().getConstantExpression(binaryName) + ";");
+			out.println("\t}");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tpublic " + ReesmoConfiguration.class.getName() + " getTypeConfiguration() {");
+			out.println("\t\treturn TYPE;");
+			out.println("\t}");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tpublic " + ReesmoConfiguration.class.getName() + " getMethodConfiguration(String methodKey) {");
+			out.println("\t\treturn METHODS.get(methodKey);");
+			out.println("\t}");
+			out.println();
+			out.println("}");
+		}
+		tables.add(tableName);
+	}
+
+	protected String getLiteral(AnnotationMirror mirror) {
+		StringBuilder sb = new StringBuilder("new ").append(ReesmoConfigurationLiteral.class.getName()).append("()");
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues()
+				.entrySet()) {
+			TypeMirror componentType = ((ArrayType) entry.getKey().getReturnType()).getComponentType();
+			sb.append("\n\t\t\t.with(\"").append(entry.getKey().getSimpleName()).append("\", new ")
+					.append(getTypeName(componentType)).append("[] {");
+			Object value = entry.getValue().getValue();
+			@SuppressWarnings("unchecked")
+			List<? extends AnnotationValue> values = value instanceof List ? (List<? extends AnnotationValue>) value
+					: Collections.singletonList(entry.getValue());
+			String separator = " ";
+			for (AnnotationValue item : values) {
+				sb.append(separator).append(getValueLiteral(item.getValue()));
+				separator = ", ";
+			}
+			sb.append(" })");
+		}
+		return sb.toString();
+	}
+
+	protected String getValueLiteral(Object value) {
+		if (value instanceof VariableElement) {
+			VariableElement constant = (VariableElement) value;
+			return getTypeName(constant.asType()) + "." + constant.getSimpleName();
+		}
+		if (value instanceof TypeMirror)
+			return getTypeName((TypeMirror) value) + ".class";
+		return processingEnv.getElementUtils().getConstantExpression(value);
+	}
+
+	protected String getMethodKey(ExecutableElement method) {
+		StringBuilder sb = new StringBuilder(method.getSimpleName()).append('(');
+		String separator = "";
+		for (VariableElement parameter : method.getParameters()) {
+			sb.append(separator).append(getBinaryTypeName(processingEnv.getTypeUtils().erasure(parameter.asType())));
+			separator = ",";
+		}
+		return sb.append(')').toString();
+	}
+
+	private Map<String, AnnotationMirror> getConfigurations(TypeElement type) {
+		return types.computeIfAbsent(type, k -> new LinkedHashMap<>());
+	}
+
+	private AnnotationMirror getMirror(Element element, TypeElement annotation) {
+		for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+			if (mirror.getAnnotationType().asElement().equals(annotation))
+				return mirror;
+		}
+		throw new IllegalStateException("Missing annotation on " + element);
+	}
+
+	private String getPackageName(TypeElement type) {
+		PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+		return packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+	}
+
+	/**
+	 * Source name of erased type.
+	 */
+	private String getTypeName(TypeMirror type) {
+		TypeMirror erasure = processingEnv.getTypeUtils().erasure(type);
+		if (erasure.getKind() == TypeKind.DECLARED)
+			return ((TypeElement) ((DeclaredType) erasure).asElement()).getQualifiedName().toString();
+		return erasure.toString();
+	}
+
+	/**
+	 * Name of type as returned by {@link Class#getTypeName()}.
+	 */
+	private String getBinaryTypeName(TypeMirror type) {
+		if (type.getKind() == TypeKind.ARRAY)
+			return getBinaryTypeName(((ArrayType) type).getComponentType()) + "[]";
+		if (type.getKind() == TypeKind.DECLARED)
+			return processingEnv.getElementUtils().getBinaryName((TypeElement) ((DeclaredType) type).asElement())
+					.toString();
+		return type.toString();
+	}
+
+	private void writeServiceFile() {
+		if (tables.isEmpty())
+			return;
+		Set<String> entries = new TreeSet<>(tables);
+		try {
+			// keep tables of classes not compiled in this run
+			FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(existing.openInputStream(), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!line.trim().isEmpty())
+						entries.add(line.trim());
+				}
+			}
+		} catch (IOException e) {
+			// no service file yet
+		}
+		try {
+			FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+			try (Writer writer = file.openWriter()) {
+				for (String entry : entries) {
+					writer.write(entry);
+					writer.write("\n");
+				}
+			}
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+					"Unable to write " + SERVICE_FILE + ": " + e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,49 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer;
+
+/**
+ * Configurations of one class read from {@link ReesmoConfiguration}
+ * annotations at build time by {@link ReesmoConfigurationProcessor}. Tables
+ * are registered as services, {@link Property} uses them instead of reading
+ * annotations reflectively.
+ */
+public interface ReesmoConfigurationTable {
+
+	/**
+	 * Returns binary name of class this table describes.
+	 * 
+	 * @return
+	 */
+	String getTypeName();
+
+	/**
+	 * Returns configuration of the class itself or null.
+	 * 
+	 * @return
+	 */
+	ReesmoConfiguration getTypeConfiguration();
+
+	/**
+	 * Returns configuration of method or null.
+	 * 
+	 * @param methodKey
+	 *            Method name followed by parameter type names, i.e.
+	 *            {@code test(java.lang.String,int[])}
+	 * @return
+	 */
+	ReesmoConfiguration getMethodConfiguration(String methodKey);
+
+}
@@ -0,0 +1,100 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.listener;
+
+import java.lang.reflect.Method;
+
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+
+/**
+ * Raw outcome of test as captured on test thread. It is turned into result
+ * later by {@link ResultSubmitter}.
+ */
+public class CapturedResult {
+
+	protected final Class<?> testClass;
+
+	protected final Method testMethod;
+
+	protected final String name;
+
+	protected final String displayName;
+
+	protected final TestStatus status;
+
+	protected final long startedAt;
+
+	protected final long endedAt;
+
+	protected final Throwable throwable;
+
+	public CapturedResult(Class<?> testClass, Method testMethod, String name, String displayName, TestStatus status,
+			long startedAt, long endedAt, Throwable throwable) {
+		this.testClass = testClass;
+		this.testMethod = testMethod;
+		this.name = name;
+		this.displayName = displayName;
+		this.status = status;
+		this.startedAt = startedAt;
+		this.endedAt = endedAt;
+		this.throwable = throwable;
+	}
+
+	public Class<?> getTestClass() {
+		return testClass;
+	}
+
+	public Method getTestMethod() {
+		return testMethod;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	public TestStatus getStatus() {
+		return status;
+	}
+
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	public long getEndedAt() {
+		return endedAt;
+	}
+
+	public Throwable getThrowable() {
+		return throwable;
+	}
+
+	/**
+	 * Status of finished test, assertion errors are failures, other
+	 * throwables break the test.
+	 *
+	 * @param throwable
+	 * @return
+	 */
+	public static TestStatus getStatus(Throwable throwable) {
+		if (throwable == null)
+			return TestStatus.PASSED;
+		return throwable instanceof AssertionError ? TestStatus.FAILED : TestStatus.BROKEN;
+	}
+
+}
@@ -0,0 +1,129 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.listener;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.junit.platform.engine.TestExecutionResult;
+import org.junit.platform.engine.TestSource;
+import org.junit.platform.engine.support.descriptor.ClassSource;
+import org.junit.platform.engine.support.descriptor.MethodSource;
+import org.junit.platform.launcher.TestExecutionListener;
+import org.junit.platform.launcher.TestIdentifier;
+import org.junit.platform.launcher.TestPlan;
+
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+
+/**
+ * JUnit Platform listener storing test results. Test thread only records
+ * timestamps and outcome, results are built and stored by
+ * {@link ResultSubmitter} when their container finishes. Register it in
+ * {@code META-INF/services/org.junit.platform.launcher.TestExecutionListener}
+ * of test resources.
+ */
+public class ReesmoTestExecutionListener implements TestExecutionListener {
+
+	private final Map<String, Long> startedAt = new ConcurrentHashMap<>();
+
+	private final Supplier<ResultSubmitter> submitterFactory;
+
+	private volatile ResultSubmitter submitter;
+
+	public ReesmoTestExecutionListener() {
+		this(ResultSubmitter::new);
+	}
+
+	/**
+	 * Submitter is closed when test plan finishes, so launcher running more
+	 * plans gets fresh one for each of them.
+	 *
+	 * @param submitterFactory
+	 *            Creates submitter of each test plan
+	 */
+	public ReesmoTestExecutionListener(Supplier<ResultSubmitter> submitterFactory) {
+		this.submitterFactory = submitterFactory;
+	}
+
+	@Override
+	public void testPlanExecutionStarted(TestPlan testPlan) {
+		submitter = submitterFactory.get();
+	}
+
+	@Override
+	public void testPlanExecutionFinished(TestPlan testPlan) {
+		submitter.close();
+	}
+
+	@Override
+	public void executionStarted(TestIdentifier testIdentifier) {
+		if (testIdentifier.isTest())
+			startedAt.put(testIdentifier.getUniqueId(), System.currentTimeMillis());
+	}
+
+	@Override
+	public void executionSkipped(TestIdentifier testIdentifier, String reason) {
+		if (testIdentifier.isTest()) {
+			long now = System.currentTimeMillis();
+			capture(testIdentifier, TestStatus.SKIPPED, now, now, null);
+		}
+	}
+
+	@Override
+	public void executionFinished(TestIdentifier testIdentifier, TestExecutionResult testExecutionResult) {
+		if (!testIdentifier.isTest()) {
+			submitter.finishContainer(testIdentifier.getUniqueId());
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Long started = startedAt.remove(testIdentifier.getUniqueId());
+		Throwable throwable = testExecutionResult.getThrowable().orElse(null);
+		TestStatus status;
+		switch (testExecutionResult.getStatus()) {
+		case SUCCESSFUL:
+			status = TestStatus.PASSED;
+			break;
+		case ABORTED:
+			status = TestStatus.SKIPPED;
+			break;
+		default:
+			status = CapturedResult.getStatus(throwable);
+			if (status == TestStatus.PASSED)
+				status = TestStatus.BROKEN;
+		}
+		capture(testIdentifier, status, started == null ? now : started, now, throwable);
+	}
+
+	protected void capture(TestIdentifier testIdentifier, TestStatus status, long startedAt, long endedAt,
+			Throwable throwable) {
+		Class<?> testClass = null;
+		Method testMethod = null;
+		String name = testIdentifier.getDisplayName();
+		TestSource source = testIdentifier.getSource().orElse(null);
+		if (source instanceof MethodSource) {
+			MethodSource methodSource = (MethodSource) source;
+			testClass = methodSource.getJavaClass();
+			testMethod = methodSource.getJavaMethod();
+			name = methodSource.getMethodName();
+		} else if (source instanceof ClassSource) {
+			testClass = ((ClassSource) source).getJavaClass();
+		}
+		submitter.add(testIdentifier.getParentId().orElse(testIdentifier.getUniqueId()), new CapturedResult(testClass,
+				testMethod, name, testIdentifier.getDisplayName(), status, startedAt, endedAt, throwable));
+	}
+
+}
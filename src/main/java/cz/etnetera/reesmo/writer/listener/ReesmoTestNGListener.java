@@ -0,0 +1,89 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.listener;
+
+import org.testng.IClassListener;
+import org.testng.IExecutionListener;
+import org.testng.ITestClass;
+import org.testng.ITestListener;
+import org.testng.ITestResult;
+
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+
+/**
+ * TestNG listener storing test results. Test thread only records outcome,
+ * results are built and stored by {@link ResultSubmitter} after each test
+ * class. Register it by {@code @Listeners}, {@code <listeners>} in suite
+ * xml or {@code -listener} option.
+ */
+public class ReesmoTestNGListener implements ITestListener, IClassListener, IExecutionListener {
+
+	private final ResultSubmitter submitter;
+
+	public ReesmoTestNGListener() {
+		this(new ResultSubmitter());
+	}
+
+	public ReesmoTestNGListener(ResultSubmitter submitter) {
+		this.submitter = submitter;
+	}
+
+	@Override
+	public void onTestSuccess(ITestResult result) {
+		capture(result, TestStatus.PASSED);
+	}
+
+	@Override
+	public void onTestFailure(ITestResult result) {
+		capture(result, CapturedResult.getStatus(result.getThrowable()) == TestStatus.FAILED ? TestStatus.FAILED
+				: TestStatus.BROKEN);
+	}
+
+	@Override
+	public void onTestSkipped(ITestResult result) {
+		capture(result, TestStatus.SKIPPED);
+	}
+
+	@Override
+	public void onTestFailedButWithinSuccessPercentage(ITestResult result) {
+		capture(result, TestStatus.PASSED);
+	}
+
+	@Override
+	public void onTestFailedWithTimeout(ITestResult result) {
+		capture(result, TestStatus.BROKEN);
+	}
+
+	@Override
+	public void onAfterClass(ITestClass testClass) {
+		submitter.finishContainer(testClass.getRealClass());
+	}
+
+	@Override
+	public void onExecutionFinish() {
+		submitter.close();
+	}
+
+	protected void capture(ITestResult result, TestStatus status) {
+		Class<?> testClass = result.getTestClass() == null ? null : result.getTestClass().getRealClass();
+		long endedAt = result.getEndMillis() > 0 ? result.getEndMillis() : System.currentTimeMillis();
+		long startedAt = result.getStartMillis() > 0 ? result.getStartMillis() : endedAt;
+		submitter.add(testClass == null ? getClass() : testClass,
+				new CapturedResult(testClass, result.getMethod().getConstructorOrMethod().getMethod(),
+						result.getMethod().getMethodName(), result.getName(), status, startedAt, endedAt,
+						result.getThrowable()));
+	}
+
+}
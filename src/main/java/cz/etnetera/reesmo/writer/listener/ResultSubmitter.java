@@ -0,0 +1,198 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.listener;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.storage.Storage;
+import cz.etnetera.reesmo.writer.storage.StorageException;
+
+/**
+ * Collects captured results per container (test class) and stores them on
+ * background thread when container finishes. Configuration is resolved from
+ * {@link cz.etnetera.reesmo.writer.ReesmoConfiguration} of test class and
+ * method, method wins. Storage is created from reesmo system properties
+ * unless it is given.
+ */
+public class ResultSubmitter implements AutoCloseable {
+
+	protected static final long CLOSE_TIMEOUT_MINUTES = 10;
+
+	private final Map<Object, List<CapturedResult>> batches = new ConcurrentHashMap<>();
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "reesmo-submitter");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final String suiteId = String.valueOf(System.currentTimeMillis());
+
+	private final Thread shutdownHook = new Thread(this::close, "reesmo-submitter-shutdown");
+
+	private Storage storage;
+
+	private volatile boolean closed;
+
+	public ResultSubmitter() {
+		this(null);
+	}
+
+	/**
+	 * Results are stored also on JVM shutdown if submitter is not closed.
+	 *
+	 * @param storage
+	 *            Storage or null to create it from system properties
+	 */
+	public ResultSubmitter(Storage storage) {
+		this.storage = storage;
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Adds result to batch of given container. Called on test thread.
+	 *
+	 * @param container
+	 * @param result
+	 */
+	public void add(Object container, CapturedResult result) {
+		if (closed) {
+			getLogger().warn("Result submitter is closed, result is dropped " + result.getName());
+			return;
+		}
+		List<CapturedResult> batch = batches.computeIfAbsent(container, k -> new ArrayList<>());
+		synchronized (batch) {
+			batch.add(result);
+		}
+	}
+
+	/**
+	 * Hands batch of finished container over to background thread.
+	 *
+	 * @param container
+	 */
+	public void finishContainer(Object container) {
+		List<CapturedResult> batch = batches.remove(container);
+		if (batch != null && !closed) {
+			executor.execute(() -> store(batch));
+		}
+	}
+
+	/**
+	 * Stores all remaining batches and waits until everything is stored.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		for (Object container : new ArrayList<>(batches.keySet())) {
+			finishContainer(container);
+		}
+		closed = true;
+		if (Thread.currentThread() != shutdownHook) {
+			try {
+				// closed submitters of previous test plans are not kept until shutdown
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// JVM is already shutting down
+			}
+		}
+		executor.execute(this::closeStorage);
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(CLOSE_TIMEOUT_MINUTES, TimeUnit.MINUTES))
+				getLogger().error("Results were not stored in " + CLOSE_TIMEOUT_MINUTES + " minutes");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	protected void store(List<CapturedResult> batch) {
+		List<CapturedResult> results;
+		synchronized (batch) {
+			results = new ArrayList<>(batch);
+		}
+		Storage storage;
+		try {
+			storage = getStorage();
+		} catch (StorageException e) {
+			getLogger().error("Unable to create storage, " + results.size() + " results are dropped", e);
+			return;
+		}
+		for (CapturedResult captured : results) {
+			List<Object> configurations = new ArrayList<>();
+			if (captured.getTestClass() != null)
+				configurations.add(captured.getTestClass());
+			if (captured.getTestMethod() != null)
+				configurations.add(captured.getTestMethod());
+			try {
+				storage.addResult(configurations, createResult(captured));
+			} catch (StorageException e) {
+				getLogger().error("Unable to store result " + captured.getName(), e);
+			}
+		}
+	}
+
+	protected Result createResult(CapturedResult captured) {
+		Result result = new Result();
+		result.setName(captured.getName());
+		if (captured.getDisplayName() != null && !captured.getDisplayName().equals(captured.getName()))
+			result.setDescription(captured.getDisplayName());
+		if (captured.getTestClass() != null) {
+			result.setSuite(captured.getTestClass().getName());
+			result.setSuiteId(suiteId);
+		}
+		result.setStatus(captured.getStatus());
+		result.setStartedAt(new Date(captured.getStartedAt()));
+		result.setEndedAt(new Date(captured.getEndedAt()));
+		result.setLength(captured.getEndedAt() - captured.getStartedAt());
+		result.setAutomated(true);
+		if (captured.getThrowable() != null)
+			result.addError(captured.getThrowable());
+		return result;
+	}
+
+	protected Logger getLogger() {
+		return LoggerFactory.getLogger(getClass());
+	}
+
+	private Storage getStorage() throws StorageException {
+		if (storage == null)
+			storage = Storage.newInstance(null);
+		return storage;
+	}
+
+	private void closeStorage() {
+		if (storage == null)
+			return;
+		try {
+			storage.close();
+		} catch (StorageException e) {
+			getLogger().error("Unable to flush storage", e);
+		}
+	}
+
+}
@@ -21,6 +21,8 @@ import java.util.Date;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import cz.etnetera.reesmo.writer.model.AuditedModel;
 
 public class Result extends AuditedModel {
@@ -90,6 +92,13 @@ public class Result extends AuditedModel {
 	private List<ResultAttachment> attachments = new ArrayList<>();
 	
 	private List<ResultLink> links = new ArrayList<>();
+	
+	/**
+	 * Client side key of this result which stays the same across retries,
+	 * so storage can recognize result which is already stored. It is not
+	 * part of result json.
+	 */
+	private String idempotencyKey;
 
 	public String getId() {
 		return id;
@@ -279,6 +288,16 @@ public class Result extends AuditedModel {
 		this.links = links;
 	}
 	
+	@JsonIgnore
+	public String getIdempotencyKey() {
+		return idempotencyKey;
+	}
+	
+	@JsonIgnore
+	public void setIdempotencyKey(String idempotencyKey) {
+		this.idempotencyKey = idempotencyKey;
+	}
+	
 	public Result addLabel(String label) {
 		labels.add(label);
 		return this;
@@ -299,6 +318,7 @@ public class Result extends AuditedModel {
 		return this;
 	}
 	
+	@JsonIgnore
 	public void setThrowables(List<Throwable> errors) {
 		this.errors = errors.stream().map(e -> createErrorFromThrowable(e)).collect(Collectors.toList());
 	}
@@ -0,0 +1,498 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.model.result;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compact column oriented storage of many results. Timestamps and lengths
+ * are kept in primitive arrays, status and severity as ordinals and
+ * repeating strings (suite, job, environment, labels, errors...) are
+ * dictionary encoded, list fields are stored as offsets to shared value
+ * arrays. Unique strings (id, name, description) are kept as references.
+ * Null lists are stored as empty ones. Batch is not thread safe.
+ */
+public class ResultBatch implements Iterable<Result> {
+
+	protected static final int NULL = -1;
+
+	protected static final long NULL_LONG = Long.MIN_VALUE;
+
+	protected static final int DEFAULT_CAPACITY = 1024;
+
+	private final Dictionary dictionary = new Dictionary();
+
+	private int size;
+
+	private String[] ids;
+
+	private String[] names;
+
+	private String[] descriptions;
+
+	private String[] idempotencyKeys;
+
+	private int[] projectIds;
+
+	private int[] suites;
+
+	private int[] suiteIds;
+
+	private int[] jobs;
+
+	private int[] jobIds;
+
+	private int[] milestones;
+
+	private int[] environments;
+
+	private int[] authors;
+
+	private long[] startedAts;
+
+	private long[] endedAts;
+
+	private long[] lengths;
+
+	private byte[] statuses;
+
+	private byte[] severities;
+
+	private final BitSet automated = new BitSet();
+
+	private final ListColumn labels = new ListColumn();
+
+	private final ListColumn notes = new ListColumn();
+
+	private final ListColumn errors = new ListColumn();
+
+	private final ListColumn categories = new ListColumn();
+
+	private final ListColumn types = new ListColumn();
+
+	private final ListColumn linkNames = new ListColumn();
+
+	private final ListColumn linkUrls = new ListColumn();
+
+	/**
+	 * Attachments of stored results are rare on client side, so they are
+	 * kept sparse as objects.
+	 */
+	private final Map<Integer, List<ResultAttachment>> attachments = new HashMap<>();
+
+	public ResultBatch() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ResultBatch(int capacity) {
+		allocate(Math.max(1, capacity));
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns number of distinct strings in dictionary.
+	 *
+	 * @return
+	 */
+	public int getDictionarySize() {
+		return dictionary.size();
+	}
+
+	/**
+	 * Appends result, result itself is not referenced by batch.
+	 *
+	 * @param result
+	 * @return Index of result in batch
+	 */
+	public int add(Result result) {
+		if (size == ids.length)
+			allocate(size * 2);
+		int i = size;
+		ids[i] = result.getId();
+		names[i] = result.getName();
+		descriptions[i] = result.getDescription();
+		idempotencyKeys[i] = result.getIdempotencyKey();
+		projectIds[i] = dictionary.encode(result.getProjectId());
+		suites[i] = dictionary.encode(result.getSuite());
+		suiteIds[i] = dictionary.encode(result.getSuiteId());
+		jobs[i] = dictionary.encode(result.getJob());
+		jobIds[i] = dictionary.encode(result.getJobId());
+		milestones[i] = dictionary.encode(result.getMilestone());
+		environments[i] = dictionary.encode(result.getEnvironment());
+		authors[i] = dictionary.encode(result.getAuthor());
+		startedAts[i] = result.getStartedAt() == null ? NULL_LONG : result.getStartedAt().getTime();
+		endedAts[i] = result.getEndedAt() == null ? NULL_LONG : result.getEndedAt().getTime();
+		lengths[i] = result.getLength() == null ? NULL_LONG : result.getLength();
+		statuses[i] = (byte) (result.getStatus() == null ? NULL : result.getStatus().ordinal());
+		severities[i] = (byte) (result.getSeverity() == null ? NULL : result.getSeverity().ordinal());
+		automated.set(i, result.isAutomated());
+		labels.add(result.getLabels());
+		notes.add(result.getNotes());
+		errors.add(result.getErrors());
+		categories.add(result.getCategories());
+		types.add(result.getTypes());
+		List<String> names = new ArrayList<>();
+		List<String> urls = new ArrayList<>();
+		if (result.getLinks() != null) {
+			for (ResultLink link : result.getLinks()) {
+				names.add(link.getName());
+				urls.add(link.getUrl());
+			}
+		}
+		linkNames.add(names);
+		linkUrls.add(urls);
+		if (result.getAttachments() != null && !result.getAttachments().isEmpty())
+			attachments.put(i, new ArrayList<>(result.getAttachments()));
+		return size++;
+	}
+
+	/**
+	 * Creates result from batch.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public Result get(int index) {
+		checkIndex(index);
+		Result result = new Result();
+		result.setId(ids[index]);
+		result.setName(names[index]);
+		result.setDescription(descriptions[index]);
+		result.setIdempotencyKey(idempotencyKeys[index]);
+		result.setProjectId(dictionary.decode(projectIds[index]));
+		result.setSuite(dictionary.decode(suites[index]));
+		result.setSuiteId(dictionary.decode(suiteIds[index]));
+		result.setJob(dictionary.decode(jobs[index]));
+		result.setJobId(dictionary.decode(jobIds[index]));
+		result.setMilestone(dictionary.decode(milestones[index]));
+		result.setEnvironment(dictionary.decode(environments[index]));
+		result.setAuthor(dictionary.decode(authors[index]));
+		result.setStartedAt(startedAts[index] == NULL_LONG ? null : new Date(startedAts[index]));
+		result.setEndedAt(endedAts[index] == NULL_LONG ? null : new Date(endedAts[index]));
+		result.setLength(lengths[index] == NULL_LONG ? null : lengths[index]);
+		result.setStatus(statuses[index] == NULL ? null : TestStatus.values()[statuses[index]]);
+		result.setSeverity(severities[index] == NULL ? null : TestSeverity.values()[severities[index]]);
+		result.setAutomated(automated.get(index));
+		result.setLabels(labels.get(index));
+		result.setNotes(notes.get(index));
+		result.setErrors(errors.get(index));
+		result.setCategories(categories.get(index));
+		result.setTypes(types.get(index));
+		List<String> names = linkNames.get(index);
+		List<String> urls = linkUrls.get(index);
+		for (int i = 0; i < names.size(); i++) {
+			ResultLink link = new ResultLink();
+			link.setName(names.get(i));
+			link.setUrl(urls.get(i));
+			result.addLink(link);
+		}
+		List<ResultAttachment> resultAttachments = attachments.get(index);
+		if (resultAttachments != null)
+			result.getAttachments().addAll(resultAttachments);
+		return result;
+	}
+
+	@Override
+	public Iterator<Result> iterator() {
+		return new Iterator<Result>() {
+
+			private int index;
+
+			@Override
+			public boolean hasNext() {
+				return index < size;
+			}
+
+			@Override
+			public Result next() {
+				if (index >= size)
+					throw new NoSuchElementException();
+				return get(index++);
+			}
+
+		};
+	}
+
+	public void clear() {
+		size = 0;
+		dictionary.clear();
+		automated.clear();
+		labels.clear();
+		notes.clear();
+		errors.clear();
+		categories.clear();
+		types.clear();
+		linkNames.clear();
+		linkUrls.clear();
+		attachments.clear();
+		Arrays.fill(ids, null);
+		Arrays.fill(names, null);
+		Arrays.fill(descriptions, null);
+		Arrays.fill(idempotencyKeys, null);
+	}
+
+	/**
+	 * Writes all results as json array, the same as array of results written
+	 * by {@link ObjectMapper}, without creating them.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeJson(OutputStream out) throws IOException {
+		try (JsonGenerator generator = new ObjectMapper().getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+			generator.writeStartArray();
+			for (int i = 0; i < size; i++) {
+				writeJson(generator, i);
+			}
+			generator.writeEndArray();
+		}
+	}
+
+	/**
+	 * Writes result as json object.
+	 *
+	 * @param generator
+	 *            Generator with object codec for attachments
+	 * @param index
+	 * @throws IOException
+	 */
+	public void writeJson(JsonGenerator generator, int index) throws IOException {
+		checkIndex(index);
+		generator.writeStartObject();
+		generator.writeStringField("id", ids[index]);
+		writeStringField(generator, "projectId", projectIds[index]);
+		writeStringField(generator, "suite", suites[index]);
+		writeStringField(generator, "suiteId", suiteIds[index]);
+		writeStringField(generator, "job", jobs[index]);
+		writeStringField(generator, "jobId", jobIds[index]);
+		writeStringField(generator, "milestone", milestones[index]);
+		generator.writeStringField("name", names[index]);
+		generator.writeStringField("description", descriptions[index]);
+		writeStringField(generator, "environment", environments[index]);
+		writeStringField(generator, "author", authors[index]);
+		writeLongField(generator, "startedAt", startedAts[index]);
+		writeLongField(generator, "endedAt", endedAts[index]);
+		writeLongField(generator, "length", lengths[index]);
+		generator.writeStringField("status", statuses[index] == NULL ? null : TestStatus.values()[statuses[index]].name());
+		generator.writeStringField("severity",
+				severities[index] == NULL ? null : TestSeverity.values()[severities[index]].name());
+		generator.writeBooleanField("automated", automated.get(index));
+		labels.write(generator, "labels", index);
+		notes.write(generator, "notes", index);
+		errors.write(generator, "errors", index);
+		categories.write(generator, "categories", index);
+		types.write(generator, "types", index);
+		generator.writeArrayFieldStart("attachments");
+		List<ResultAttachment> resultAttachments = attachments.get(index);
+		if (resultAttachments != null) {
+			for (ResultAttachment attachment : resultAttachments) {
+				generator.writeObject(attachment);
+			}
+		}
+		generator.writeEndArray();
+		generator.writeArrayFieldStart("links");
+		for (int i = linkNames.offsets[index]; i < linkNames.offsets[index + 1]; i++) {
+			generator.writeStartObject();
+			generator.writeStringField("name", dictionary.decode(linkNames.values[i]));
+			generator.writeStringField("url", dictionary.decode(linkUrls.values[i]));
+			writeAuditFields(generator);
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+		writeAuditFields(generator);
+		generator.writeEndObject();
+	}
+
+	private void writeStringField(JsonGenerator generator, String field, int code) throws IOException {
+		generator.writeStringField(field, dictionary.decode(code));
+	}
+
+	private void writeLongField(JsonGenerator generator, String field, long value) throws IOException {
+		if (value == NULL_LONG)
+			generator.writeNullField(field);
+		else
+			generator.writeNumberField(field, value);
+	}
+
+	private void writeAuditFields(JsonGenerator generator) throws IOException {
+		// audit fields are filled by server only
+		generator.writeNullField("createdBy");
+		generator.writeNullField("updatedBy");
+		generator.writeNullField("createdAt");
+		generator.writeNullField("updatedAt");
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+	}
+
+	private void allocate(int capacity) {
+		ids = ids == null ? new String[capacity] : Arrays.copyOf(ids, capacity);
+		names = names == null ? new String[capacity] : Arrays.copyOf(names, capacity);
+		descriptions = descriptions == null ? new String[capacity] : Arrays.copyOf(descriptions, capacity);
+		idempotencyKeys = idempotencyKeys == null ? new String[capacity] : Arrays.copyOf(idempotencyKeys, capacity);
+		projectIds = grow(projectIds, capacity);
+		suites = grow(suites, capacity);
+		suiteIds = grow(suiteIds, capacity);
+		jobs = grow(jobs, capacity);
+		jobIds = grow(jobIds, capacity);
+		milestones = grow(milestones, capacity);
+		environments = grow(environments, capacity);
+		authors = grow(authors, capacity);
+		startedAts = startedAts == null ? new long[capacity] : Arrays.copyOf(startedAts, capacity);
+		endedAts = endedAts == null ? new long[capacity] : Arrays.copyOf(endedAts, capacity);
+		lengths = lengths == null ? new long[capacity] : Arrays.copyOf(lengths, capacity);
+		statuses = statuses == null ? new byte[capacity] : Arrays.copyOf(statuses, capacity);
+		severities = severities == null ? new byte[capacity] : Arrays.copyOf(severities, capacity);
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		return array == null ? new int[capacity] : Arrays.copyOf(array, capacity);
+	}
+
+	/**
+	 * Strings shared by all columns of batch.
+	 */
+	private static class Dictionary {
+
+		private final Map<String, Integer> codes = new HashMap<>();
+
+		private final List<String> values = new ArrayList<>();
+
+		int encode(String value) {
+			if (value == null)
+				return NULL;
+			Integer code = codes.get(value);
+			if (code == null) {
+				code = values.size();
+				codes.put(value, code);
+				values.add(value);
+			}
+			return code;
+		}
+
+		String decode(int code) {
+			return code == NULL ? null : values.get(code);
+		}
+
+		int size() {
+			return values.size();
+		}
+
+		void clear() {
+			codes.clear();
+			values.clear();
+		}
+
+	}
+
+	/**
+	 * List of dictionary encoded strings per result, values of result i are
+	 * between offsets i and i + 1.
+	 */
+	private class ListColumn {
+
+		private int[] offsets = new int[DEFAULT_CAPACITY + 1];
+
+		private int[] values = new int[DEFAULT_CAPACITY];
+
+		private int rows;
+
+		void add(List<String> list) {
+			int count = list == null ? 0 : list.size();
+			int start = offsets[rows];
+			if (rows + 2 > offsets.length)
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			if (start + count > values.length)
+				values = Arrays.copyOf(values, Math.max(values.length * 2, start + count));
+			for (int i = 0; i < count; i++) {
+				values[start + i] = dictionary.encode(list.get(i));
+			}
+			offsets[++rows] = start + count;
+		}
+
+		List<String> get(int row) {
+			int start = offsets[row];
+			int end = offsets[row + 1];
+			if (start == end)
+				return new ArrayList<>();
+			List<String> list = new ArrayList<>(end - start);
+			for (int i = start; i < end; i++) {
+				list.add(dictionary.decode(values[i]));
+			}
+			return list;
+		}
+
+		void write(JsonGenerator generator, String field, int row) throws IOException {
+			generator.writeArrayFieldStart(field);
+			for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+				generator.writeString(dictionary.decode(values[i]));
+			}
+			generator.writeEndArray();
+		}
+
+		void clear() {
+			rows = 0;
+		}
+
+	}
+
+	/**
+	 * Returns batch content as unmodifiable list of results created on
+	 * access.
+	 *
+	 * @return
+	 */
+	public List<Result> asList() {
+		return Collections.unmodifiableList(new AbstractList<Result>() {
+
+			@Override
+			public Result get(int index) {
+				return ResultBatch.this.get(index);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+		});
+	}
+
+}
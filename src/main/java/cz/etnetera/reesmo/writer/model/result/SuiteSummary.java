@@ -0,0 +1,197 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.model.result;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import cz.etnetera.reesmo.writer.model.Model;
+
+/**
+ * Summary of suite run results. It contains statistics of all results
+ * and counts of results which were not stored one by one.
+ */
+@JsonInclude(Include.NON_NULL)
+public class SuiteSummary implements Model {
+
+	private String projectId;
+
+	private String suite;
+
+	private String suiteId;
+
+	private String job;
+
+	private String jobId;
+
+	/**
+	 * Number of passed results which were left out by sampling.
+	 */
+	private Long omittedCount;
+
+	/**
+	 * Total length of passed results which were left out by sampling.
+	 */
+	private Long omittedLength;
+
+	private Long count;
+
+	private Map<TestStatus, Long> statusCounts;
+
+	private Map<TestSeverity, Long> severityCounts;
+
+	private Long totalLength;
+
+	private Long minLength;
+
+	private Long maxLength;
+
+	private Long lengthP50;
+
+	private Long lengthP95;
+
+	private Long lengthP99;
+
+	public String getProjectId() {
+		return projectId;
+	}
+
+	public void setProjectId(String projectId) {
+		this.projectId = projectId;
+	}
+
+	public String getSuite() {
+		return suite;
+	}
+
+	public void setSuite(String suite) {
+		this.suite = suite;
+	}
+
+	public String getSuiteId() {
+		return suiteId;
+	}
+
+	public void setSuiteId(String suiteId) {
+		this.suiteId = suiteId;
+	}
+
+	public String getJob() {
+		return job;
+	}
+
+	public void setJob(String job) {
+		this.job = job;
+	}
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public void setJobId(String jobId) {
+		this.jobId = jobId;
+	}
+
+	public Long getOmittedCount() {
+		return omittedCount;
+	}
+
+	public void setOmittedCount(Long omittedCount) {
+		this.omittedCount = omittedCount;
+	}
+
+	public Long getOmittedLength() {
+		return omittedLength;
+	}
+
+	public void setOmittedLength(Long omittedLength) {
+		this.omittedLength = omittedLength;
+	}
+
+	public Long getCount() {
+		return count;
+	}
+
+	public void setCount(Long count) {
+		this.count = count;
+	}
+
+	public Map<TestStatus, Long> getStatusCounts() {
+		return statusCounts;
+	}
+
+	public void setStatusCounts(Map<TestStatus, Long> statusCounts) {
+		this.statusCounts = statusCounts;
+	}
+
+	public Map<TestSeverity, Long> getSeverityCounts() {
+		return severityCounts;
+	}
+
+	public void setSeverityCounts(Map<TestSeverity, Long> severityCounts) {
+		this.severityCounts = severityCounts;
+	}
+
+	public Long getTotalLength() {
+		return totalLength;
+	}
+
+	public void setTotalLength(Long totalLength) {
+		this.totalLength = totalLength;
+	}
+
+	public Long getMinLength() {
+		return minLength;
+	}
+
+	public void setMinLength(Long minLength) {
+		this.minLength = minLength;
+	}
+
+	public Long getMaxLength() {
+		return maxLength;
+	}
+
+	public void setMaxLength(Long maxLength) {
+		this.maxLength = maxLength;
+	}
+
+	public Long getLengthP50() {
+		return lengthP50;
+	}
+
+	public void setLengthP50(Long lengthP50) {
+		this.lengthP50 = lengthP50;
+	}
+
+	public Long getLengthP95() {
+		return lengthP95;
+	}
+
+	public void setLengthP95(Long lengthP95) {
+		this.lengthP95 = lengthP95;
+	}
+
+	public Long getLengthP99() {
+		return lengthP99;
+	}
+
+	public void setLengthP99(Long lengthP99) {
+		this.lengthP99 = lengthP99;
+	}
+
+}
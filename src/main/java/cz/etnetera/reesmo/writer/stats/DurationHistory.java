@@ -0,0 +1,456 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.stats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+
+/**
+ * Durations of tests keyed by {@code suite#name}, each with exponentially
+ * weighted average and last {@value #RECENT_SIZE} durations for p90. Used to
+ * split tests into shards of balanced expected duration, see
+ * {@link #partition(Collection, int, Estimate)}.
+ * <p>
+ * Histories from several nodes are merged per test by keeping the entry
+ * updated last. Each test of a sharded run runs on one node, so merging
+ * node histories which started from the same history is exact, and merging
+ * is idempotent and order independent. File format is gzipped binary, about
+ * 30 bytes per test plus its key.
+ */
+public class DurationHistory {
+
+	public static final double DEFAULT_ALPHA = 0.3;
+
+	public static final int RECENT_SIZE = 20;
+
+	/**
+	 * Expected duration of tests without history when nothing is known.
+	 */
+	public static final long DEFAULT_DURATION = 1000;
+
+	protected static final int MAGIC = 0x52444831;
+
+	public enum Estimate {
+		/**
+		 * Exponentially weighted average.
+		 */
+		MEAN,
+		/**
+		 * 90th percentile of recent durations, pessimistic for flaky timing.
+		 */
+		P90;
+
+		public static Estimate valueOfString(String value) {
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	protected final double alpha;
+
+	private final NavigableMap<String, Entry> entries = new TreeMap<>();
+
+	public DurationHistory() {
+		this(DEFAULT_ALPHA);
+	}
+
+	/**
+	 * @param alpha
+	 *            Weight of new duration in average, between 0 and 1
+	 */
+	public DurationHistory(double alpha) {
+		this.alpha = Math.max(0.01, Math.min(1, alpha));
+	}
+
+	/**
+	 * Returns key of test, the same as JUnit method selector.
+	 *
+	 * @param suite
+	 * @param name
+	 * @return
+	 */
+	public static String getKey(String suite, String name) {
+		return suite == null || suite.isEmpty() ? name : suite + "#" + name;
+	}
+
+	/**
+	 * Records duration of result, skipped results and results without
+	 * duration are ignored.
+	 *
+	 * @param result
+	 */
+	public void record(Result result) {
+		if (result == null || result.getName() == null || TestStatus.SKIPPED.equals(result.getStatus()))
+			return;
+		Long length = result.getLength();
+		if (length == null && result.getStartedAt() != null && result.getEndedAt() != null)
+			length = result.getEndedAt().getTime() - result.getStartedAt().getTime();
+		if (length == null || length < 0)
+			return;
+		long at = result.getEndedAt() != null ? result.getEndedAt().getTime() : System.currentTimeMillis();
+		record(getKey(result.getSuite(), result.getName()), length, at);
+	}
+
+	/**
+	 * Records duration of test.
+	 *
+	 * @param key
+	 * @param length
+	 *            Duration in milliseconds
+	 * @param at
+	 *            Time of test, entry is updated only by newer durations
+	 */
+	public synchronized void record(String key, long length, long at) {
+		Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+		entry.add((int) Math.min(Integer.MAX_VALUE, length), at, alpha);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns expected duration of test or sum of expected durations of
+	 * tests of suite when key is suite name.
+	 *
+	 * @param key
+	 * @param estimate
+	 * @return Duration in milliseconds or null when nothing is known
+	 */
+	public synchronized Long getExpectedDuration(String key, Estimate estimate) {
+		Entry entry = entries.get(key);
+		if (entry != null)
+			return entry.estimate(estimate);
+		// "$" follows "#", so the range holds exactly tests of suite
+		Map<String, Entry> suite = entries.subMap(key + "#", key + "$");
+		if (suite.isEmpty())
+			return null;
+		long sum = 0;
+		for (Entry test : suite.values()) {
+			sum += test.estimate(estimate);
+		}
+		return sum;
+	}
+
+	public synchronized long getCount(String key) {
+		Entry entry = entries.get(key);
+		return entry == null ? 0 : entry.count;
+	}
+
+	/**
+	 * Merges other history into this one, entry updated later wins.
+	 *
+	 * @param other
+	 */
+	public void merge(DurationHistory other) {
+		List<Map.Entry<String, Entry>> copies = new ArrayList<>();
+		synchronized (other) {
+			for (Map.Entry<String, Entry> entry : other.entries.entrySet()) {
+				copies.add(new AbstractMap.SimpleEntry<>(entry.getKey(), entry.getValue().copy()));
+			}
+		}
+		synchronized (this) {
+			for (Map.Entry<String, Entry> copy : copies) {
+				entries.merge(copy.getKey(), copy.getValue(), (a, b) -> a.isNewerThan(b) ? a : b);
+			}
+		}
+	}
+
+	/**
+	 * Splits tests into shards with balanced expected duration, longest
+	 * tests are placed first, each to the shard with the least expected
+	 * duration. Tests without history are expected to take median of known
+	 * tests.
+	 *
+	 * @param tests
+	 *            Test or suite keys
+	 * @param shards
+	 * @param estimate
+	 * @return Shards in order, some may be empty when there are less tests
+	 */
+	public List<Shard> partition(Collection<String> tests, int shards, Estimate estimate) {
+		if (shards < 1)
+			throw new IllegalArgumentException("Number of shards must be positive: " + shards);
+		List<String> keys = new ArrayList<>(new LinkedHashSet<>(tests));
+		Map<String, Long> durations = new TreeMap<>();
+		List<Long> known = new ArrayList<>();
+		for (String key : keys) {
+			Long duration = getExpectedDuration(key, estimate);
+			durations.put(key, duration);
+			if (duration != null)
+				known.add(duration);
+		}
+		long unknown = DEFAULT_DURATION;
+		if (!known.isEmpty()) {
+			known.sort(null);
+			unknown = known.get(known.size() / 2);
+		}
+		for (Map.Entry<String, Long> entry : durations.entrySet()) {
+			if (entry.getValue() == null)
+				entry.setValue(unknown);
+		}
+		keys.sort(Comparator.comparing((String key) -> durations.get(key)).reversed()
+				.thenComparing(Comparator.naturalOrder()));
+		List<Shard> result = new ArrayList<>();
+		PriorityQueue<Shard> queue = new PriorityQueue<>(
+				Comparator.comparingLong((Shard shard) -> shard.expectedDuration).thenComparingInt(shard -> shard.index));
+		for (int i = 0; i < shards; i++) {
+			Shard shard = new Shard(i);
+			result.add(shard);
+			queue.add(shard);
+		}
+		for (String key : keys) {
+			Shard shard = queue.poll();
+			shard.tests.add(key);
+			shard.expectedDuration += durations.get(key);
+			queue.add(shard);
+		}
+		return result;
+	}
+
+	/**
+	 * Loads history from file, empty history is returned when file does not
+	 * exist.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static DurationHistory load(File file) throws IOException {
+		DurationHistory history = new DurationHistory();
+		if (file.isFile()) {
+			try (InputStream in = Files.newInputStream(file.toPath())) {
+				history.read(in);
+			}
+		}
+		return history;
+	}
+
+	/**
+	 * Merges history stored in file into this one and writes the result
+	 * back. File is locked, so processes sharing it do not lose updates of
+	 * each other.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	@SuppressWarnings("try")
+	public void save(File file) throws IOException {
+		File lockFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".lock");
+		try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE); FileLock lock = channel.lock()) {
+			merge(load(file));
+			File tempFile = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".tmp");
+			try {
+				try (OutputStream out = Files.newOutputStream(tempFile.toPath())) {
+					write(out);
+				}
+				try {
+					Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				Files.deleteIfExists(tempFile.toPath());
+			}
+		}
+	}
+
+	public synchronized void write(OutputStream output) throws IOException {
+		GZIPOutputStream gzip = new GZIPOutputStream(output);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(gzip));
+		out.writeInt(MAGIC);
+		out.writeInt(entries.size());
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			out.writeUTF(entry.getKey());
+			entry.getValue().write(out);
+		}
+		out.flush();
+		gzip.finish();
+	}
+
+	public synchronized void read(InputStream input) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(input)));
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a duration history");
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			String key = in.readUTF();
+			Entry entry = Entry.read(in);
+			entries.merge(key, entry, (a, b) -> a.isNewerThan(b) ? a : b);
+		}
+	}
+
+	/**
+	 * Tests assigned to one shard.
+	 */
+	public static class Shard {
+
+		private final int index;
+
+		private final List<String> tests = new ArrayList<>();
+
+		private long expectedDuration;
+
+		private Shard(int index) {
+			this.index = index;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public List<String> getTests() {
+			return tests;
+		}
+
+		public long getExpectedDuration() {
+			return expectedDuration;
+		}
+
+	}
+
+	/**
+	 * History of one test.
+	 */
+	private static class Entry {
+
+		private long count;
+
+		private double average;
+
+		private long updatedAt;
+
+		/**
+		 * Ring buffer of recent durations, the oldest is overwritten.
+		 */
+		private int[] recent = new int[0];
+
+		private int next;
+
+		private void add(int length, long at, double alpha) {
+			average = count == 0 ? length : average + (length - average) * alpha;
+			count++;
+			updatedAt = Math.max(updatedAt, at);
+			if (recent.length < RECENT_SIZE) {
+				recent = Arrays.copyOf(recent, recent.length + 1);
+				recent[recent.length - 1] = length;
+			} else {
+				recent[next] = length;
+				next = (next + 1) % RECENT_SIZE;
+			}
+		}
+
+		private long estimate(Estimate estimate) {
+			if (estimate == Estimate.P90 && recent.length > 0) {
+				int[] sorted = recent.clone();
+				Arrays.sort(sorted);
+				return sorted[(int) Math.ceil(0.9 * sorted.length) - 1];
+			}
+			return Math.round(average);
+		}
+
+		private boolean isNewerThan(Entry other) {
+			if (updatedAt != other.updatedAt)
+				return updatedAt > other.updatedAt;
+			return count >= other.count;
+		}
+
+		private Entry copy() {
+			Entry copy = new Entry();
+			copy.count = count;
+			copy.average = average;
+			copy.updatedAt = updatedAt;
+			copy.recent = recent.clone();
+			copy.next = next;
+			return copy;
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeLong(count);
+			out.writeFloat((float) average);
+			out.writeLong(updatedAt);
+			out.writeByte(recent.length);
+			// oldest first, so order survives round trip
+			for (int i = 0; i < recent.length; i++) {
+				writeVarInt(out, recent[(next + i) % recent.length]);
+			}
+		}
+
+		private static Entry read(DataInputStream in) throws IOException {
+			Entry entry = new Entry();
+			entry.count = in.readLong();
+			entry.average = in.readFloat();
+			entry.updatedAt = in.readLong();
+			int size = in.readUnsignedByte();
+			if (size > RECENT_SIZE)
+				throw new IOException("Corrupted duration history");
+			entry.recent = new int[size];
+			for (int i = 0; i < size; i++) {
+				entry.recent[i] = readVarInt(in);
+			}
+			return entry;
+		}
+
+		private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+			while ((value & ~0x7f) != 0) {
+				out.writeByte((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			out.writeByte(value);
+		}
+
+		private static int readVarInt(DataInputStream in) throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = in.readUnsignedByte();
+				value |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new EOFException("Malformed duration");
+		}
+
+	}
+
+}
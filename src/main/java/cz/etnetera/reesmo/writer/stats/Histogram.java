@@ -0,0 +1,135 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread safe histogram of non negative values with constant memory. Values
+ * are counted in logarithmic buckets, each power of two is split into 32
+ * linear sub buckets, so percentiles are precise to about 3 %.
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder total = new LongAdder();
+
+	private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+
+	private final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		buckets.incrementAndGet(getBucket(value));
+		count.increment();
+		total.add(value);
+		min.accumulate(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Adds values recorded by other histogram.
+	 * 
+	 * @param histogram
+	 */
+	public void merge(Histogram histogram) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long bucket = histogram.buckets.get(i);
+			if (bucket > 0)
+				buckets.addAndGet(i, bucket);
+		}
+		count.add(histogram.getCount());
+		total.add(histogram.getTotal());
+		if (histogram.getCount() > 0) {
+			min.accumulate(histogram.getMin());
+			max.accumulate(histogram.getMax());
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getTotal() {
+		return total.sum();
+	}
+
+	public long getMin() {
+		return getCount() == 0 ? 0 : min.get();
+	}
+
+	public long getMax() {
+		return getCount() == 0 ? 0 : max.get();
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) getTotal() / count;
+	}
+
+	/**
+	 * @param percentile
+	 *            Number between 0 and 100
+	 * @return Value below which given percentage of values falls, 0 if
+	 *         histogram is empty
+	 */
+	public long getPercentile(double percentile) {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += buckets.get(i);
+		}
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				long value = (getBucketStart(i) + getBucketStart(i + 1) - 1) / 2;
+				return Math.max(getMin(), Math.min(getMax(), value));
+			}
+		}
+		return getMax();
+	}
+
+	private static int getBucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long getBucketStart(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+	}
+
+}
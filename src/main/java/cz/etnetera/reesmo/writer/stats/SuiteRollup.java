@@ -0,0 +1,217 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.stats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.model.result.SuiteSummary;
+import cz.etnetera.reesmo.writer.model.result.TestSeverity;
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+
+/**
+ * Incrementally aggregates results per suite run, i.e. per project key,
+ * project id, suite and suite id. Memory used by each suite run does not
+ * depend on number of its results.
+ */
+public class SuiteRollup {
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final Map<List<String>, SuiteStatistics> statistics = new ConcurrentHashMap<>();
+
+	/**
+	 * Counts result in suite run statistics.
+	 * 
+	 * @param projectKey
+	 * @param result
+	 * @param length
+	 */
+	public void add(String projectKey, Result result, long length) {
+		lock.readLock().lock();
+		try {
+			getStatistics(projectKey, result).add(result, length);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Counts result which was not stored.
+	 * 
+	 * @param projectKey
+	 * @param result
+	 * @param length
+	 */
+	public void addOmitted(String projectKey, Result result, long length) {
+		lock.readLock().lock();
+		try {
+			getStatistics(projectKey, result).addOmitted(length);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+		return statistics.isEmpty();
+	}
+
+	/**
+	 * Removes and returns statistics collected so far.
+	 * 
+	 * @return
+	 */
+	public List<SuiteStatistics> drain() {
+		lock.writeLock().lock();
+		try {
+			List<SuiteStatistics> drained = new ArrayList<>(statistics.values());
+			statistics.clear();
+			return drained;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private SuiteStatistics getStatistics(String projectKey, Result result) {
+		List<String> key = Arrays.asList(projectKey, result.getProjectId(), result.getSuite(), result.getSuiteId());
+		return statistics.computeIfAbsent(key, k -> new SuiteStatistics(projectKey, result));
+	}
+
+	public static class SuiteStatistics {
+
+		private final String projectKey;
+
+		private final String projectId;
+
+		private final String suite;
+
+		private final String suiteId;
+
+		private final String job;
+
+		private final String jobId;
+
+		private final LongAdder[] statusCounts = createAdders(TestStatus.values().length);
+
+		private final LongAdder[] severityCounts = createAdders(TestSeverity.values().length);
+
+		private final Histogram lengths = new Histogram();
+
+		private final LongAdder omittedCount = new LongAdder();
+
+		private final LongAdder omittedLength = new LongAdder();
+
+		private SuiteStatistics(String projectKey, Result result) {
+			this.projectKey = projectKey;
+			this.projectId = result.getProjectId();
+			this.suite = result.getSuite();
+			this.suiteId = result.getSuiteId();
+			this.job = result.getJob();
+			this.jobId = result.getJobId();
+		}
+
+		public String getProjectKey() {
+			return projectKey;
+		}
+
+		public Histogram getLengths() {
+			return lengths;
+		}
+
+		public long getStatusCount(TestStatus status) {
+			return statusCounts[status.ordinal()].sum();
+		}
+
+		public long getSeverityCount(TestSeverity severity) {
+			return severityCounts[severity.ordinal()].sum();
+		}
+
+		public long getOmittedCount() {
+			return omittedCount.sum();
+		}
+
+		public long getOmittedLength() {
+			return omittedLength.sum();
+		}
+
+		/**
+		 * @return Summary with collected values, values which were not
+		 *         collected are null
+		 */
+		public SuiteSummary toSummary() {
+			SuiteSummary summary = new SuiteSummary();
+			summary.setProjectId(projectId);
+			summary.setSuite(suite);
+			summary.setSuiteId(suiteId);
+			summary.setJob(job);
+			summary.setJobId(jobId);
+			if (getOmittedCount() > 0) {
+				summary.setOmittedCount(getOmittedCount());
+				summary.setOmittedLength(getOmittedLength());
+			}
+			if (lengths.getCount() > 0) {
+				Map<TestStatus, Long> statuses = new EnumMap<>(TestStatus.class);
+				for (TestStatus status : TestStatus.values()) {
+					statuses.put(status, getStatusCount(status));
+				}
+				Map<TestSeverity, Long> severities = new EnumMap<>(TestSeverity.class);
+				for (TestSeverity severity : TestSeverity.values()) {
+					severities.put(severity, getSeverityCount(severity));
+				}
+				summary.setCount(lengths.getCount());
+				summary.setStatusCounts(statuses);
+				summary.setSeverityCounts(severities);
+				summary.setTotalLength(lengths.getTotal());
+				summary.setMinLength(lengths.getMin());
+				summary.setMaxLength(lengths.getMax());
+				summary.setLengthP50(lengths.getPercentile(50));
+				summary.setLengthP95(lengths.getPercentile(95));
+				summary.setLengthP99(lengths.getPercentile(99));
+			}
+			return summary;
+		}
+
+		private void add(Result result, long length) {
+			if (result.getStatus() != null)
+				statusCounts[result.getStatus().ordinal()].increment();
+			if (result.getSeverity() != null)
+				severityCounts[result.getSeverity().ordinal()].increment();
+			lengths.record(length);
+		}
+
+		private void addOmitted(long length) {
+			omittedCount.increment();
+			omittedLength.add(length);
+		}
+
+		private static LongAdder[] createAdders(int count) {
+			LongAdder[] adders = new LongAdder[count];
+			for (int i = 0; i < count; i++) {
+				adders[i] = new LongAdder();
+			}
+			return adders;
+		}
+
+	}
+
+}
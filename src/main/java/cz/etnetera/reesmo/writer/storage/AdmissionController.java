@@ -0,0 +1,318 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client side admission control of requests. Token bucket limits request
+ * rate and adaptive concurrency limit limits requests in flight. The limit
+ * follows gradient of latency: it grows while short term latency stays
+ * close to long term latency and shrinks when requests start queueing on
+ * server. Drops (errors, 429, 5xx) halve the limit, so clients back off
+ * before server gets overloaded.
+ */
+public class AdmissionController {
+
+	public static final int DEFAULT_MAX_LIMIT = 64;
+
+	protected static final int INITIAL_LIMIT = 4;
+
+	/**
+	 * Short term latency can exceed long term one by this factor before
+	 * limit shrinks.
+	 */
+	protected static final double LATENCY_TOLERANCE = 1.5;
+
+	protected static final double DROP_DECREASE_FACTOR = 0.5;
+
+	protected static final double SHORT_LATENCY_ALPHA = 0.2;
+
+	protected static final double LONG_LATENCY_ALPHA = 0.01;
+
+	protected static final double LIMIT_SMOOTHING = 0.05;
+
+	protected static final long MAX_PAUSE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	public enum Outcome {
+		/**
+		 * Request was processed, latency is sampled.
+		 */
+		SUCCESS,
+		/**
+		 * Request was rejected or failed because of server or network.
+		 */
+		DROPPED,
+		/**
+		 * Request failed on client side, limit is not changed.
+		 */
+		IGNORED
+	}
+
+	protected final double rate;
+
+	protected final double burst;
+
+	protected final boolean adaptive;
+
+	protected final int maxLimit;
+
+	private double tokens;
+
+	private long refilledAt = System.nanoTime();
+
+	private double limit;
+
+	private int inFlight;
+
+	private double shortLatency;
+
+	private double longLatency;
+
+	private long decreasedAt;
+
+	private long pausedUntil;
+
+	private long admitted;
+
+	private long dropped;
+
+	private long throttledNanos;
+
+	/**
+	 * @param rate
+	 *            Requests per second, zero or less for no rate limit
+	 * @param adaptive
+	 *            Adapt concurrency limit to latency and drops, otherwise it
+	 *            is fixed to max limit
+	 * @param maxLimit
+	 *            Max requests in flight
+	 */
+	public AdmissionController(double rate, boolean adaptive, int maxLimit) {
+		this.rate = Math.max(0, rate);
+		this.burst = Math.max(1, this.rate);
+		this.adaptive = adaptive;
+		this.maxLimit = Math.max(1, maxLimit);
+		this.tokens = burst;
+		this.limit = adaptive ? Math.min(INITIAL_LIMIT, this.maxLimit) : this.maxLimit;
+	}
+
+	/**
+	 * Blocks until request can be sent.
+	 *
+	 * @return Permit which must be released when request is done
+	 * @throws StorageException
+	 *             When interrupted
+	 */
+	public synchronized Permit acquire() throws StorageException {
+		long start = System.nanoTime();
+		try {
+			while (true) {
+				long now = System.nanoTime();
+				long waitNanos;
+				if (pausedUntil - now > 0) {
+					waitNanos = pausedUntil - now;
+				} else if (inFlight >= (int) limit) {
+					waitNanos = 0;
+				} else if (rate > 0) {
+					tokens = Math.min(burst, tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+					refilledAt = now;
+					if (tokens >= 1) {
+						tokens--;
+						break;
+					}
+					waitNanos = (long) Math.ceil((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate);
+				} else {
+					break;
+				}
+				if (waitNanos > 0)
+					wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+				else
+					wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while waiting for request admission", e);
+		}
+		long now = System.nanoTime();
+		inFlight++;
+		admitted++;
+		throttledNanos += now - start;
+		return new Permit(now);
+	}
+
+	/**
+	 * Stops admitting requests for given time, used when server asks client
+	 * to retry later.
+	 *
+	 * @param millis
+	 */
+	public synchronized void pause(long millis) {
+		long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(millis, MAX_PAUSE_MILLIS));
+		if (until - pausedUntil > 0) {
+			pausedUntil = until;
+			getLogger().info("Requests paused for " + millis + " ms");
+		}
+	}
+
+	protected synchronized void release(long latency, Outcome outcome) {
+		int used = inFlight--;
+		if (outcome == Outcome.DROPPED)
+			dropped++;
+		if (adaptive && outcome == Outcome.SUCCESS) {
+			shortLatency = shortLatency == 0 ? latency : shortLatency + (latency - shortLatency) * SHORT_LATENCY_ALPHA;
+			longLatency = longLatency == 0 ? latency : longLatency + (latency - longLatency) * LONG_LATENCY_ALPHA;
+			// long term latency follows faster when load went away
+			if (longLatency > shortLatency * 2)
+				longLatency *= 0.95;
+			double gradient = Math.max(0.5, Math.min(1.0, LATENCY_TOLERANCE * longLatency / shortLatency));
+			// grow only when limit is really used
+			double queue = used >= limit / 2 ? Math.sqrt(limit) : 0;
+			double newLimit = limit * gradient + queue;
+			limit = Math.max(1, Math.min(maxLimit, limit * (1 - LIMIT_SMOOTHING) + newLimit * LIMIT_SMOOTHING));
+		} else if (adaptive && outcome == Outcome.DROPPED) {
+			long now = System.nanoTime();
+			// decrease at most once per latency so drops of one window do
+			// not decrease it repeatedly
+			if (now - decreasedAt > Math.max(latency, (long) longLatency)) {
+				limit = Math.max(1, limit * DROP_DECREASE_FACTOR);
+				decreasedAt = now;
+				getLogger().debug("Concurrency limit decreased to " + (int) limit);
+			}
+		}
+		notifyAll();
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	public int getMaxLimit() {
+		return maxLimit;
+	}
+
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public synchronized double getAvailableTokens() {
+		return rate > 0 ? tokens : Double.POSITIVE_INFINITY;
+	}
+
+	public synchronized long getAdmitted() {
+		return admitted;
+	}
+
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns total time requests waited for admission.
+	 *
+	 * @return
+	 */
+	public synchronized long getThrottledMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(throttledNanos);
+	}
+
+	/**
+	 * Returns short term average latency of successful requests.
+	 *
+	 * @return
+	 */
+	public synchronized double getLatencyMillis() {
+		return shortLatency / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * Returns long term average latency of successful requests, the
+	 * baseline for limit.
+	 *
+	 * @return
+	 */
+	public synchronized double getBaselineLatencyMillis() {
+		return longLatency / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * Returns snapshot of limiter state for metrics export.
+	 *
+	 * @return
+	 */
+	public synchronized Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<>();
+		metrics.put("limit", getLimit());
+		metrics.put("maxLimit", maxLimit);
+		metrics.put("inFlight", inFlight);
+		metrics.put("rate", rate);
+		metrics.put("availableTokens", rate > 0 ? tokens : null);
+		metrics.put("admitted", admitted);
+		metrics.put("dropped", dropped);
+		metrics.put("throttledMillis", getThrottledMillis());
+		metrics.put("latencyMillis", getLatencyMillis());
+		metrics.put("baselineLatencyMillis", getBaselineLatencyMillis());
+		return metrics;
+	}
+
+	protected Logger getLogger() {
+		return LoggerFactory.getLogger(getClass());
+	}
+
+	/**
+	 * Admission of one request, released once.
+	 */
+	public class Permit implements AutoCloseable {
+
+		private final long admittedAt;
+
+		private boolean released;
+
+		protected Permit(long admittedAt) {
+			this.admittedAt = admittedAt;
+		}
+
+		public void release(Outcome outcome) {
+			if (released)
+				return;
+			released = true;
+			AdmissionController.this.release(System.nanoTime() - admittedAt, outcome);
+		}
+
+		/**
+		 * Releases permit as {@link Outcome#IGNORED} if it was not released
+		 * yet.
+		 */
+		@Override
+		public void close() {
+			release(Outcome.IGNORED);
+		}
+
+	}
+
+}
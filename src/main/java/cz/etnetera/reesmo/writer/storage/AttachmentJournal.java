@@ -0,0 +1,181 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Small per result journal of stored attachments. It is named by result
+ * idempotency key, so when the same result is stored again, already created
+ * result and stored attachments are reused and only missing attachments are
+ * sent. Attachments may be recorded from more threads. Journals of results
+ * which were never completed are pruned after {@link #MAX_AGE_MILLIS}.
+ */
+public class AttachmentJournal {
+
+	/**
+	 * Incomplete result can be resumed within a week.
+	 */
+	public static final long MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+	protected static final String SUFFIX = ".journal";
+
+	protected static final String RESULT = "R ";
+
+	protected static final String ATTACHMENT = "A ";
+
+	protected static final String MARK = "M ";
+
+	protected final File file;
+
+	private String resultId;
+
+	private String markId;
+
+	private final Set<String> stored = new HashSet<>();
+
+	private final List<String> failed = new ArrayList<>();
+
+	protected AttachmentJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Opens journal of given result, existing journal is loaded.
+	 *
+	 * @param dir
+	 * @param idempotencyKey
+	 * @return
+	 * @throws StorageException
+	 */
+	public static AttachmentJournal open(File dir, String idempotencyKey) throws StorageException {
+		AttachmentJournal journal = new AttachmentJournal(
+				new File(dir, idempotencyKey.replaceAll("[^A-Za-z0-9._-]", "_") + SUFFIX));
+		if (journal.file.isFile()) {
+			try {
+				for (String line : Files.readAllLines(journal.file.toPath(), StandardCharsets.UTF_8)) {
+					if (line.startsWith(RESULT))
+						journal.resultId = line.substring(RESULT.length());
+					else if (line.startsWith(ATTACHMENT))
+						journal.stored.add(line.substring(ATTACHMENT.length()));
+					else if (line.startsWith(MARK))
+						journal.markId = line.substring(MARK.length());
+				}
+			} catch (IOException e) {
+				throw new StorageException("Unable to read attachment journal " + journal.file, e);
+			}
+		}
+		return journal;
+	}
+
+	/**
+	 * Deletes journals in directory not modified for given time.
+	 *
+	 * @param dir
+	 * @param maxAgeMillis
+	 * @return Number of deleted journals
+	 */
+	public static int prune(File dir, long maxAgeMillis) {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		if (files == null)
+			return 0;
+		long limit = System.currentTimeMillis() - maxAgeMillis;
+		int deleted = 0;
+		for (File file : files) {
+			if (file.lastModified() < limit && file.delete())
+				deleted++;
+		}
+		return deleted;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns id of result created before or null.
+	 *
+	 * @return
+	 */
+	public synchronized String getResultId() {
+		return resultId;
+	}
+
+	public synchronized void recordResult(String resultId) throws StorageException {
+		append(RESULT + resultId);
+		this.resultId = resultId;
+	}
+
+	/**
+	 * Returns id of incomplete mark attachment stored before or null.
+	 *
+	 * @return
+	 */
+	public synchronized String getMarkId() {
+		return markId;
+	}
+
+	public synchronized void recordMark(String markId) throws StorageException {
+		append(MARK + markId);
+		this.markId = markId;
+	}
+
+	public synchronized boolean isStored(String attachmentKey) {
+		return stored.contains(attachmentKey);
+	}
+
+	public synchronized void recordAttachment(String attachmentKey) throws StorageException {
+		append(ATTACHMENT + attachmentKey);
+		stored.add(attachmentKey);
+	}
+
+	/**
+	 * Remembers attachment which could not be stored in this run. Failures
+	 * are not written, they are retried next time.
+	 *
+	 * @param attachmentKey
+	 */
+	public synchronized void recordFailure(String attachmentKey) {
+		failed.add(attachmentKey);
+	}
+
+	public synchronized List<String> getFailed() {
+		return Collections.unmodifiableList(new ArrayList<>(failed));
+	}
+
+	public void delete() {
+		file.delete();
+	}
+
+	private void append(String line) throws StorageException {
+		file.getParentFile().mkdirs();
+		try (OutputStream output = new FileOutputStream(file, true)) {
+			output.write((line.replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new StorageException("Unable to write attachment journal " + file, e);
+		}
+	}
+
+}
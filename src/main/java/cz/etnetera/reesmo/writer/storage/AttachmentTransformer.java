@@ -0,0 +1,42 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.util.List;
+
+import cz.etnetera.reesmo.writer.model.result.Result;
+
+/**
+ * Transforms result attachments before they are uploaded or copied by
+ * storage. Files created by transformer should be returned as
+ * {@link TemporaryFile} so storage deletes them when they are stored.
+ */
+public interface AttachmentTransformer extends AutoCloseable {
+
+	/**
+	 * Transform attachments of given result.
+	 * 
+	 * @param result
+	 * @param attachments
+	 * @return Attachments to store instead of given ones
+	 * @throws StorageException
+	 */
+	List<Object> transform(Result result, List<Object> attachments) throws StorageException;
+
+	@Override
+	default void close() {
+	}
+
+}
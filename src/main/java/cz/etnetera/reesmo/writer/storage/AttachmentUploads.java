@@ -0,0 +1,75 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.io.File;
+import java.util.List;
+
+import cz.etnetera.reesmo.writer.model.result.Result;
+
+/**
+ * Attachments of result created without them, they are stored one by one,
+ * possibly from more threads. See
+ * {@link Storage#createResultForUploads(String, Result)}.
+ */
+public interface AttachmentUploads {
+
+	/**
+	 * @return Created result holding id
+	 */
+	Result getResult();
+
+	/**
+	 * Stores one attachment of result.
+	 *
+	 * @param attachment
+	 * @param key
+	 *            Key of attachment unique within result, see
+	 *            {@link #getKey(Object, int)}
+	 * @throws StorageException
+	 */
+	void upload(Object attachment, String key) throws StorageException;
+
+	/**
+	 * Called once all attachments were stored or given up.
+	 *
+	 * @param missing
+	 *            Keys of attachments which were given up
+	 */
+	void finish(List<String> missing);
+
+	/**
+	 * Returns key identifying attachment within result, attachments with
+	 * the same name from different directories get different keys.
+	 *
+	 * @param attachment
+	 * @param index
+	 *            Index of attachment in attachments of result
+	 * @return
+	 */
+	static String getKey(Object attachment, int index) {
+		String name;
+		if (attachment instanceof ExtendedFile) {
+			ExtendedFile file = (ExtendedFile) attachment;
+			name = file.getPath() == null ? file.getFile().getName() : file.getPath();
+		} else if (attachment instanceof File) {
+			name = ((File) attachment).getName();
+		} else {
+			name = String.valueOf(attachment);
+		}
+		return index + ":" + name;
+	}
+
+}
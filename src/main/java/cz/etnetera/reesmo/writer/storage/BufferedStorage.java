@@ -0,0 +1,687 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.trace.Phase;
+import cz.etnetera.reesmo.writer.trace.WriterSpan;
+import cz.etnetera.reesmo.writer.trace.WriterTrace;
+
+/**
+ * Accepts results immediately and stores them into wrapped storage on
+ * background thread. Pending results are kept in memory until their
+ * serialized size reaches given budget, following results are appended to
+ * spill file and replayed in the same order when wrapped storage catches up.
+ * Results which were not stored on close stay in spill file and are replayed
+ * by next buffered storage using the same file.
+ * <p>
+ * Result which fails permanently (see {@link PermanentStorageException}) or
+ * exhausts max attempts is moved to dead letter file, so it does not block
+ * following results. Dead letter file has the same format as spill file, it
+ * can be replayed by using it as spill file.
+ */
+public class BufferedStorage extends Storage {
+
+	public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+	/**
+	 * With max retry delay it is about 20 minutes of failing storage.
+	 */
+	public static final int DEFAULT_MAX_ATTEMPTS = 50;
+
+	protected static final long RETRY_DELAY_MIN = 100;
+
+	protected static final long RETRY_DELAY_MAX = 30000;
+
+	protected final Storage storage;
+
+	protected final long budget;
+
+	protected final File spillFile;
+
+	protected int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	protected File deadLetterFile;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final Object lock = new Object();
+
+	private final Deque<Entry> entries = new ArrayDeque<>();
+
+	private final RandomAccessFile spill;
+
+	private final Thread worker;
+
+	private long bufferedBytes;
+
+	private long spilledBytes;
+
+	private int spilledCount;
+
+	private long spillPosition;
+
+	private long headAddedAt;
+
+	/**
+	 * Results recovered from spill file are pending since this storage was
+	 * created, not since they were added before restart.
+	 */
+	private final long openedAt = System.currentTimeMillis();
+
+	private int attempts;
+
+	private long deadLetterCount;
+
+	private boolean delivering;
+
+	private boolean closed;
+
+	public BufferedStorage(Storage storage, long budget, File spillFile) throws StorageException {
+		if (storage == null)
+			throw new StorageException("Buffered storage is null");
+		if (budget < 0)
+			throw new StorageException("Buffer budget is negative: " + budget);
+		try {
+			if (spillFile == null) {
+				spillFile = File.createTempFile("reesmo-buffer-", ".spill");
+				spillFile.deleteOnExit();
+			}
+			this.spill = new RandomAccessFile(spillFile, "rw");
+			recoverSpill();
+		} catch (IOException e) {
+			throw new StorageException("Unable to open buffer spill file: " + spillFile, e);
+		}
+		this.storage = storage;
+		this.budget = budget;
+		this.spillFile = spillFile;
+		this.deadLetterFile = new File(spillFile.getPath() + ".dead");
+		this.worker = new Thread(this::deliverEntries, "reesmo-buffer");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	public Storage getStorage() {
+		return storage;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Set number of attempts to store result before it is moved to dead
+	 * letter file, 0 retries it until it is stored.
+	 * 
+	 * @param maxAttempts
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = Math.max(0, maxAttempts);
+	}
+
+	public File getDeadLetterFile() {
+		return deadLetterFile;
+	}
+
+	/**
+	 * Set file which results failing permanently are appended to, spill
+	 * file with {@code .dead} suffix by default.
+	 * 
+	 * @param deadLetterFile
+	 */
+	public void setDeadLetterFile(File deadLetterFile) {
+		this.deadLetterFile = deadLetterFile;
+	}
+
+	/**
+	 * @return Number of results moved to dead letter file
+	 */
+	public long getDeadLetterCount() {
+		synchronized (lock) {
+			return deadLetterCount;
+		}
+	}
+
+	/**
+	 * @return Serialized size of results waiting in memory
+	 */
+	public long getBufferedBytes() {
+		synchronized (lock) {
+			return bufferedBytes;
+		}
+	}
+
+	/**
+	 * @return Serialized size of results waiting in spill file
+	 */
+	public long getSpilledBytes() {
+		synchronized (lock) {
+			return spilledBytes;
+		}
+	}
+
+	/**
+	 * @return Number of results waiting to be stored
+	 */
+	public int getPendingCount() {
+		synchronized (lock) {
+			return entries.size() + spilledCount;
+		}
+	}
+
+	/**
+	 * @return Milliseconds since the oldest pending result was accepted, 0 if
+	 *         nothing is pending
+	 */
+	public long getReplayLag() {
+		synchronized (lock) {
+			if (entries.isEmpty() && spilledCount == 0)
+				return 0;
+			return Math.max(0, System.currentTimeMillis() - headAddedAt);
+		}
+	}
+
+	/**
+	 * Accepts result for storing. Result is prepared and validated
+	 * immediately, so invalid results still fail on caller thread. Returned
+	 * result has no id as it is not stored yet.
+	 */
+	@Override
+	public Result addResult(String projectKey, Result result, List<Object> attachments) throws StorageException {
+		prepareResultBeforeCreate(result);
+		validateResult(result);
+		attachments = resolveAttachments(result, attachments);
+		Entry entry = new Entry();
+		entry.setProjectKey(projectKey);
+		entry.setIdempotencyKey(result.getIdempotencyKey());
+		entry.setAddedAt(System.currentTimeMillis());
+		entry.setResult(result);
+		if (attachments != null) {
+			List<AttachmentEntry> attachmentEntries = new ArrayList<>();
+			for (Object attachment : attachments) {
+				attachmentEntries.add(AttachmentEntry.of(attachment));
+			}
+			entry.setAttachments(attachmentEntries);
+		}
+		byte[] data;
+		try (WriterSpan span = WriterTrace.begin(Phase.SERIALIZE, result.getName(), projectKey)) {
+			data = mapper.writeValueAsBytes(entry);
+			span.bytes(data.length).success();
+		} catch (IOException e) {
+			throw new StorageException("Unable to serialize buffered result", e);
+		}
+		synchronized (lock) {
+			if (closed)
+				throw new StorageException("Buffered storage is closed");
+			if (entries.isEmpty() && spilledCount == 0)
+				headAddedAt = entry.getAddedAt();
+			if (spilledCount == 0 && bufferedBytes + data.length <= budget) {
+				entries.addLast(new Entry(data, entry.getAddedAt()));
+				bufferedBytes += data.length;
+			} else {
+				// once spilling started, everything goes to spill file to keep the order
+				appendSpill(data);
+			}
+			lock.notifyAll();
+		}
+		getLogger().debug("Result buffered " + result.getName());
+		return result;
+	}
+
+	/**
+	 * Blocks until all accepted results are stored.
+	 */
+	@Override
+	public void flush() throws StorageException {
+		synchronized (lock) {
+			try {
+				while (!entries.isEmpty() || spilledCount > 0 || delivering) {
+					if (!worker.isAlive())
+						throw new StorageException("Buffered storage worker is not running, "
+								+ getPendingCount() + " results left in " + spillFile);
+					lock.wait(100);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StorageException("Interrupted while flushing buffered storage", e);
+			}
+		}
+		storage.flush();
+	}
+
+	/**
+	 * Flushes pending results and stops background thread. Results which can
+	 * not be stored because wrapped storage is still failing are left in spill
+	 * file.
+	 */
+	@Override
+	public void close() throws StorageException {
+		synchronized (lock) {
+			if (closed)
+				return;
+			closed = true;
+			lock.notifyAll();
+		}
+		try {
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while closing buffered storage", e);
+		}
+		synchronized (lock) {
+			try {
+				if (!entries.isEmpty())
+					spillEntries();
+				if (spilledCount > 0) {
+					getLogger().warn(spilledCount + " results were not stored and are left in " + spillFile);
+				}
+				if (spill.getChannel().isOpen())
+					spill.close();
+			} catch (IOException e) {
+				throw new StorageException("Unable to close buffer spill file: " + spillFile, e);
+			}
+		}
+		storage.close();
+	}
+
+	@Override
+	protected Result createResult(String projectKey, Result result, List<Object> attachments) throws StorageException {
+		return storage.createResult(projectKey, result, attachments);
+	}
+
+	@Override
+	protected void deleteResult(Result result) throws StorageException {
+		storage.deleteResult(result);
+	}
+
+	private void deliverEntries() {
+		long delay = RETRY_DELAY_MIN;
+		while (true) {
+			Entry entry;
+			boolean spilled;
+			synchronized (lock) {
+				try {
+					while (entries.isEmpty() && spilledCount == 0 && !closed) {
+						lock.wait();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (entries.isEmpty() && spilledCount == 0)
+					return;
+				spilled = entries.isEmpty();
+				try {
+					entry = spilled ? readSpill() : entries.peekFirst();
+				} catch (IOException e) {
+					getLogger().error("Unable to read buffer spill file " + spillFile + ", buffering stopped", e);
+					return;
+				}
+				headAddedAt = entry.getAddedAt();
+				delivering = true;
+			}
+			Exception failure = deliver(entry);
+			boolean delivered = failure == null;
+			if (!delivered) {
+				attempts++;
+				if (PermanentStorageException.isPermanent(failure) || maxAttempts > 0 && attempts >= maxAttempts) {
+					delivered = deadLetter(entry, failure);
+				} else {
+					getLogger().warn("Unable to store buffered result, it will be retried", failure);
+				}
+			}
+			synchronized (lock) {
+				delivering = false;
+				if (delivered) {
+					delay = RETRY_DELAY_MIN;
+					attempts = 0;
+					if (spilled) {
+						spillPosition += 4 + entry.getData().length;
+						spilledBytes -= entry.getData().length;
+						spilledCount--;
+						if (spilledCount == 0)
+							truncateSpill();
+					} else {
+						entries.pollFirst();
+						bufferedBytes -= entry.getData().length;
+					}
+					if (!entries.isEmpty())
+						headAddedAt = entries.peekFirst().getAddedAt();
+				}
+				lock.notifyAll();
+				if (!delivered) {
+					if (closed)
+						return;
+					try {
+						lock.wait(delay);
+					} catch (InterruptedException e) {
+						return;
+					}
+					delay = Math.min(delay * 2, RETRY_DELAY_MAX);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param entry
+	 * @return Failure or null when result was stored
+	 */
+	private Exception deliver(Entry entry) {
+		try {
+			Entry value = mapper.readValue(entry.getData(), Entry.class);
+			List<Object> attachments = null;
+			if (value.getAttachments() != null) {
+				attachments = new ArrayList<>();
+				for (AttachmentEntry attachment : value.getAttachments()) {
+					Object file = attachment.toAttachment();
+					if (file instanceof TemporaryFile) {
+						// wrapped storage deletes temporary files even when it
+						// fails, they are kept until result is stored or dead
+						// lettered
+						TemporaryFile temporaryFile = (TemporaryFile) file;
+						file = new ExtendedFile(temporaryFile.getFile(), temporaryFile.getPath(),
+								temporaryFile.getContentType());
+					}
+					attachments.add(file);
+				}
+			}
+			value.getResult().setIdempotencyKey(value.getIdempotencyKey());
+			storage.addResult(value.getProjectKey(), value.getResult(), attachments);
+			deleteTemporaryFiles(value);
+			return null;
+		} catch (Exception e) {
+			return e;
+		}
+	}
+
+	private void deleteTemporaryFiles(Entry value) {
+		if (value.getAttachments() == null)
+			return;
+		List<Object> attachments = new ArrayList<>();
+		for (AttachmentEntry attachment : value.getAttachments()) {
+			attachments.add(attachment.toAttachment());
+		}
+		deleteTemporaryFiles(attachments);
+	}
+
+	/**
+	 * Appends entry to dead letter file.
+	 * 
+	 * @param entry
+	 * @param failure
+	 * @return True if entry was written and can be removed from buffer
+	 */
+	private boolean deadLetter(Entry entry, Exception failure) {
+		try (RandomAccessFile file = new RandomAccessFile(deadLetterFile, "rw")) {
+			file.seek(file.length());
+			file.writeInt(entry.getData().length);
+			file.write(entry.getData());
+		} catch (IOException e) {
+			getLogger().error("Unable to write dead letter file " + deadLetterFile + ", result will be retried", e);
+			return false;
+		}
+		synchronized (lock) {
+			deadLetterCount++;
+		}
+		try {
+			deleteTemporaryFiles(mapper.readValue(entry.getData(), Entry.class));
+		} catch (IOException e) {
+			getLogger().warn("Unable to delete temporary files of dead lettered result", e);
+		}
+		getLogger().error("Unable to store buffered result after " + attempts + " attempts, it is moved to "
+				+ deadLetterFile, failure);
+		return true;
+	}
+
+	private void appendSpill(byte[] data) throws StorageException {
+		try {
+			spill.seek(spill.length());
+			spill.writeInt(data.length);
+			spill.write(data);
+		} catch (IOException e) {
+			throw new StorageException("Unable to append result to buffer spill file: " + spillFile, e);
+		}
+		spilledBytes += data.length;
+		spilledCount++;
+	}
+
+	/**
+	 * Moves in-memory entries to spill file in front of already spilled ones.
+	 */
+	private void spillEntries() throws IOException {
+		File file = File.createTempFile("reesmo-buffer-", ".spill", spillFile.getAbsoluteFile().getParentFile());
+		try (RandomAccessFile target = new RandomAccessFile(file, "rw")) {
+			while (!entries.isEmpty()) {
+				Entry entry = entries.pollFirst();
+				target.writeInt(entry.getData().length);
+				target.write(entry.getData());
+				spilledBytes += entry.getData().length;
+				spilledCount++;
+			}
+			spill.getChannel().transferTo(spillPosition, spill.length() - spillPosition, target.getChannel());
+		}
+		bufferedBytes = 0;
+		spillPosition = 0;
+		spill.close();
+		Files.move(file.toPath(), spillFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private Entry readSpill() throws IOException {
+		spill.seek(spillPosition);
+		byte[] data = new byte[spill.readInt()];
+		spill.readFully(data);
+		return new Entry(data, Math.max(openedAt, mapper.readValue(data, Entry.class).getAddedAt()));
+	}
+
+	private void truncateSpill() {
+		try {
+			spill.setLength(0);
+			spillPosition = 0;
+		} catch (IOException e) {
+			getLogger().warn("Unable to truncate buffer spill file " + spillFile, e);
+		}
+	}
+
+	private void recoverSpill() throws IOException {
+		long length = spill.length();
+		long position = 0;
+		while (position + 4 <= length) {
+			spill.seek(position);
+			int size = spill.readInt();
+			if (position + 4 + size > length)
+				break;
+			spilledBytes += size;
+			spilledCount++;
+			position += 4 + size;
+		}
+		if (position < length) {
+			getLogger().warn("Truncating incomplete record at the end of buffer spill file");
+			spill.setLength(position);
+		}
+		if (spilledCount > 0) {
+			headAddedAt = openedAt;
+			getLogger().info(spilledCount + " results will be replayed from buffer spill file");
+		}
+	}
+
+	/**
+	 * Buffered result. In memory it holds only serialized data.
+	 */
+	protected static class Entry {
+
+		private String projectKey;
+
+		private String idempotencyKey;
+
+		private long addedAt;
+
+		private Result result;
+
+		private List<AttachmentEntry> attachments;
+
+		private byte[] data;
+
+		public Entry() {
+		}
+
+		private Entry(byte[] data, long addedAt) {
+			this.data = data;
+			this.addedAt = addedAt;
+		}
+
+		public String getProjectKey() {
+			return projectKey;
+		}
+
+		public void setProjectKey(String projectKey) {
+			this.projectKey = projectKey;
+		}
+
+		public String getIdempotencyKey() {
+			return idempotencyKey;
+		}
+
+		public void setIdempotencyKey(String idempotencyKey) {
+			this.idempotencyKey = idempotencyKey;
+		}
+
+		public long getAddedAt() {
+			return addedAt;
+		}
+
+		public void setAddedAt(long addedAt) {
+			this.addedAt = addedAt;
+		}
+
+		public Result getResult() {
+			return result;
+		}
+
+		public void setResult(Result result) {
+			this.result = result;
+		}
+
+		public List<AttachmentEntry> getAttachments() {
+			return attachments;
+		}
+
+		public void setAttachments(List<AttachmentEntry> attachments) {
+			this.attachments = attachments;
+		}
+
+		private byte[] getData() {
+			return data;
+		}
+
+	}
+
+	/**
+	 * Attachment reference, attachment content stays in its file. Temporary
+	 * files created by writer are deleted once result is stored or dead
+	 * lettered.
+	 */
+	protected static class AttachmentEntry {
+
+		private String file;
+
+		private String path;
+
+		private String contentType;
+
+		private boolean extended;
+
+		private boolean temporary;
+
+		public static AttachmentEntry of(Object attachment) throws StorageException {
+			AttachmentEntry entry = new AttachmentEntry();
+			if (attachment instanceof File) {
+				entry.setFile(((File) attachment).getAbsolutePath());
+			} else if (attachment instanceof ExtendedFile) {
+				ExtendedFile file = (ExtendedFile) attachment;
+				entry.setFile(file.getFile().getAbsolutePath());
+				entry.setPath(file.getPath());
+				entry.setContentType(file.getContentType());
+				entry.setExtended(true);
+				entry.setTemporary(attachment instanceof TemporaryFile);
+			} else {
+				throw new StorageException("Unsupported attachment type: "
+						+ (attachment == null ? null : attachment.getClass()));
+			}
+			return entry;
+		}
+
+		public Object toAttachment() {
+			if (temporary)
+				return new TemporaryFile(new File(file), path, contentType);
+			if (extended)
+				return new ExtendedFile(new File(file), path, contentType);
+			return new File(file);
+		}
+
+		public String getFile() {
+			return file;
+		}
+
+		public void setFile(String file) {
+			this.file = file;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public void setPath(String path) {
+			this.path = path;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public void setContentType(String contentType) {
+			this.contentType = contentType;
+		}
+
+		public boolean isExtended() {
+			return extended;
+		}
+
+		public void setExtended(boolean extended) {
+			this.extended = extended;
+		}
+
+		public boolean isTemporary() {
+			return temporary;
+		}
+
+		public void setTemporary(boolean temporary) {
+			this.temporary = temporary;
+		}
+
+	}
+
+}
@@ -0,0 +1,345 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import com.mashape.unirest.request.HttpRequestWithBody;
+
+import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.model.result.ResultAttachment;
+import cz.etnetera.reesmo.writer.trace.Phase;
+import cz.etnetera.reesmo.writer.trace.WriterSpan;
+import cz.etnetera.reesmo.writer.trace.WriterTrace;
+
+/**
+ * Upload of large attachment in fixed size chunks.
+ *
+ * <ol>
+ * <li>{@value #METHOD_UPLOAD_START} with json {@code path, contentType,
+ * size, chunkSize} returns {@code uploadId} and {@code offsets} of chunks
+ * server already has. It is sent with attachment idempotency key, so
+ * starting the same upload again resumes it.</li>
+ * <li>{@value #METHOD_UPLOAD_CHUNK} with raw chunk body and
+ * {@value #HEADER_UPLOAD_OFFSET} and {@value #HEADER_CHUNK_CHECKSUM} (CRC32
+ * hex) headers for each missing chunk.</li>
+ * <li>{@value #METHOD_UPLOAD_COMPLETE} with json {@code size, chunks}
+ * returns stored result attachment.</li>
+ * </ol>
+ *
+ * Chunks are read by {@link FileChannel}, so only chunks being sent are held
+ * in memory. Failing chunk is retried with backoff, when retries are
+ * exhausted, upload fails and the next attempt resumes from acknowledged
+ * chunks.
+ */
+public class ChunkedUpload {
+
+	public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+	protected static final String METHOD_UPLOAD_START = "/api/results/attachment/upload/{resultId}";
+
+	protected static final String METHOD_UPLOAD_CHUNK = "/api/results/attachment/upload/{resultId}/{uploadId}";
+
+	protected static final String METHOD_UPLOAD_COMPLETE = "/api/results/attachment/upload/{resultId}/{uploadId}/complete";
+
+	protected static final String HEADER_UPLOAD_OFFSET = "Upload-Offset";
+
+	protected static final String HEADER_CHUNK_CHECKSUM = "Chunk-Checksum";
+
+	protected static final long RETRY_DELAY_MIN = 500;
+
+	protected static final long RETRY_DELAY_MAX = 30000;
+
+	protected final RestApiStorage storage;
+
+	protected final Result result;
+
+	protected final File file;
+
+	protected final String path;
+
+	protected final String contentType;
+
+	protected final String key;
+
+	protected final int chunkSize;
+
+	protected final int parallelism;
+
+	protected final int retries;
+
+	private String uploadId;
+
+	private final Set<Long> acknowledged = ConcurrentHashMap.newKeySet();
+
+	public ChunkedUpload(RestApiStorage storage, Result result, File file, String path, String contentType) {
+		this(storage, result, file, path, contentType, path == null ? file.getName() : path);
+	}
+
+	/**
+	 * @param storage
+	 * @param result
+	 * @param file
+	 * @param path
+	 * @param contentType
+	 * @param key
+	 *            Key of attachment unique within result, upload
+	 *            idempotency key is derived from it
+	 */
+	public ChunkedUpload(RestApiStorage storage, Result result, File file, String path, String contentType,
+			String key) {
+		this.storage = storage;
+		this.result = result;
+		this.file = file;
+		this.path = path;
+		this.contentType = contentType;
+		this.key = key;
+		this.chunkSize = storage.getChunkSize();
+		this.parallelism = storage.getChunkParallelism();
+		this.retries = storage.getAttachmentRetries();
+	}
+
+	/**
+	 * Uploads missing chunks and completes upload.
+	 *
+	 * @return Stored attachment
+	 * @throws StorageException
+	 */
+	public ResultAttachment upload() throws StorageException {
+		long size = file.length();
+		start(size);
+		List<Long> offsets = new ArrayList<>();
+		for (long offset = 0; offset < size; offset += chunkSize) {
+			if (!acknowledged.contains(offset))
+				offsets.add(offset);
+		}
+		if (offsets.size() * (long) chunkSize < size)
+			getLogger().info("Resuming upload " + uploadId + " of " + getName() + ", " + offsets.size()
+					+ " chunks missing");
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (parallelism <= 1 || offsets.size() <= 1) {
+				for (long offset : offsets) {
+					uploadChunk(channel, offset, size);
+				}
+			} else {
+				uploadChunks(channel, offsets, size);
+			}
+		} catch (IOException e) {
+			throw new StorageException("Unable to read attachment " + file, e);
+		}
+		return complete(size);
+	}
+
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	protected void start(long size) throws StorageException {
+		Map<String, Object> request = new LinkedHashMap<>();
+		request.put("path", path);
+		request.put("contentType", contentType);
+		request.put("size", size);
+		request.put("chunkSize", chunkSize);
+		JsonNode response = post(METHOD_UPLOAD_START.replace("{resultId}", result.getId()), request, getIdempotencyKey());
+		JsonNode id = response.get("uploadId");
+		if (id == null || id.asText().isEmpty())
+			throw new StorageException("Upload id is missing in response of upload start " + getName());
+		uploadId = id.asText();
+		JsonNode offsets = response.get("offsets");
+		if (offsets != null) {
+			for (JsonNode offset : offsets) {
+				acknowledged.add(offset.asLong());
+			}
+		}
+	}
+
+	protected ResultAttachment complete(long size) throws StorageException {
+		Map<String, Object> request = new LinkedHashMap<>();
+		request.put("size", size);
+		request.put("chunks", (size + chunkSize - 1) / chunkSize);
+		String idempotencyKey = getIdempotencyKey();
+		JsonNode response = post(getUploadUri(METHOD_UPLOAD_COMPLETE), request,
+				idempotencyKey == null ? null : idempotencyKey + "/complete");
+		try {
+			return RestApiStorage.MAPPER.treeToValue(response, ResultAttachment.class);
+		} catch (IOException e) {
+			throw new StorageException("Unable to parse result attachment from upload complete response", e);
+		}
+	}
+
+	private void uploadChunks(FileChannel channel, List<Long> offsets, long size) throws StorageException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, offsets.size()), r -> {
+			Thread thread = new Thread(r, "reesmo-chunk-upload");
+			thread.setDaemon(true);
+			return thread;
+		});
+		CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+		List<Future<Void>> futures = new ArrayList<>();
+		try {
+			for (long offset : offsets) {
+				futures.add(completion.submit(() -> {
+					uploadChunk(channel, offset, size);
+					return null;
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				completion.take().get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while uploading " + getName(), e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof StorageException)
+				throw (StorageException) e.getCause();
+			throw new StorageException("Unable to upload " + getName(), e.getCause());
+		} finally {
+			// first failure stops remaining chunks, they are resumed later
+			for (Future<Void> future : futures) {
+				future.cancel(true);
+			}
+			executor.shutdownNow();
+		}
+	}
+
+	protected void uploadChunk(FileChannel channel, long offset, long size) throws StorageException {
+		byte[] chunk = readChunk(channel, offset, (int) Math.min(chunkSize, size - offset));
+		CRC32 crc = new CRC32();
+		crc.update(chunk);
+		String checksum = String.format("%08x", crc.getValue());
+		String uri = getUploadUri(METHOD_UPLOAD_CHUNK);
+		long delay = RETRY_DELAY_MIN;
+		for (int attempt = 0;; attempt++) {
+			try (WriterSpan span = WriterTrace.begin(Phase.HTTP).bytes(chunk.length)) {
+				HttpResponse<String> response = storage.execute(endpoint -> Unirest.post(endpoint + uri)
+						.basicAuth(storage.username, storage.password).header("Content-Type", "application/octet-stream")
+						.header(HEADER_UPLOAD_OFFSET, Long.toString(offset)).header(HEADER_CHUNK_CHECKSUM, checksum)
+						.body(chunk).asString(), true);
+				if (storage.isSuccess(response)) {
+					span.success();
+					acknowledged.add(offset);
+					return;
+				}
+				StorageException exception = RestApiStorage.statusException("Wrong status code "
+						+ response.getStatus() + " when uploading chunk " + offset + " of " + getName(),
+						response.getStatus());
+				// rejected chunk would be rejected again
+				if (attempt >= retries || PermanentStorageException.isPermanent(exception))
+					throw exception;
+			} catch (UnirestException e) {
+				if (attempt >= retries)
+					throw new StorageException("Unable to upload chunk " + offset + " of " + getName(), e);
+			}
+			getLogger().info("Unable to upload chunk " + offset + " of " + getName() + ", it will be retried in "
+					+ delay + " ms");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StorageException("Interrupted while retrying chunk " + offset + " of " + getName(), e);
+			}
+			delay = Math.min(delay * 2, RETRY_DELAY_MAX);
+		}
+	}
+
+	private byte[] readChunk(FileChannel channel, long offset, int length) throws StorageException {
+		byte[] chunk = new byte[length];
+		ByteBuffer buffer = ByteBuffer.wrap(chunk);
+		try {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, offset + buffer.position()) < 0)
+					throw new EOFException("Attachment " + file + " is shorter than " + (offset + length));
+			}
+		} catch (IOException e) {
+			throw new StorageException("Unable to read chunk " + offset + " of " + getName(), e);
+		}
+		return chunk;
+	}
+
+	private JsonNode post(String uri, Object entity, String idempotencyKey) throws StorageException {
+		String json;
+		try {
+			json = RestApiStorage.MAPPER.writeValueAsString(entity);
+		} catch (IOException e) {
+			throw new StorageException("Unable to serialize request for uri " + uri, e);
+		}
+		HttpResponse<String> response;
+		try (WriterSpan span = WriterTrace.begin(Phase.HTTP).bytes(json.length())) {
+			response = storage.execute(endpoint -> {
+				HttpRequestWithBody request = Unirest.post(endpoint + uri).basicAuth(storage.username, storage.password)
+						.header("Accept", "application/json").header("Content-Type", "application/json; charset=UTF-8");
+				if (idempotencyKey != null) {
+					request.header(RestApiStorage.HEADER_IDEMPOTENCY_KEY, idempotencyKey);
+				}
+				return request.body(json).asString();
+			}, idempotencyKey != null);
+			if (storage.isSuccess(response))
+				span.success();
+		} catch (UnirestException e) {
+			throw new StorageException("Unable to execute upload request on uri " + uri, e);
+		}
+		if (!storage.isSuccess(response))
+			throw RestApiStorage.statusException(
+					"Wrong status code " + response.getStatus() + " when requesting uri " + uri, response.getStatus());
+		if (response.getBody() == null || response.getBody().trim().isEmpty())
+			throw new StorageException("Empty response of uri " + uri);
+		try {
+			return RestApiStorage.MAPPER.readTree(response.getBody());
+		} catch (IOException e) {
+			throw new StorageException("Unable to parse response of uri " + uri, e);
+		}
+	}
+
+	private String getUploadUri(String method) {
+		return method.replace("{resultId}", result.getId()).replace("{uploadId}", uploadId);
+	}
+
+	private String getIdempotencyKey() {
+		return RestApiStorage.getAttachmentIdempotencyKey(result, key);
+	}
+
+	private String getName() {
+		return path == null ? file.getName() : path;
+	}
+
+	protected Logger getLogger() {
+		return LoggerFactory.getLogger(getClass());
+	}
+
+}
@@ -0,0 +1,320 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.trace.WriterTrace;
+
+/**
+ * Stores each result into all child storages in parallel, so storing takes
+ * as long as the slowest child. {@link Policy} decides how many children
+ * must succeed, when it is not met, result is deleted from children which
+ * stored it. Id of stored result is made of child ids joined by
+ * {@value #ID_SEPARATOR} in order of children, failed child has empty id.
+ * Only children returning result with id count as succeeded, asynchronous
+ * children like buffered or priority storage which only accept result are not
+ * counted towards the policy.
+ * Children are configured by {@code reesmo.children=a;b} and properties
+ * {@code reesmo.child.<name>.*} overriding {@code reesmo.*} properties.
+ */
+public class CompositeStorage extends Storage {
+
+	public static final String CHILD_PREFIX = "reesmo.child.";
+
+	public static final String ID_SEPARATOR = "|";
+
+	public enum Policy {
+		/**
+		 * All children must store result.
+		 */
+		ALL,
+		/**
+		 * Majority of children must store result.
+		 */
+		QUORUM,
+		/**
+		 * At least one child must store result.
+		 */
+		ANY;
+
+		public int getRequired(int children) {
+			switch (this) {
+			case ALL:
+				return children;
+			case QUORUM:
+				return children / 2 + 1;
+			default:
+				return 1;
+			}
+		}
+
+		public static Policy valueOfString(String value) {
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	protected final List<Storage> storages;
+
+	protected final Policy policy;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "reesmo-composite");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public CompositeStorage(List<Storage> storages, Policy policy) throws StorageException {
+		if (storages == null || storages.isEmpty())
+			throw new StorageException("Composite storage has no children");
+		this.storages = new ArrayList<>(storages);
+		this.policy = policy == null ? Policy.ALL : policy;
+	}
+
+	/**
+	 * Collects properties of given child from system properties, prefix of
+	 * child is replaced by {@code reesmo.}, so they can be used as storage
+	 * configuration.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static Properties getChildConfiguration(String name) {
+		return getPrefixedConfiguration(CHILD_PREFIX + name + ".");
+	}
+
+	public List<Storage> getStorages() {
+		return Collections.unmodifiableList(storages);
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns id of result in given child.
+	 *
+	 * @param result
+	 *            Result stored by this storage
+	 * @param index
+	 *            Index of child
+	 * @return Id or null when child has not stored result
+	 */
+	public static String getChildId(Result result, int index) {
+		if (result.getId() == null)
+			return null;
+		String[] ids = result.getId().split(Pattern.quote(ID_SEPARATOR), -1);
+		return index < ids.length && !ids[index].isEmpty() ? ids[index] : null;
+	}
+
+	@Override
+	public void flush() throws StorageException {
+		super.flush();
+		StorageException exception = null;
+		for (Storage storage : storages) {
+			try {
+				storage.flush();
+			} catch (StorageException e) {
+				getLogger().error("Unable to flush child storage " + storage, e);
+				if (exception == null)
+					exception = e;
+			}
+		}
+		if (exception != null)
+			throw exception;
+	}
+
+	/**
+	 * Closes all children, failing child does not prevent others from being
+	 * closed.
+	 */
+	@Override
+	public void close() throws StorageException {
+		StorageException exception = null;
+		try {
+			super.close();
+		} catch (StorageException e) {
+			exception = e;
+		}
+		for (Storage storage : storages) {
+			try {
+				storage.close();
+			} catch (StorageException e) {
+				getLogger().error("Unable to close child storage " + storage, e);
+				if (exception == null)
+					exception = e;
+			}
+		}
+		executor.shutdown();
+		if (exception != null)
+			throw exception;
+	}
+
+	@Override
+	protected Result createResult(String projectKey, Result result, List<Object> attachments) throws StorageException {
+		// attachments are transformed by each child
+		try {
+			List<Object> shared = shareAttachments(attachments);
+			List<Future<Result>> futures = new ArrayList<>();
+			for (Storage storage : storages) {
+				Result copy = copyResult(result);
+				futures.add(executor.submit(() -> {
+					WriterTrace.setContext(copy.getName(), projectKey);
+					try {
+						return storage.createResult(projectKey, copy, shared);
+					} finally {
+						WriterTrace.clearContext();
+					}
+				}));
+			}
+			List<String> ids = new ArrayList<>();
+			List<Throwable> errors = new ArrayList<>();
+			int succeeded = 0;
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					String id = futures.get(i).get().getId();
+					ids.add(id);
+					// accepted but not acknowledged result is not counted
+					if (id != null)
+						succeeded++;
+				} catch (ExecutionException e) {
+					ids.add(null);
+					errors.add(e.getCause());
+					getLogger().warn("Child storage " + storages.get(i) + " failed to store result " + result.getName(),
+							e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					ids.add(null);
+					errors.add(e);
+				}
+			}
+			if (succeeded < policy.getRequired(storages.size())) {
+				deleteChildResults(result, ids);
+				StorageException exception = new StorageException("Result " + result.getName() + " stored by "
+						+ succeeded + " of " + storages.size() + " children, policy " + policy + " is not met",
+						errors.isEmpty() ? null : errors.get(0));
+				for (int i = 1; i < errors.size(); i++) {
+					exception.addSuppressed(errors.get(i));
+				}
+				throw exception;
+			}
+			result.setId(joinIds(ids));
+			return result;
+		} finally {
+			// children get shared files, so temporary ones are deleted after all finished
+			deleteTemporaryFiles(attachments);
+		}
+	}
+
+	@Override
+	protected void deleteResult(Result result) throws StorageException {
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < storages.size(); i++) {
+			ids.add(getChildId(result, i));
+		}
+		StorageException exception = deleteChildResults(result, ids);
+		if (exception != null)
+			throw exception;
+	}
+
+	/**
+	 * Deletes result from children in parallel.
+	 *
+	 * @param result
+	 * @param ids
+	 *            Child ids, null for children without result
+	 * @return First failure or null
+	 */
+	protected StorageException deleteChildResults(Result result, List<String> ids) {
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < storages.size(); i++) {
+			String id = ids.get(i);
+			if (id == null) {
+				futures.add(null);
+				continue;
+			}
+			Storage storage = storages.get(i);
+			futures.add(executor.submit(() -> {
+				Result copy = copyResult(result);
+				copy.setId(id);
+				getLogger().info("Deleting result " + id + " from child storage " + storage);
+				WriterTrace.setContext(copy.getName(), null);
+				try {
+					storage.deleteResult(copy);
+				} finally {
+					WriterTrace.clearContext();
+				}
+				return null;
+			}));
+		}
+		StorageException exception = null;
+		for (int i = 0; i < futures.size(); i++) {
+			if (futures.get(i) == null)
+				continue;
+			try {
+				futures.get(i).get();
+			} catch (ExecutionException | InterruptedException e) {
+				if (e instanceof InterruptedException)
+					Thread.currentThread().interrupt();
+				Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+				getLogger().error("Unable to delete result " + ids.get(i) + " from child storage " + storages.get(i),
+						cause);
+				if (exception == null)
+					exception = new StorageException("Unable to delete result " + ids.get(i), cause);
+			}
+		}
+		return exception;
+	}
+
+	/**
+	 * Replaces temporary files by plain ones, so child does not delete file
+	 * other children still read.
+	 */
+	private List<Object> shareAttachments(List<Object> attachments) {
+		if (attachments == null)
+			return null;
+		List<Object> shared = new ArrayList<>();
+		for (Object attachment : attachments) {
+			if (attachment instanceof TemporaryFile) {
+				TemporaryFile file = (TemporaryFile) attachment;
+				shared.add(ExtendedFile.withPathAndContentType(file.getFile(), file.getPath(), file.getContentType()));
+			} else {
+				shared.add(attachment);
+			}
+		}
+		return Collections.unmodifiableList(shared);
+	}
+
+	private String joinIds(List<String> ids) {
+		StringBuilder id = new StringBuilder();
+		for (int i = 0; i < ids.size(); i++) {
+			if (i > 0)
+				id.append(ID_SEPARATOR);
+			if (ids.get(i) != null)
+				id.append(ids.get(i));
+		}
+		return id.toString();
+	}
+
+}
@@ -28,11 +28,13 @@ public class DummyStorage extends Storage {
 	@Override
 	public Result addResult(String projectKey, Result result, List<Object> attachments)
 			throws StorageException {
+		deleteTemporaryFiles(attachments);
 		return result;
 	}
 
 	@Override
 	protected Result createResult(String projectKey, Result result, List<Object> attachments) throws StorageException {
+		deleteTemporaryFiles(attachments);
 		return result;
 	}
 
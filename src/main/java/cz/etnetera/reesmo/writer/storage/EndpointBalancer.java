@@ -0,0 +1,346 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.exceptions.UnirestException;
+
+import cz.etnetera.reesmo.writer.stats.Histogram;
+
+/**
+ * Spreads requests across several API endpoints. Each request goes to
+ * endpoint with least outstanding requests. Endpoints failing repeatedly
+ * (connection errors or server errors) are ejected for growing period of
+ * time. Idempotent requests can be hedged, i.e. sent also to second endpoint
+ * when the first one does not answer within given latency percentile.
+ */
+public class EndpointBalancer implements AutoCloseable {
+
+	public static final String SEPARATOR = ";";
+
+	protected static final int EJECT_FAILURES = 3;
+
+	protected static final long EJECT_MIN_MILLIS = 5000;
+
+	protected static final long EJECT_MAX_MILLIS = 60000;
+
+	protected static final int LATENCY_WINDOW = 1024;
+
+	protected static final int HEDGE_MIN_SAMPLES = 20;
+
+	/**
+	 * Request executed against chosen endpoint.
+	 */
+	public interface Call {
+
+		HttpResponse<String> call(String endpoint) throws UnirestException;
+
+	}
+
+	protected final List<Node> nodes;
+
+	protected final Double hedgePercentile;
+
+	private ExecutorService executor;
+
+	/**
+	 * @param endpoints
+	 *            Endpoint urls
+	 * @param hedgePercentile
+	 *            Latency percentile between 0 and 100 after which idempotent
+	 *            request is hedged, null disables hedging
+	 * @throws StorageException
+	 */
+	public EndpointBalancer(List<String> endpoints, Double hedgePercentile) throws StorageException {
+		if (endpoints == null || endpoints.isEmpty())
+			throw new StorageException("Endpoint is null or empty");
+		if (hedgePercentile != null && (hedgePercentile <= 0 || hedgePercentile >= 100))
+			throw new StorageException("Hedge percentile must be between 0 and 100 " + hedgePercentile);
+		List<Node> nodes = new ArrayList<>();
+		for (String endpoint : endpoints) {
+			nodes.add(new Node(endpoint));
+		}
+		this.nodes = Collections.unmodifiableList(nodes);
+		this.hedgePercentile = nodes.size() > 1 ? hedgePercentile : null;
+	}
+
+	/**
+	 * Splits endpoint list separated by {@link #SEPARATOR}.
+	 *
+	 * @param endpoints
+	 * @return
+	 */
+	public static List<String> parseEndpoints(String endpoints) {
+		List<String> list = new ArrayList<>();
+		if (endpoints == null)
+			return list;
+		for (String endpoint : endpoints.split(SEPARATOR)) {
+			endpoint = endpoint.trim().replaceAll("/+$", "");
+			if (!endpoint.isEmpty())
+				list.add(endpoint);
+		}
+		return list;
+	}
+
+	public List<String> getEndpoints() {
+		List<String> endpoints = new ArrayList<>();
+		for (Node node : nodes) {
+			endpoints.add(node.endpoint);
+		}
+		return endpoints;
+	}
+
+	public Double getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	/**
+	 * Returns number of requests in flight on given endpoint.
+	 *
+	 * @param endpoint
+	 * @return
+	 */
+	public int getOutstanding(String endpoint) {
+		Node node = getNode(endpoint);
+		return node == null ? 0 : node.outstanding.get();
+	}
+
+	public boolean isEjected(String endpoint) {
+		Node node = getNode(endpoint);
+		return node != null && node.isEjected(System.currentTimeMillis());
+	}
+
+	/**
+	 * Executes call on balanced endpoint.
+	 *
+	 * @param call
+	 * @param idempotent
+	 *            Whether call can be safely sent to more endpoints
+	 * @return
+	 * @throws UnirestException
+	 */
+	public HttpResponse<String> execute(Call call, boolean idempotent) throws UnirestException {
+		Node primary = choose(null);
+		long hedgeDelay = idempotent && hedgePercentile != null ? primary.getHedgeDelayMicros(hedgePercentile) : -1;
+		try {
+			if (hedgeDelay < 0)
+				return primary.execute(call);
+			return executeHedged(call, primary, hedgeDelay);
+		} catch (UnirestException e) {
+			// connection failure, idempotent call is retried once elsewhere
+			Node other = idempotent ? choose(primary) : primary;
+			if (other == primary)
+				throw e;
+			getLogger().debug("Retrying request failed on " + primary.endpoint + " on " + other.endpoint);
+			return other.execute(call);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	protected HttpResponse<String> executeHedged(Call call, Node primary, long hedgeDelayMicros)
+			throws UnirestException {
+		ExecutorCompletionService<HttpResponse<String>> completion = new ExecutorCompletionService<>(getExecutor());
+		List<Future<HttpResponse<String>>> futures = new ArrayList<>();
+		futures.add(completion.submit(() -> primary.execute(call)));
+		try {
+			Future<HttpResponse<String>> done = completion.poll(hedgeDelayMicros, TimeUnit.MICROSECONDS);
+			if (done == null) {
+				Node secondary = choose(primary);
+				if (secondary != primary && !secondary.isEjected(System.currentTimeMillis())) {
+					getLogger().debug("Hedging request from " + primary.endpoint + " to " + secondary.endpoint);
+					futures.add(completion.submit(() -> secondary.execute(call)));
+				}
+				done = completion.take();
+			}
+			HttpResponse<String> response = null;
+			ExecutionException failure = null;
+			for (int pending = futures.size(); pending > 0; pending--) {
+				try {
+					response = done.get();
+					if (response.getStatus() < 500)
+						return response;
+				} catch (ExecutionException e) {
+					failure = e;
+				}
+				if (pending > 1)
+					done = completion.take();
+			}
+			if (response != null)
+				return response;
+			Throwable cause = failure.getCause();
+			if (cause instanceof UnirestException)
+				throw (UnirestException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw (Error) cause;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UnirestException(e);
+		} finally {
+			for (Future<HttpResponse<String>> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Chooses available endpoint with least outstanding requests, ties are
+	 * broken randomly. When all endpoints are ejected, the one which gets
+	 * back first is chosen.
+	 *
+	 * @param exclude
+	 *            Endpoint to avoid if there is other one
+	 * @return
+	 */
+	protected Node choose(Node exclude) {
+		long now = System.currentTimeMillis();
+		Node best = null;
+		int ties = 0;
+		for (Node node : nodes) {
+			if (node == exclude || node.isEjected(now))
+				continue;
+			int compare = best == null ? -1 : Integer.compare(node.outstanding.get(), best.outstanding.get());
+			if (compare < 0) {
+				best = node;
+				ties = 1;
+			} else if (compare == 0 && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+				best = node;
+			}
+		}
+		if (best != null)
+			return best;
+		for (Node node : nodes) {
+			if (node != exclude && (best == null || node.ejectedUntil < best.ejectedUntil))
+				best = node;
+		}
+		return best == null ? exclude : best;
+	}
+
+	protected Node getNode(String endpoint) {
+		for (Node node : nodes) {
+			if (node.endpoint.equals(endpoint))
+				return node;
+		}
+		return null;
+	}
+
+	protected Logger getLogger() {
+		return LoggerFactory.getLogger(getClass());
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			AtomicInteger counter = new AtomicInteger();
+			executor = Executors.newCachedThreadPool(r -> {
+				Thread thread = new Thread(r, "reesmo-hedge-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+
+	protected class Node {
+
+		protected final String endpoint;
+
+		protected final AtomicInteger outstanding = new AtomicInteger();
+
+		private int failures;
+
+		private volatile long ejectedUntil;
+
+		private volatile Histogram latency = new Histogram();
+
+		private volatile Histogram previousLatency;
+
+		protected Node(String endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		protected HttpResponse<String> execute(Call call) throws UnirestException {
+			outstanding.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				HttpResponse<String> response = call.call(endpoint);
+				if (response.getStatus() >= 500)
+					failed();
+				else
+					succeeded(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+				return response;
+			} catch (UnirestException | RuntimeException e) {
+				failed();
+				throw e;
+			} finally {
+				outstanding.decrementAndGet();
+			}
+		}
+
+		protected boolean isEjected(long now) {
+			return ejectedUntil > now;
+		}
+
+		protected long getHedgeDelayMicros(double percentile) {
+			Histogram window = previousLatency;
+			if (window == null)
+				window = latency;
+			if (window.getCount() < HEDGE_MIN_SAMPLES)
+				return -1;
+			return window.getPercentile(percentile);
+		}
+
+		private void succeeded(long micros) {
+			synchronized (this) {
+				failures = 0;
+				if (latency.getCount() >= LATENCY_WINDOW) {
+					previousLatency = latency;
+					latency = new Histogram();
+				}
+			}
+			latency.record(micros);
+		}
+
+		private synchronized void failed() {
+			failures++;
+			if (failures >= EJECT_FAILURES) {
+				long period = Math.min(EJECT_MAX_MILLIS, EJECT_MIN_MILLIS << Math.min(10, failures - EJECT_FAILURES));
+				ejectedUntil = System.currentTimeMillis() + period;
+				getLogger().warn("Endpoint " + endpoint + " ejected for " + period + " ms after " + failures + " failures");
+			}
+		}
+
+	}
+
+}
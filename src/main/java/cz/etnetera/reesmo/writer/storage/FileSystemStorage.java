@@ -14,17 +14,40 @@
  */
 package cz.etnetera.reesmo.writer.storage;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import cz.etnetera.reesmo.writer.model.Model;
 import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.model.result.SuiteSummary;
+import cz.etnetera.reesmo.writer.trace.Phase;
+import cz.etnetera.reesmo.writer.trace.WriterSpan;
+import cz.etnetera.reesmo.writer.trace.WriterTrace;
 
 /**
  * Stores results in given directory. It should be used if you do not want to
@@ -36,6 +59,16 @@ public class FileSystemStorage extends Storage {
 	public static final String PROPERTY_NAME = "filesystem";
 	
 	private File baseDir;
+	
+	private List<ShardLevel> sharding = Collections.emptyList();
+	
+	private int shardingDepth = 1;
+	
+	private ResultIndex index;
+	
+	private Durability durability = Durability.NONE;
+	
+	private GroupCommit groupCommit = new GroupCommit(GroupCommit.DEFAULT_WINDOW_MILLIS);
 
 	public FileSystemStorage(File baseDir) throws StorageException {
 		if (baseDir == null) 
@@ -51,45 +84,207 @@ public class FileSystemStorage extends Storage {
 		this.baseDir = baseDir;
 	}
 
+	public List<ShardLevel> getSharding() {
+		return sharding;
+	}
+
+	/**
+	 * Set levels of directories model directories are created in, i.e. date,
+	 * suite and hash prefix. Empty levels store model directories directly in
+	 * base directory. Identifiers of models contain shard directories, so
+	 * models stored with any layout can be read.
+	 * 
+	 * @param sharding
+	 */
+	public void setSharding(List<ShardLevel> sharding) {
+		this.sharding = sharding == null ? Collections.emptyList() : new ArrayList<>(sharding);
+	}
+
+	public int getShardingDepth() {
+		return shardingDepth;
+	}
+
+	/**
+	 * Set number of hash prefix directory levels, each with 256 directories.
+	 * 
+	 * @param shardingDepth
+	 */
+	public void setShardingDepth(int shardingDepth) {
+		this.shardingDepth = Math.max(1, Math.min(4, shardingDepth));
+	}
+
+	public boolean isIndexEnabled() {
+		return index != null;
+	}
+
+	/**
+	 * Enable index of stored results in base directory, it is used by
+	 * {@link #findResults(ResultQuery)}. Results stored without index can be
+	 * added by {@link #rebuildIndex()}.
+	 * 
+	 * @param indexEnabled
+	 */
+	public void setIndexEnabled(boolean indexEnabled) {
+		this.index = indexEnabled ? new ResultIndex(baseDir) : null;
+	}
+	
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Set when stored files are synced to disk. Files are always written
+	 * under temporary name and renamed, so ready model never contains
+	 * partially written file unless system crashes.
+	 * 
+	 * @param durability
+	 */
+	public void setDurability(Durability durability) {
+		this.durability = durability == null ? Durability.NONE : durability;
+	}
+
+	public GroupCommit getGroupCommit() {
+		return groupCommit;
+	}
+
+	/**
+	 * Set time the first of concurrent writers waits for others in
+	 * {@link Durability#GROUP_COMMIT} mode.
+	 * 
+	 * @param windowMillis
+	 */
+	public void setGroupCommitWindow(long windowMillis) {
+		this.groupCommit = new GroupCommit(windowMillis);
+	}
+	
+	/**
+	 * Returns lazy stream of all results stored in base directory. Stream
+	 * should be closed when it is not consumed completely.
+	 * 
+	 * @return
+	 */
+	public Stream<Result> getResults() {
+		ModelDirIterator dirs = new ModelDirIterator(baseDir.toPath());
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(dirs, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(dirs::close).map(this::readResultOrNull).filter(Objects::nonNull);
+	}
+	
+	/**
+	 * Returns lazy stream of stored results matching given query. With index
+	 * only matching results are read, otherwise all results are read.
+	 * 
+	 * @param query
+	 * @return
+	 * @throws StorageException
+	 */
+	public Stream<Result> findResults(ResultQuery query) throws StorageException {
+		if (index == null || !index.exists())
+			return getResults().filter(query::matches);
+		return index.find(query).stream().map(id -> {
+			try {
+				return readResultOrNull(convertModelIdToDir(id));
+			} catch (StorageException e) {
+				return null;
+			}
+		}).filter(Objects::nonNull).filter(query::matches);
+	}
+	
+	/**
+	 * Reads stored result.
+	 * 
+	 * @param resultId
+	 * @return
+	 * @throws StorageException
+	 */
+	public Result readResult(String resultId) throws StorageException {
+		File resultDir = convertModelIdToDir(resultId);
+		try {
+			return readModelFile(resultDir, Result.class);
+		} catch (IOException e) {
+			throw new StorageException("Unable to read result " + resultId, e);
+		}
+	}
+	
+	/**
+	 * Replaces index content with all results stored in base directory.
+	 * 
+	 * @throws StorageException
+	 */
+	public void rebuildIndex() throws StorageException {
+		ResultIndex index = this.index == null ? new ResultIndex(baseDir) : this.index;
+		index.clear();
+		try (Stream<Result> results = getResults()) {
+			for (Result result : (Iterable<Result>) results::iterator) {
+				if (!index.add(result.getId(), result))
+					getLogger().warn("Result id is too long to be indexed: " + result.getId());
+			}
+		}
+	}
+
 	@Override
 	protected Result createResult(String projectKey, Result result, List<Object> attachments) throws StorageException {
 		File baseDir = this.baseDir;
 		File resultDir = createModelDir(baseDir, result);
+		List<File> files = new ArrayList<>();
 		
-		createModelFile(resultDir, result);
+		files.add(createModelFile(resultDir, result));
 		if (projectKey != null)
-			createModelProjectKeyFile(resultDir, result, projectKey);
-		
-		if (attachments != null && !attachments.isEmpty()) {
-			File resultAttachmentDir = createResultAttachmentDir(resultDir);
-			for (Object attachment : attachments) {
-				if (attachment instanceof File) {
-					try {
-						Files.copy(((File) attachment).toPath(), resultAttachmentDir.toPath(), StandardCopyOption.REPLACE_EXISTING);
-					} catch (IOException e) {
-						throw new StorageException("Unable to copy result attachment file: " + attachment, e);
-					}
-				} else if (attachment instanceof ExtendedFile) {
-					ExtendedFile file = (ExtendedFile) attachment;
-					File targetFile = new File(resultAttachmentDir, file.getPath());
-					targetFile.mkdirs();
-					try {
-						Files.copy(file.getFile().toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-					} catch (IOException e) {
-						throw new StorageException("Unable to copy result attachment file: " + attachment, e);
+			files.add(createModelProjectKeyFile(resultDir, result, projectKey));
+		if (result.getIdempotencyKey() != null)
+			files.add(createResultIdempotencyKeyFile(resultDir, result));
+		
+		attachments = transformAttachments(result, attachments);
+		try {
+			if (attachments != null && !attachments.isEmpty()) {
+				File resultAttachmentDir = createResultAttachmentDir(resultDir);
+				for (Object attachment : attachments) {
+					if (attachment instanceof File) {
+						File file = (File) attachment;
+						File targetFile = new File(resultAttachmentDir, file.getName());
+						copyResultAttachment(file, targetFile);
+						files.add(targetFile);
+					} else if (attachment instanceof ExtendedFile) {
+						ExtendedFile file = (ExtendedFile) attachment;
+						String path = file.getPath() == null ? file.getFile().getName() : file.getPath();
+						File targetFile = new File(resultAttachmentDir, path);
+						copyResultAttachment(file.getFile(), targetFile);
+						files.add(targetFile);
+					} else {
+						throw new PermanentStorageException("Unsupported attachment type: " + attachment.getClass());
 					}
-				} else {
-					throw new StorageException("Unsupported attachment type: " + attachment.getClass());
 				}
 			}
+		} finally {
+			deleteTemporaryFiles(attachments);
 		}
 		
-		createModelReadyFile(resultDir, result);
+		syncModelFiles(resultDir, result, files);
+		syncModelReadyFile(resultDir, result, createModelReadyFile(resultDir, result));
 		result.setId(createModelId(resultDir));
 		
+		if (index != null) {
+			try {
+				if (!index.add(result.getId(), result))
+					getLogger().warn("Result id is too long to be indexed: " + result.getId());
+			} catch (StorageException e) {
+				getLogger().warn("Unable to index result " + result.getId(), e);
+			}
+		}
+		
 		return result;
 	}
 	
+	@Override
+	protected void createSuiteSummary(String projectKey, SuiteSummary summary) throws StorageException {
+		File summaryDir = createModelDir(baseDir, summary);
+		List<File> files = new ArrayList<>();
+		files.add(createModelFile(summaryDir, summary));
+		if (projectKey != null)
+			files.add(createModelProjectKeyFile(summaryDir, summary, projectKey));
+		syncModelFiles(summaryDir, summary, files);
+		syncModelReadyFile(summaryDir, summary, createModelReadyFile(summaryDir, summary));
+	}
+	
 	@Override
 	protected void deleteResult(Result result) throws StorageException {
 		File resultDir;
@@ -99,6 +294,23 @@ public class FileSystemStorage extends Storage {
 			throw new StorageException("Result not found, it must be added before deleting");
 		}
 		deleteModelDir(resultDir, result);
+		if (index != null) {
+			try {
+				index.remove(result.getId());
+			} catch (StorageException e) {
+				getLogger().warn("Unable to remove result from index " + result.getId(), e);
+			}
+		}
+	}
+	
+	protected void copyResultAttachment(File file, File targetFile) throws StorageException {
+		targetFile.getParentFile().mkdirs();
+		try (WriterSpan span = WriterTrace.begin(Phase.ATTACHMENT).bytes(file.length())) {
+			writeFileAtomically(targetFile, out -> Files.copy(file.toPath(), out));
+			span.success();
+		} catch (IOException e) {
+			throw new StorageException("Unable to copy result attachment file: " + file, e);
+		}
 	}
 	
 	protected File createResultAttachmentDir(File resultDir) {
@@ -108,28 +320,73 @@ public class FileSystemStorage extends Storage {
 		return attachmentDir;
 	}
 
-	protected File createModelDir(File baseDir, Model model) {
+	protected File createModelDir(File baseDir, Model model) throws StorageException {
 		String dirName = String.valueOf(new Date().getTime());
+		File parentDir = getModelShardDir(baseDir, model, dirName);
+		if (!parentDir.isDirectory() && !parentDir.mkdirs() && !parentDir.isDirectory())
+			throw new StorageException("Unable to create " + getModelName(model) + " shard directory: " + parentDir);
 		int increment = 0;
 		File dir = null;
 		do {
 			if (increment == 0) {
-				dir = new File(baseDir, dirName);
+				dir = new File(parentDir, dirName);
 			} else {
-				dir = new File(baseDir, dirName + "-" + increment);
+				dir = new File(parentDir, dirName + "-" + increment);
 			}
 			increment++;
-		} while (dir.exists());
+			if (increment > 1000)
+				throw new StorageException("Unable to create " + getModelName(model) + " directory: " + dir);
+		} while (!dir.mkdir());
 
-		dir.mkdir();
 		getLogger().info(getModelName(model) + " directory created: " + dir);
 		return dir;
 	}
+	
+	/**
+	 * Returns directory under which model directory with given name is
+	 * created, it is base directory itself when sharding is not used.
+	 */
+	protected File getModelShardDir(File baseDir, Model model, String dirName) {
+		File dir = baseDir;
+		for (ShardLevel level : sharding) {
+			switch (level) {
+			case DATE:
+				dir = new File(dir, new SimpleDateFormat("yyyy-MM-dd").format(new Date()));
+				break;
+			case JOB:
+				dir = new File(dir, sanitizeShardName(model instanceof Result ? ((Result) model).getJob()
+						: model instanceof SuiteSummary ? ((SuiteSummary) model).getJob() : null));
+				break;
+			case SUITE:
+				dir = new File(dir, sanitizeShardName(model instanceof Result ? ((Result) model).getSuite()
+						: model instanceof SuiteSummary ? ((SuiteSummary) model).getSuite() : null));
+				break;
+			case HASH:
+				int hash = dirName.hashCode() * 0x9e3779b9;
+				for (int i = 0; i < shardingDepth; i++) {
+					dir = new File(dir, String.format("%02x", (hash >>> (24 - 8 * (i % 4))) & 0xff));
+				}
+				break;
+			}
+		}
+		return dir;
+	}
+	
+	protected String sanitizeShardName(String name) {
+		if (name == null || name.isEmpty())
+			return "_";
+		String sanitized = name.replaceAll("[^A-Za-z0-9._-]", "_");
+		if (sanitized.length() > 64)
+			sanitized = sanitized.substring(0, 64);
+		return sanitized.matches("\\.+") ? "_" : sanitized;
+	}
 
 	protected File createModelFile(File modelDir, Model model) throws StorageException {
-		try {
+		try (WriterSpan span = WriterTrace.begin(Phase.SERIALIZE)) {
 			File jsonFile = getModelJsonFile(modelDir, model);
-			new ObjectMapper().writeValue(jsonFile, model);
+			ObjectMapper mapper = new ObjectMapper();
+			writeFileAtomically(jsonFile, out -> mapper.writeValue(out, model));
+			span.bytes(jsonFile.length()).success();
 			getLogger().info(getModelName(model) + " json file created: " + jsonFile);
 			return jsonFile;
 		} catch (IOException e) {
@@ -137,6 +394,28 @@ public class FileSystemStorage extends Storage {
 		}
 	}
 	
+	protected <T extends Model> T readModelFile(File modelDir, Class<T> modelClass) throws IOException {
+		T model = new ObjectMapper().readValue(new File(modelDir, modelClass.getSimpleName() + ".json"), modelClass);
+		if (model instanceof Result) {
+			((Result) model).setId(createModelId(modelDir));
+			File idempotencyKeyFile = getResultIdempotencyKeyFile(modelDir);
+			if (idempotencyKeyFile.isFile())
+				((Result) model).setIdempotencyKey(new String(Files.readAllBytes(idempotencyKeyFile.toPath())));
+		}
+		return model;
+	}
+	
+	protected Result readResultOrNull(File resultDir) {
+		if (!new File(resultDir, Result.class.getSimpleName() + ".json").isFile())
+			return null;
+		try {
+			return readModelFile(resultDir, Result.class);
+		} catch (IOException e) {
+			getLogger().warn("Unable to read result from " + resultDir, e);
+			return null;
+		}
+	}
+	
 	protected File createModelReadyFile(File modelDir, Model model) throws StorageException {
 		try {
 			File readyFile = getModelReadyFile(modelDir);
@@ -151,7 +430,7 @@ public class FileSystemStorage extends Storage {
 	protected File createModelProjectKeyFile(File modelDir, Model model, String projectKey) throws StorageException {
 		try {
 			File projectFile = getModelProjectKeyFile(modelDir);
-			Files.write(projectFile.toPath(), projectKey.getBytes());
+			writeFileAtomically(projectFile, out -> out.write(projectKey.getBytes()));
 			getLogger().info(getModelName(model) + " project key file created: " + projectFile);
 			return projectFile;
 		} catch (IOException e) {
@@ -159,6 +438,100 @@ public class FileSystemStorage extends Storage {
 		}
 	}
 
+	protected File createResultIdempotencyKeyFile(File resultDir, Result result) throws StorageException {
+		try {
+			File idempotencyKeyFile = getResultIdempotencyKeyFile(resultDir);
+			writeFileAtomically(idempotencyKeyFile, out -> out.write(result.getIdempotencyKey().getBytes()));
+			getLogger().info(getModelName(result) + " idempotency key file created: " + idempotencyKeyFile);
+			return idempotencyKeyFile;
+		} catch (IOException e) {
+			throw new StorageException("Unable to create " + getModelName(result) + " idempotency key file", e);
+		}
+	}
+
+	/**
+	 * Writes file under temporary name in the same directory and renames it,
+	 * so file is never seen partially written.
+	 * 
+	 * @param file
+	 * @param writer
+	 * @throws IOException
+	 */
+	protected void writeFileAtomically(File file, FileWriter writer) throws IOException {
+		File tempFile = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(tempFile.toPath())) {
+				writer.write(out);
+			}
+			try {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tempFile.toPath());
+		}
+	}
+	
+	/**
+	 * Syncs written files and directories up to base directory according to
+	 * durability, it must be done before model is marked as ready, so ready
+	 * model has complete files after crash.
+	 * 
+	 * @param modelDir
+	 * @param model
+	 * @param files
+	 * @throws StorageException
+	 */
+	protected void syncModelFiles(File modelDir, Model model, List<File> files) throws StorageException {
+		if (durability == Durability.NONE)
+			return;
+		Set<File> dirs = new LinkedHashSet<>();
+		File base = baseDir.getAbsoluteFile();
+		for (File file : files) {
+			File dir = file.getAbsoluteFile().getParentFile();
+			while (dir != null && dirs.add(dir) && !dir.equals(base)) {
+				dir = dir.getParentFile();
+			}
+		}
+		try (WriterSpan span = WriterTrace.begin(Phase.SYNC)) {
+			if (durability == Durability.GROUP_COMMIT) {
+				groupCommit.sync(files, dirs);
+			} else {
+				GroupCommit.syncAll(files, dirs);
+			}
+			span.success();
+		} catch (IOException e) {
+			throw new StorageException("Unable to sync " + getModelName(model) + " files: " + modelDir, e);
+		}
+	}
+	
+	/**
+	 * Syncs ready file and its directory entry according to durability, so
+	 * model reported as stored is still ready after crash.
+	 * 
+	 * @param modelDir
+	 * @param model
+	 * @param readyFile
+	 * @throws StorageException
+	 */
+	protected void syncModelReadyFile(File modelDir, Model model, File readyFile) throws StorageException {
+		if (durability == Durability.NONE)
+			return;
+		List<File> files = Collections.singletonList(readyFile);
+		List<File> dirs = Collections.singletonList(modelDir.getAbsoluteFile());
+		try (WriterSpan span = WriterTrace.begin(Phase.SYNC)) {
+			if (durability == Durability.GROUP_COMMIT) {
+				groupCommit.sync(files, dirs);
+			} else {
+				GroupCommit.syncAll(files, dirs);
+			}
+			span.success();
+		} catch (IOException e) {
+			throw new StorageException("Unable to sync " + getModelName(model) + " ready file: " + modelDir, e);
+		}
+	}
+	
 	protected File getModelJsonFile(File modelDir, Model model) {
 		return new File(modelDir, getModelName(model) + ".json");
 	}
@@ -171,6 +544,10 @@ public class FileSystemStorage extends Storage {
 		return new File(modelDir, "projectkey");
 	}
 	
+	protected File getResultIdempotencyKeyFile(File resultDir) {
+		return new File(resultDir, "idempotencykey");
+	}
+	
 	protected boolean deleteModelDir(File modelDir, Model model) {
 		getLogger().info("Deleting " + getModelName(model) + " directory: " + modelDir.getName());
 		return deleteDir(modelDir);
@@ -194,6 +571,8 @@ public class FileSystemStorage extends Storage {
 			throw new StorageException("Model directory is uknown because of empty model id");
 		}
 		File file = getModelIdDir(modelId);
+		if (!file.toPath().normalize().startsWith(baseDir.toPath().normalize()) || modelId.isEmpty())
+			throw new StorageException("Model directory is outside of base directory: " + modelId);
 		if (!file.exists())
 			throw new StorageException("Model directory does not exists: " + file);
 		if (!file.isDirectory())
@@ -208,11 +587,147 @@ public class FileSystemStorage extends Storage {
 	}
 	
 	protected String createModelId(File modelDir) {
-		return baseDir.toPath().relativize(modelDir.toPath()).normalize().toString().replaceAll(File.separator, "/");
+		return baseDir.toPath().relativize(modelDir.toPath()).normalize().toString().replace(File.separatorChar, '/');
 	}
 	
 	protected String getModelName(Model model) {
 		return model.getClass().getSimpleName();
 	}
+	
+	/**
+	 * Iterates over ready model directories in base directory, directories
+	 * are listed lazily and model directories are not descended.
+	 */
+	private class ModelDirIterator implements Iterator<File>, Closeable {
+		
+		private final Deque<DirectoryStream<Path>> streams = new ArrayDeque<>();
+		
+		private final Deque<Iterator<Path>> iterators = new ArrayDeque<>();
+		
+		private File next;
+		
+		private ModelDirIterator(Path root) {
+			open(root);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && !iterators.isEmpty()) {
+				Iterator<Path> iterator = iterators.peek();
+				if (!iterator.hasNext()) {
+					iterators.pop();
+					closeQuietly(streams.pop());
+					continue;
+				}
+				File dir = iterator.next().toFile();
+				if (getModelReadyFile(dir).exists()) {
+					next = dir;
+				} else {
+					open(dir.toPath());
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public File next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			File dir = next;
+			next = null;
+			return dir;
+		}
+
+		@Override
+		public void close() {
+			while (!streams.isEmpty()) {
+				closeQuietly(streams.pop());
+			}
+			iterators.clear();
+		}
+		
+		private void open(Path dir) {
+			try {
+				DirectoryStream<Path> stream = Files.newDirectoryStream(dir, Files::isDirectory);
+				streams.push(stream);
+				iterators.push(stream.iterator());
+			} catch (IOException e) {
+				getLogger().warn("Unable to list directory " + dir, e);
+			}
+		}
+		
+		private void closeQuietly(DirectoryStream<Path> stream) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				getLogger().warn("Unable to close directory stream", e);
+			}
+		}
+		
+	}
+	
+	public enum Durability {
+		
+		/**
+		 * Files are not synced, fastest, model can be lost or ready with
+		 * incomplete files when system crashes.
+		 */
+		NONE,
+		
+		/**
+		 * Files and directories of each model are synced before it is marked
+		 * as ready, ready file is synced before model is reported as stored.
+		 */
+		PER_RESULT,
+		
+		/**
+		 * Like {@link #PER_RESULT}, but concurrent writers share one sync, see
+		 * {@link GroupCommit}.
+		 */
+		GROUP_COMMIT;
+		
+		public static Durability valueOfString(String value) {
+			return valueOf(value.trim().toUpperCase().replace('-', '_'));
+		}
+		
+	}
+	
+	/**
+	 * Writes content of file.
+	 */
+	@FunctionalInterface
+	protected interface FileWriter {
+		
+		void write(OutputStream out) throws IOException;
+		
+	}
+	
+	public enum ShardLevel {
+		
+		/**
+		 * Day when model is stored.
+		 */
+		DATE,
+		
+		/**
+		 * Job name.
+		 */
+		JOB,
+		
+		/**
+		 * Suite name.
+		 */
+		SUITE,
+		
+		/**
+		 * Hash prefix, see {@link FileSystemStorage#setShardingDepth(int)}.
+		 */
+		HASH;
+		
+		public static ShardLevel valueOfString(String value) {
+			return valueOf(value.trim().toUpperCase());
+		}
+		
+	}
 
 }
@@ -0,0 +1,211 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares fsync among concurrent writers. The first writer becomes leader,
+ * waits for given window so other writers can join, and syncs files and
+ * directories of all of them at once. Writers coming while leader syncs
+ * form the next group, so group commit batches writes even with zero
+ * window.
+ */
+public class GroupCommit {
+
+	public static final long DEFAULT_WINDOW_MILLIS = 5;
+
+	protected final long windowNanos;
+
+	private Group pending = new Group();
+
+	private boolean leading;
+
+	private long commits;
+
+	private long writes;
+
+	/**
+	 * @param windowMillis
+	 *            Time leader waits for other writers
+	 */
+	public GroupCommit(long windowMillis) {
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+	}
+
+	/**
+	 * Blocks until given files and directories are synced to disk.
+	 *
+	 * @param files
+	 * @param dirs
+	 * @throws IOException
+	 *             When sync of group failed
+	 */
+	public void sync(Collection<File> files, Collection<File> dirs) throws IOException {
+		Group group;
+		synchronized (this) {
+			group = pending;
+			group.files.addAll(files);
+			group.dirs.addAll(dirs);
+			group.writes++;
+			try {
+				while (!group.done && leading) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for group commit");
+			}
+			if (group.done) {
+				if (group.error != null)
+					throw new IOException("Group commit failed", group.error);
+				return;
+			}
+			leading = true;
+		}
+		try {
+			if (windowNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(windowNanos);
+				} catch (InterruptedException e) {
+					// group is synced anyway, others wait for it
+					Thread.currentThread().interrupt();
+				}
+			}
+			synchronized (this) {
+				pending = new Group();
+			}
+			group.sync();
+		} catch (IOException | RuntimeException e) {
+			group.error = e;
+			throw e;
+		} finally {
+			synchronized (this) {
+				group.done = true;
+				leading = false;
+				commits++;
+				writes += group.writes;
+				notifyAll();
+			}
+		}
+	}
+
+	public long getWindowMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(windowNanos);
+	}
+
+	/**
+	 * Returns number of fsync rounds.
+	 *
+	 * @return
+	 */
+	public synchronized long getCommits() {
+		return commits;
+	}
+
+	/**
+	 * Returns number of writers synced by all rounds.
+	 *
+	 * @return
+	 */
+	public synchronized long getWrites() {
+		return writes;
+	}
+
+	/**
+	 * Syncs content of file to disk.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void syncFile(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Syncs entries of directory to disk, so created and renamed files
+	 * survive crash. Platforms which can not open directory (Windows) are
+	 * skipped.
+	 *
+	 * @param dir
+	 * @throws IOException
+	 */
+	public static void syncDir(File dir) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			getLogger().debug("Unable to open directory for sync: " + dir, e);
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Syncs files and then directories.
+	 *
+	 * @param files
+	 * @param dirs
+	 * @throws IOException
+	 */
+	public static void syncAll(Collection<File> files, Collection<File> dirs) throws IOException {
+		for (File file : files) {
+			syncFile(file);
+		}
+		for (File dir : dirs) {
+			syncDir(dir);
+		}
+	}
+
+	protected static Logger getLogger() {
+		return LoggerFactory.getLogger(GroupCommit.class);
+	}
+
+	private static class Group {
+
+		private final Set<File> files = new LinkedHashSet<>();
+
+		private final Set<File> dirs = new LinkedHashSet<>();
+
+		private int writes;
+
+		private boolean done;
+
+		private Exception error;
+
+		private void sync() throws IOException {
+			syncAll(files, dirs);
+		}
+
+	}
+
+}
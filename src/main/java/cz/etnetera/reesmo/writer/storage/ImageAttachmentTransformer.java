@@ -0,0 +1,258 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+
+/**
+ * Downscales and re-encodes image attachments on worker pool. Attachments
+ * which are not images, can not be read or would not get smaller are stored
+ * untouched.
+ */
+public class ImageAttachmentTransformer implements AttachmentTransformer {
+
+	public static final double DEFAULT_QUALITY = 0.8;
+
+	protected static final String ORIGINAL_PATH = "original";
+
+	protected final Integer maxDimension;
+
+	protected final String format;
+
+	protected final double quality;
+
+	protected final boolean keepOriginalForFailed;
+
+	private final ExecutorService executor;
+
+	/**
+	 * @param maxDimension
+	 *            Maximal width and height of stored image, null keeps
+	 *            dimensions
+	 * @param format
+	 *            Image format name, i.e. jpg or png, null keeps format
+	 * @param quality
+	 *            Compression quality between 0 and 1 used by lossy formats
+	 * @param keepOriginalForFailed
+	 *            Store also original images for failed and broken results
+	 * @param threads
+	 *            Worker pool size
+	 */
+	public ImageAttachmentTransformer(Integer maxDimension, String format, double quality,
+			boolean keepOriginalForFailed, int threads) {
+		this.maxDimension = maxDimension;
+		this.format = format == null ? null : format.toLowerCase();
+		this.quality = quality;
+		this.keepOriginalForFailed = keepOriginalForFailed;
+		AtomicInteger counter = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+			Thread thread = new Thread(r, "reesmo-image-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public List<Object> transform(Result result, List<Object> attachments) throws StorageException {
+		if (attachments == null || attachments.isEmpty())
+			return attachments;
+		boolean keepOriginal = keepOriginalForFailed && result != null
+				&& (TestStatus.FAILED.equals(result.getStatus()) || TestStatus.BROKEN.equals(result.getStatus()));
+		List<Future<Object>> transformed = new ArrayList<>();
+		for (Object attachment : attachments) {
+			transformed.add(isImage(attachment) ? executor.submit(() -> transformImage(attachment)) : null);
+		}
+		List<Object> newAttachments = new ArrayList<>();
+		for (int i = 0; i < attachments.size(); i++) {
+			Object attachment = attachments.get(i);
+			Object newAttachment = attachment;
+			if (transformed.get(i) != null) {
+				try {
+					newAttachment = transformed.get(i).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new StorageException("Interrupted while transforming attachment: " + attachment, e);
+				} catch (ExecutionException e) {
+					getLogger().warn("Unable to transform attachment, original is stored: " + attachment, e.getCause());
+				}
+			}
+			newAttachments.add(newAttachment);
+			if (keepOriginal && newAttachment != attachment) {
+				newAttachments.add(ExtendedFile.withPathAndContentType(getFile(attachment),
+						ORIGINAL_PATH + "/" + getPath(attachment), getContentType(attachment)));
+			}
+		}
+		return newAttachments;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+	protected Object transformImage(Object attachment) throws IOException {
+		File file = getFile(attachment);
+		String sourceFormat;
+		BufferedImage image;
+		// format is read from content, file name may not match it
+		try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+			if (input == null)
+				return attachment;
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext())
+				return attachment;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				sourceFormat = reader.getFormatName().toLowerCase();
+				image = reader.read(0);
+			} finally {
+				reader.dispose();
+			}
+		}
+		String targetFormat = format == null ? sourceFormat : format;
+		BufferedImage scaled = scale(image);
+		if (scaled == image && isSameFormat(targetFormat, sourceFormat))
+			return attachment;
+		if (isJpeg(targetFormat) && scaled.getColorModel().hasAlpha())
+			scaled = copy(scaled, scaled.getWidth(), scaled.getHeight(), BufferedImage.TYPE_INT_RGB);
+
+		File target = File.createTempFile("reesmo-image-", "." + targetFormat);
+		if (!write(scaled, targetFormat, target) || target.length() >= file.length()) {
+			target.delete();
+			return attachment;
+		}
+		getLogger().debug("Attachment " + file + " transformed from " + file.length() + " to " + target.length() + " bytes");
+		String path = getPath(attachment);
+		return new TemporaryFile(target, replaceExtension(path, targetFormat), "image/" + (isJpeg(targetFormat) ? "jpeg" : targetFormat));
+	}
+
+	protected BufferedImage scale(BufferedImage image) {
+		int size = Math.max(image.getWidth(), image.getHeight());
+		if (maxDimension == null || size <= maxDimension)
+			return image;
+		double ratio = (double) maxDimension / size;
+		int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+		int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+		int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		return copy(image, width, height, type);
+	}
+
+	protected boolean write(BufferedImage image, String targetFormat, File target) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(targetFormat);
+		if (!writers.hasNext())
+			return false;
+		ImageWriter writer = writers.next();
+		try (ImageOutputStream output = ImageIO.createImageOutputStream(target)) {
+			writer.setOutput(output);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if (param.canWriteCompressed() && isJpeg(targetFormat)) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality((float) quality);
+			}
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return true;
+	}
+
+	protected boolean isImage(Object attachment) {
+		File file = getFile(attachment);
+		if (file == null || !file.isFile())
+			return false;
+		String contentType = getContentType(attachment);
+		return contentType != null && contentType.startsWith("image/");
+	}
+
+	protected Logger getLogger() {
+		return LoggerFactory.getLogger(getClass());
+	}
+
+	private BufferedImage copy(BufferedImage image, int width, int height, int type) {
+		BufferedImage copy = new BufferedImage(width, height, type);
+		Graphics2D graphics = copy.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			graphics.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			graphics.dispose();
+		}
+		return copy;
+	}
+
+	private File getFile(Object attachment) {
+		if (attachment instanceof File)
+			return (File) attachment;
+		if (attachment instanceof ExtendedFile)
+			return ((ExtendedFile) attachment).getFile();
+		return null;
+	}
+
+	private String getPath(Object attachment) {
+		if (attachment instanceof ExtendedFile && ((ExtendedFile) attachment).getPath() != null)
+			return ((ExtendedFile) attachment).getPath();
+		return getFile(attachment).getName();
+	}
+
+	private String getContentType(Object attachment) {
+		if (attachment instanceof ExtendedFile && ((ExtendedFile) attachment).getContentType() != null)
+			return ((ExtendedFile) attachment).getContentType();
+		return URLConnection.guessContentTypeFromName(getFile(attachment).getName());
+	}
+
+	private boolean isSameFormat(String format, String otherFormat) {
+		return format.equals(otherFormat) || isJpeg(format) && isJpeg(otherFormat);
+	}
+
+	private String replaceExtension(String path, String extension) {
+		int dot = path.lastIndexOf('.');
+		int slash = path.lastIndexOf('/');
+		return (dot > slash ? path.substring(0, dot) : path) + "." + extension;
+	}
+
+	private boolean isJpeg(String format) {
+		return "jpg".equals(format) || "jpeg".equals(format);
+	}
+
+}
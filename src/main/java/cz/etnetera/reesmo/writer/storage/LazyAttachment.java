@@ -0,0 +1,70 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Attachment which is produced only when storage decides to store it, see
+ * {@link Storage#setLazyAttachmentStatuses(java.util.Collection)}. Supplier
+ * returns {@link java.io.File}, {@link ExtendedFile}, collection of them or
+ * null when there is nothing to attach.
+ */
+public class LazyAttachment {
+
+	@FunctionalInterface
+	public interface Supplier {
+
+		Object get() throws Exception;
+
+	}
+
+	protected final Supplier supplier;
+
+	public static LazyAttachment of(Supplier supplier) {
+		return new LazyAttachment(supplier);
+	}
+
+	public LazyAttachment(Supplier supplier) {
+		this.supplier = supplier;
+	}
+
+	/**
+	 * Produces attachment.
+	 * 
+	 * @return Produced attachments, never null
+	 * @throws StorageException
+	 */
+	public Collection<?> resolve() throws StorageException {
+		Object attachment;
+		try {
+			attachment = supplier.get();
+		} catch (Exception e) {
+			throw new StorageException("Unable to produce lazy attachment", e);
+		}
+		if (attachment == null)
+			return Collections.emptyList();
+		if (attachment instanceof Collection)
+			return (Collection<?>) attachment;
+		return Collections.singletonList(attachment);
+	}
+
+	@Override
+	public String toString() {
+		return "LazyAttachment [supplier=" + supplier + "]";
+	}
+
+}
@@ -0,0 +1,49 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+/**
+ * Failure which does not go away by retrying, such as result rejected by
+ * server.
+ */
+public class PermanentStorageException extends StorageException {
+
+	private static final long serialVersionUID = -4170531260811934457L;
+
+	public PermanentStorageException(String message) {
+		super(message);
+	}
+
+	public PermanentStorageException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	/**
+	 * Returns true if throwable or any of its causes is permanent failure.
+	 * 
+	 * @param throwable
+	 * @return
+	 */
+	public static boolean isPermanent(Throwable throwable) {
+		for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+			if (cause instanceof PermanentStorageException)
+				return true;
+			if (cause.getCause() == cause)
+				break;
+		}
+		return false;
+	}
+
+}
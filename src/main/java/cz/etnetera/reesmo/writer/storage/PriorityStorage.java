@@ -0,0 +1,537 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+
+/**
+ * Stores results into wrapped storage on worker threads taking tasks from
+ * priority lanes, see {@link Lane}. When wrapped storage supports
+ * {@link AttachmentUploads}, result is created first and its attachments
+ * are uploaded by separate tasks, so failures are visible while attachments
+ * of earlier results are still uploading. Other storages get whole results
+ * in metadata lanes. Result is copied when it is accepted, so caller keeps
+ * its instance.
+ * <p>
+ * Free worker takes task from the lane with the lowest virtual time, which
+ * advances by inverse of lane weight with each task, so lanes get workers in
+ * proportion to their weights while they have tasks. Share limits number of
+ * workers lane may occupy, so large attachments never take all workers.
+ * Returned result has no id as it is not stored yet.
+ * <p>
+ * Adding result blocks while max pending tasks wait in lanes, so outage of
+ * wrapped storage holds callers (and buffer of {@link BufferedStorage})
+ * instead of queueing results in memory. Failing tasks are retried with
+ * backoff up to max attempts, results and attachments which were given up
+ * fail the next flush and are reported to attachment uploads.
+ */
+public class PriorityStorage extends Storage {
+
+	public static final int DEFAULT_WORKERS = 4;
+
+	public static final List<Double> DEFAULT_WEIGHTS = Arrays.asList(8.0, 4.0, 2.0, 1.0);
+
+	public static final List<Double> DEFAULT_SHARES = Arrays.asList(1.0, 1.0, 0.25, 0.5);
+
+	public static final long DEFAULT_LARGE_ATTACHMENT_SIZE = 1024 * 1024;
+
+	public static final int DEFAULT_MAX_PENDING = 1000;
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 50;
+
+	protected static final long RETRY_DELAY_MIN = 500;
+
+	protected static final long RETRY_DELAY_MAX = 30000;
+
+	public enum Lane {
+		/**
+		 * Failed and broken results.
+		 */
+		FAILED_METADATA,
+		/**
+		 * Other results.
+		 */
+		METADATA,
+		/**
+		 * Attachments smaller than large attachment size.
+		 */
+		SMALL_ATTACHMENTS,
+		/**
+		 * Attachments of large attachment size and directories.
+		 */
+		LARGE_ATTACHMENTS
+	}
+
+	protected final Storage storage;
+
+	protected final double[] weights;
+
+	protected final int[] limits;
+
+	protected long largeAttachmentSize = DEFAULT_LARGE_ATTACHMENT_SIZE;
+
+	protected int maxPending = DEFAULT_MAX_PENDING;
+
+	protected int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	private final Object lock = new Object();
+
+	private final List<PriorityQueue<Task>> queues = new ArrayList<>();
+
+	private final int[] running;
+
+	private final double[] passes;
+
+	private double pass;
+
+	private int pending;
+
+	private long reportedFailures;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private final List<Thread> workers = new ArrayList<>();
+
+	private boolean closed;
+
+	/**
+	 * @param storage
+	 * @param workers
+	 *            Number of worker threads
+	 * @param weights
+	 *            Weight of each lane in order of {@link Lane}
+	 * @param shares
+	 *            Max fraction of workers each lane may occupy in order of
+	 *            {@link Lane}, at least one worker
+	 * @throws StorageException
+	 */
+	public PriorityStorage(Storage storage, int workers, List<Double> weights, List<Double> shares)
+			throws StorageException {
+		if (storage == null)
+			throw new StorageException("Prioritized storage is null");
+		if (workers < 1)
+			throw new StorageException("Number of workers must be positive: " + workers);
+		int lanes = Lane.values().length;
+		if (weights == null || weights.size() != lanes || shares == null || shares.size() != lanes)
+			throw new StorageException("Weights and shares of all " + lanes + " lanes are required");
+		this.storage = storage;
+		this.weights = new double[lanes];
+		this.limits = new int[lanes];
+		this.running = new int[lanes];
+		this.passes = new double[lanes];
+		for (int i = 0; i < lanes; i++) {
+			if (weights.get(i) <= 0 || shares.get(i) <= 0 || shares.get(i) > 1)
+				throw new StorageException("Invalid weight " + weights.get(i) + " or share " + shares.get(i)
+						+ " of lane " + Lane.values()[i]);
+			this.weights[i] = weights.get(i);
+			this.limits[i] = Math.max(1, (int) Math.floor(shares.get(i) * workers + 1e-9));
+			queues.add(new PriorityQueue<>(Comparator.comparingInt((Task task) -> task.rank)
+					.thenComparingLong(task -> task.sequence)));
+		}
+		for (int i = 0; i < workers; i++) {
+			Thread worker = new Thread(this::work, "reesmo-priority-" + (i + 1));
+			worker.setDaemon(true);
+			worker.start();
+			this.workers.add(worker);
+		}
+	}
+
+	public PriorityStorage(Storage storage) throws StorageException {
+		this(storage, DEFAULT_WORKERS, DEFAULT_WEIGHTS, DEFAULT_SHARES);
+	}
+
+	public Storage getStorage() {
+		return storage;
+	}
+
+	public long getLargeAttachmentSize() {
+		return largeAttachmentSize;
+	}
+
+	/**
+	 * Set size from which attachments go to
+	 * {@link Lane#LARGE_ATTACHMENTS}.
+	 *
+	 * @param largeAttachmentSize
+	 */
+	public void setLargeAttachmentSize(long largeAttachmentSize) {
+		this.largeAttachmentSize = largeAttachmentSize;
+	}
+
+	public int getMaxPending() {
+		return maxPending;
+	}
+
+	/**
+	 * Set number of tasks waiting in lanes from which adding result blocks.
+	 * Attachment tasks of created results are accepted over the limit.
+	 *
+	 * @param maxPending
+	 */
+	public void setMaxPending(int maxPending) {
+		this.maxPending = Math.max(1, maxPending);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Set number of attempts to store result or attachment before it is
+	 * given up, 0 retries it until it is stored. Permanent failures are not
+	 * retried.
+	 *
+	 * @param maxAttempts
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = Math.max(0, maxAttempts);
+	}
+
+	/**
+	 * Returns max number of workers lane may occupy.
+	 *
+	 * @param lane
+	 * @return
+	 */
+	public int getLimit(Lane lane) {
+		return limits[lane.ordinal()];
+	}
+
+	/**
+	 * @param lane
+	 * @return Number of tasks waiting in lane
+	 */
+	public int getPendingCount(Lane lane) {
+		synchronized (lock) {
+			return queues.get(lane.ordinal()).size();
+		}
+	}
+
+	/**
+	 * @return Number of results and attachments which were not stored
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Blocks until all accepted results and attachments are stored or given
+	 * up.
+	 *
+	 * @throws StorageException
+	 *             When some results or attachments were given up since
+	 *             previous flush
+	 */
+	@Override
+	public void flush() throws StorageException {
+		long failures;
+		synchronized (lock) {
+			try {
+				while (!isIdle()) {
+					lock.wait(100);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StorageException("Interrupted while flushing prioritized storage", e);
+			}
+			failures = failed.get() - reportedFailures;
+			reportedFailures += failures;
+		}
+		storage.flush();
+		super.flush();
+		if (failures > 0)
+			throw new StorageException(failures + " results or attachments were not stored by prioritized storage");
+	}
+
+	/**
+	 * Stores pending tasks and stops workers.
+	 */
+	@Override
+	public void close() throws StorageException {
+		synchronized (lock) {
+			if (closed)
+				return;
+		}
+		try {
+			// flushes pending tasks
+			super.close();
+		} finally {
+			synchronized (lock) {
+				closed = true;
+				lock.notifyAll();
+			}
+			for (Thread worker : workers) {
+				try {
+					worker.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new StorageException("Interrupted while closing prioritized storage", e);
+				}
+			}
+			storage.close();
+		}
+	}
+
+	@Override
+	protected Result createResult(String projectKey, Result result, List<Object> attachments) throws StorageException {
+		boolean failure = TestStatus.FAILED.equals(result.getStatus()) || TestStatus.BROKEN.equals(result.getStatus());
+		Lane lane = failure ? Lane.FAILED_METADATA : Lane.METADATA;
+		// worker stores snapshot, caller may reuse its result
+		Result snapshot = copyResult(result);
+		List<Object> accepted = attachments == null ? null : new ArrayList<>(attachments);
+		Task task;
+		if (storage.isAttachmentUploadSupported()) {
+			task = new Task(() -> createResultAndSubmitAttachments(projectKey, snapshot, accepted, failure),
+					result.getName(), accepted, failure);
+		} else {
+			// wrapped storage deletes temporary files
+			task = new Task(() -> storage.createResult(projectKey, snapshot, transformAttachments(snapshot, accepted)),
+					result.getName(), accepted, failure);
+		}
+		submit(lane, task, true);
+		return result;
+	}
+
+	@Override
+	protected void deleteResult(Result result) throws StorageException {
+		storage.deleteResult(result);
+	}
+
+	protected Lane getAttachmentLane(Object attachment) {
+		File file = attachment instanceof ExtendedFile ? ((ExtendedFile) attachment).getFile()
+				: attachment instanceof File ? (File) attachment : null;
+		if (file == null || file.isDirectory() || file.length() >= largeAttachmentSize)
+			return Lane.LARGE_ATTACHMENTS;
+		return Lane.SMALL_ATTACHMENTS;
+	}
+
+	private void createResultAndSubmitAttachments(String projectKey, Result result, List<Object> attachments,
+			boolean failure) throws StorageException {
+		AttachmentUploads uploads = storage.createResultForUploads(projectKey, result);
+		Result created = uploads.getResult();
+		List<Object> transformed = transformAttachments(created, attachments);
+		if (transformed == null || transformed.isEmpty()) {
+			uploads.finish(Collections.emptyList());
+			return;
+		}
+		ResultAttachments owner = new ResultAttachments(uploads, transformed.size());
+		for (int i = 0; i < transformed.size(); i++) {
+			Object attachment = transformed.get(i);
+			String key = AttachmentUploads.getKey(attachment, i);
+			Task task = new Task(() -> uploads.upload(attachment, key),
+					created.getName() + " attachment " + attachment, Arrays.asList(attachment), failure);
+			task.owner = owner;
+			task.attachmentKey = key;
+			// worker must not wait for itself
+			submit(getAttachmentLane(attachment), task, false);
+		}
+	}
+
+	private void submit(Lane lane, Task task, boolean blocking) throws StorageException {
+		synchronized (lock) {
+			try {
+				while (blocking && !closed && pending >= maxPending) {
+					lock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StorageException("Interrupted while waiting for prioritized storage", e);
+			}
+			if (closed)
+				throw new StorageException("Prioritized storage is closed");
+			int index = lane.ordinal();
+			if (queues.get(index).isEmpty() && running[index] == 0)
+				// idle lane does not collect credit for time it had no tasks
+				passes[index] = Math.max(passes[index], pass);
+			task.lane = index;
+			task.sequence = sequence.getAndIncrement();
+			queues.get(index).add(task);
+			pending++;
+			lock.notifyAll();
+		}
+	}
+
+	private void work() {
+		while (true) {
+			Task task;
+			synchronized (lock) {
+				try {
+					while ((task = poll()) == null) {
+						if (closed && isIdle())
+							return;
+						lock.wait();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			try {
+				run(task);
+			} finally {
+				synchronized (lock) {
+					running[task.lane]--;
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	private Task poll() {
+		int lane = -1;
+		for (int i = 0; i < queues.size(); i++) {
+			if (!queues.get(i).isEmpty() && running[i] < limits[i] && (lane < 0 || passes[i] < passes[lane]))
+				lane = i;
+		}
+		if (lane < 0)
+			return null;
+		pass = passes[lane];
+		passes[lane] += 1 / weights[lane];
+		running[lane]++;
+		pending--;
+		// producers wait for free place in lanes
+		lock.notifyAll();
+		return queues.get(lane).poll();
+	}
+
+	private boolean isIdle() {
+		for (int i = 0; i < queues.size(); i++) {
+			if (!queues.get(i).isEmpty() || running[i] > 0)
+				return false;
+		}
+		return true;
+	}
+
+	private void run(Task task) {
+		long delay = RETRY_DELAY_MIN;
+		try {
+			for (int attempt = 1;; attempt++) {
+				try {
+					task.action.run();
+					finish(task, true);
+					return;
+				} catch (StorageException e) {
+					if (PermanentStorageException.isPermanent(e) || maxAttempts > 0 && attempt >= maxAttempts) {
+						getLogger().error("Unable to store " + task.name + " after " + attempt + " attempts", e);
+						finish(task, false);
+						return;
+					}
+					getLogger().info("Unable to store " + task.name + ", it will be retried in " + delay + " ms: "
+							+ e.getMessage());
+				}
+				Thread.sleep(delay);
+				delay = Math.min(delay * 2, RETRY_DELAY_MAX);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			finish(task, false);
+		} catch (RuntimeException e) {
+			getLogger().error("Unable to store " + task.name, e);
+			finish(task, false);
+		}
+	}
+
+	private void finish(Task task, boolean stored) {
+		if (!stored)
+			failed.incrementAndGet();
+		// attachment tasks own their temporary files, wrapped storage deletes
+		// temporary files of stored results
+		if (!stored || task.owner != null)
+			deleteTemporaryFiles(task.attachments);
+		if (task.owner != null)
+			task.owner.finish(task.attachmentKey, stored);
+	}
+
+	/**
+	 * Attachments of created result, result is completed when the last of
+	 * them is stored or given up.
+	 */
+	private class ResultAttachments {
+
+		private final AttachmentUploads uploads;
+
+		private final List<String> missing = new ArrayList<>();
+
+		private int remaining;
+
+		private ResultAttachments(AttachmentUploads uploads, int remaining) {
+			this.uploads = uploads;
+			this.remaining = remaining;
+		}
+
+		private void finish(String attachmentKey, boolean stored) {
+			synchronized (this) {
+				if (!stored)
+					missing.add(attachmentKey);
+				if (--remaining > 0)
+					return;
+			}
+			uploads.finish(missing);
+		}
+
+	}
+
+	@FunctionalInterface
+	private interface Action {
+
+		void run() throws StorageException;
+
+	}
+
+	private static class Task {
+
+		private final Action action;
+
+		private final String name;
+
+		private final List<Object> attachments;
+
+		/**
+		 * Tasks of failures go first within lane.
+		 */
+		private final int rank;
+
+		private long sequence;
+
+		private int lane;
+
+		/**
+		 * Result of attachment task or null.
+		 */
+		private ResultAttachments owner;
+
+		private String attachmentKey;
+
+		private Task(Action action, String name, List<Object> attachments, boolean failure) {
+			this.action = action;
+			this.name = name;
+			this.attachments = attachments;
+			this.rank = failure ? 0 : 1;
+		}
+
+	}
+
+}
@@ -16,22 +16,41 @@ package cz.etnetera.reesmo.writer.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.Unirest;
 import com.mashape.unirest.http.exceptions.UnirestException;
+import com.mashape.unirest.request.HttpRequestWithBody;
 import com.mashape.unirest.request.body.MultipartBody;
 
+import cz.etnetera.reesmo.writer.model.AuditedModel;
 import cz.etnetera.reesmo.writer.model.result.Result;
 import cz.etnetera.reesmo.writer.model.result.ResultAttachment;
+import cz.etnetera.reesmo.writer.model.result.ResultLink;
+import cz.etnetera.reesmo.writer.model.result.SuiteSummary;
+import cz.etnetera.reesmo.writer.model.result.TestSeverity;
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+import cz.etnetera.reesmo.writer.trace.Phase;
+import cz.etnetera.reesmo.writer.trace.WriterSpan;
+import cz.etnetera.reesmo.writer.trace.WriterTrace;
 
 public class RestApiStorage extends Storage {
 
@@ -45,58 +64,471 @@ public class RestApiStorage extends Storage {
 
 	protected static final String METHOD_RESULT_ATTACHMENT_CREATE = "/api/results/attachment/create/{resultId}";
 
+	protected static final String METHOD_RESULT_ATTACHMENT_DELETE = "/api/results/attachment/delete/{attachmentId}";
+
+	protected static final String METHOD_SUITE_SUMMARY_CREATE = "/api/suites/summary/create";
+
+	protected static final String METHOD_SUITE_SUMMARY_CREATE_PROJECT_KEY = "/api/suites/summary/create/{projectKey}";
+
 	protected static final String VIEW_RESULT_DETAIL = "/result/detail/{resultId}";
 
+	protected static final String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
+
+	protected static final String INCOMPLETE_PATH = ".reesmo/incomplete";
+
+	protected static final long ATTACHMENT_RETRY_DELAY_MIN = 500;
+
+	protected static final long ATTACHMENT_RETRY_DELAY_MAX = 30000;
+
+	protected static final String HEADER_RETRY_AFTER = "Retry-After";
+
+	protected static final String HEADER_PREFER = "Prefer";
+
+	protected static final String PREFER_RETURN_MINIMAL = "return=minimal";
+
+	protected static final String HEADER_LOCATION = "Location";
+
+	protected static final int WARMUP_ITERATIONS = 200;
+
+	/**
+	 * Mapper is shared, so serializers built once (or by warm-up) are
+	 * reused by all requests.
+	 */
+	protected static final ObjectMapper MAPPER = new ObjectMapper();
+
 	protected String endpoint;
 
 	protected String username;
 
 	protected String password;
 
+	protected EndpointBalancer balancer;
+
+	protected boolean resumableAttachments;
+
+	protected int attachmentRetries = 3;
+
+	protected File attachmentJournalDir = new File(System.getProperty("java.io.tmpdir"), "reesmo-journal");
+
+	protected AdmissionController admissionController;
+
+	protected long chunkedUploadThreshold;
+
+	protected int chunkSize = ChunkedUpload.DEFAULT_CHUNK_SIZE;
+
+	protected int chunkParallelism = 1;
+
+	protected boolean minimalAck;
+
+	protected boolean suiteSummaryUpload;
+
+	private Thread warmUp;
+
+	private volatile boolean journalsPruned;
+
 	public RestApiStorage(String endpoint, String username, String password) throws StorageException {
-		if (endpoint == null || endpoint.isEmpty())
+		this(endpoint, username, password, null);
+	}
+
+	/**
+	 * @param endpoint
+	 *            Endpoint url or more urls separated by
+	 *            {@link EndpointBalancer#SEPARATOR}
+	 * @param username
+	 * @param password
+	 * @param hedgePercentile
+	 *            Latency percentile after which idempotent requests are sent
+	 *            also to other endpoint, null disables hedging
+	 * @throws StorageException
+	 */
+	public RestApiStorage(String endpoint, String username, String password, Double hedgePercentile)
+			throws StorageException {
+		List<String> endpoints = EndpointBalancer.parseEndpoints(endpoint);
+		if (endpoints.isEmpty())
 			throw new StorageException("Endpoint is null or empty");
 		if (username == null || username.isEmpty())
 			throw new StorageException("Username is null or empty");
 		if (password == null || password.isEmpty())
 			throw new StorageException("Password is null or empty");
 
-		this.endpoint = endpoint.replaceAll("/+$", "");
+		this.endpoint = endpoints.get(0);
 		this.username = username;
 		this.password = password;
+		this.balancer = new EndpointBalancer(endpoints, hedgePercentile);
+	}
+
+	public EndpointBalancer getBalancer() {
+		return balancer;
+	}
+
+	public boolean isResumableAttachments() {
+		return resumableAttachments;
+	}
+
+	/**
+	 * In resumable mode result is kept when attachment can not be stored.
+	 * Stored attachments are recorded in journal, failed ones are retried
+	 * with backoff and when retries are exhausted, result is marked as
+	 * incomplete by {@value #INCOMPLETE_PATH} attachment. Storing the same
+	 * result again (with the same idempotency key) sends just missing
+	 * attachments. Otherwise result is deleted when any attachment fails.
+	 * 
+	 * @param resumableAttachments
+	 */
+	public void setResumableAttachments(boolean resumableAttachments) {
+		this.resumableAttachments = resumableAttachments;
+	}
+
+	public int getAttachmentRetries() {
+		return attachmentRetries;
+	}
+
+	public void setAttachmentRetries(int attachmentRetries) {
+		this.attachmentRetries = Math.max(0, attachmentRetries);
+	}
+
+	public File getAttachmentJournalDir() {
+		return attachmentJournalDir;
+	}
+
+	public void setAttachmentJournalDir(File attachmentJournalDir) {
+		if (attachmentJournalDir != null)
+			this.attachmentJournalDir = attachmentJournalDir;
+	}
+
+	public AdmissionController getAdmissionController() {
+		return admissionController;
+	}
+
+	/**
+	 * Limits rate and concurrency of requests to server.
+	 * 
+	 * @param admissionController
+	 *            Controller or null for no limits
+	 */
+	public void setAdmissionController(AdmissionController admissionController) {
+		this.admissionController = admissionController;
+	}
+
+	public long getChunkedUploadThreshold() {
+		return chunkedUploadThreshold;
+	}
+
+	/**
+	 * Attachments of at least this size are uploaded in chunks by
+	 * {@link ChunkedUpload}.
+	 * 
+	 * @param chunkedUploadThreshold
+	 *            Size in bytes, zero disables chunked upload
+	 */
+	public void setChunkedUploadThreshold(long chunkedUploadThreshold) {
+		this.chunkedUploadThreshold = Math.max(0, chunkedUploadThreshold);
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("Chunk size must be positive " + chunkSize);
+		this.chunkSize = chunkSize;
+	}
+
+	public int getChunkParallelism() {
+		return chunkParallelism;
+	}
+
+	public void setChunkParallelism(int chunkParallelism) {
+		this.chunkParallelism = Math.max(1, chunkParallelism);
+	}
+
+	public boolean isSuiteSummaryUpload() {
+		return suiteSummaryUpload;
+	}
+
+	/**
+	 * Enable posting suite summaries to {@value #METHOD_SUITE_SUMMARY_CREATE},
+	 * which needs server support. Otherwise summaries are just logged and
+	 * appended to suite rollup file if set.
+	 * 
+	 * @param suiteSummaryUpload
+	 */
+	public void setSuiteSummaryUpload(boolean suiteSummaryUpload) {
+		this.suiteSummaryUpload = suiteSummaryUpload;
+	}
+
+	public boolean isMinimalAck() {
+		return minimalAck;
+	}
+
+	/**
+	 * Ask server to acknowledge created results and attachments with id and
+	 * audit fields only ({@value #HEADER_PREFER}: {@value #PREFER_RETURN_MINIMAL}).
+	 * Response is read by streaming parser into the sent result, so stored
+	 * result is not built again. Servers which ignore the preference and
+	 * echo whole entities are handled too.
+	 * 
+	 * @param minimalAck
+	 */
+	public void setMinimalAck(boolean minimalAck) {
+		this.minimalAck = minimalAck;
+	}
+
+	/**
+	 * Starts warm-up on background thread. It primes serializers of model
+	 * classes, resolves and connects all endpoints, so the first result is
+	 * stored at steady state latency. Failures of warm-up are just logged.
+	 * 
+	 * @param healthUri
+	 *            Uri of cheap authenticated method used for connecting or
+	 *            null to connect by HEAD request to endpoint
+	 */
+	public synchronized void startWarmUp(String healthUri) {
+		if (warmUp != null)
+			return;
+		warmUp = new Thread(() -> warmUp(healthUri), "reesmo-warmup");
+		warmUp.setDaemon(true);
+		warmUp.start();
+	}
+
+	/**
+	 * Waits until warm-up finishes.
+	 * 
+	 * @param timeoutMillis
+	 * @return True when warm-up finished or was not started
+	 * @throws InterruptedException
+	 */
+	public boolean awaitWarmUp(long timeoutMillis) throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			thread = warmUp;
+		}
+		if (thread == null)
+			return true;
+		thread.join(timeoutMillis);
+		return !thread.isAlive();
+	}
+
+	protected void warmUp(String healthUri) {
+		long start = System.nanoTime();
+		try {
+			primeSerializers();
+		} catch (IOException e) {
+			getLogger().warn("Unable to warm up serializers", e);
+		}
+		for (String endpoint : balancer.getEndpoints()) {
+			try {
+				InetAddress.getAllByName(new URL(endpoint).getHost());
+				// response is read fully, so connection is returned to pool
+				HttpResponse<String> response = healthUri == null ? Unirest.head(endpoint).asString()
+						: Unirest.get(endpoint + healthUri).basicAuth(username, password).asString();
+				if (healthUri != null && response.getStatus() != 200)
+					getLogger().warn("Health check of " + endpoint + " returned status " + response.getStatus());
+			} catch (IOException | UnirestException e) {
+				getLogger().warn("Unable to warm up connection to " + endpoint, e);
+			}
+		}
+		getLogger().info("Warm-up finished in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+	}
+
+	/**
+	 * Builds serializers and deserializers of model classes and runs
+	 * preparation and serialization of result often enough to get it
+	 * compiled.
+	 * 
+	 * @throws IOException
+	 */
+	protected void primeSerializers() throws IOException {
+		Result result = new Result();
+		result.setName("warmup");
+		result.setSuite("warmup");
+		result.setSuiteId("warmup");
+		result.setStartedAt(new Date());
+		result.setEndedAt(new Date());
+		result.setLength(0L);
+		result.setStatus(TestStatus.PASSED);
+		result.setSeverity(TestSeverity.values()[0]);
+		result.addLabel("warmup").addNote("warmup").addCategory("warmup").addType("warmup");
+		result.addError(new IllegalStateException("warmup"));
+		ResultLink link = new ResultLink();
+		link.setName("warmup");
+		link.setUrl("http://localhost");
+		result.addLink(link);
+		// also seeds random generator of idempotency keys
+		prepareResultBeforeCreate(result);
+		try {
+			validateResult(result);
+		} catch (StorageException e) {
+			// sample result is valid, only code path matters
+		}
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			MAPPER.readValue(MAPPER.writeValueAsString(result), Result.class);
+		}
+		MAPPER.readValue("{\"id\":\"warmup\",\"path\":\"warmup\",\"size\":0}", ResultAttachment.class);
+		MAPPER.writeValueAsString(new SuiteSummary());
 	}
 
 	@Override
-	protected Result createResult(String projectKey, Result result, List<Object> attachments) throws StorageException {
-		String url;
-		if (projectKey == null)
-			url = getUrl(METHOD_RESULT_CREATE);
-		else
-			url = getUrl(METHOD_RESULT_CREATE_PROJECT_KEY).replace("{projectKey}", projectKey);
+	public void close() throws StorageException {
+		try {
+			super.close();
+		} finally {
+			balancer.close();
+		}
+	}
 
-		result = requestEntity(result, url);
-		getLogger().info("Result created " + result.getName() + " " + result.getId() + " "
-				+ getUrl(VIEW_RESULT_DETAIL).replace("{resultId}", result.getId()));
+	@Override
+	protected Result createResult(String projectKey, Result result, List<Object> attachments) throws StorageException {
+		AttachmentJournal journal = openJournal(result);
+		result = createResultEntity(projectKey, result, journal);
 
-		if (attachments != null) {
-			for (Object attachment : attachments) {
-				try {
-					addResultAttachment(result, attachment);
-				} catch (StorageException e) {
-					throw new StorageException("Unable to store result attachment", e);
+		attachments = transformAttachments(result, attachments);
+		try {
+			if (attachments != null) {
+				for (int i = 0; i < attachments.size(); i++) {
+					Object attachment = attachments.get(i);
+					try {
+						addResultAttachment(result, attachment, AttachmentUploads.getKey(attachment, i), journal);
+					} catch (StorageException e) {
+						// created result is deleted here, minimal acknowledgement and
+						// resume set id on caller's result, it is cleared so caller
+						// does not delete it again
+						deleteResultQuietly(result);
+						result.setId(null);
+						// journal must not resume into deleted result
+						if (journal != null)
+							journal.delete();
+						throw new StorageException("Unable to store result attachment", e);
+					}
 				}
 			}
+		} finally {
+			deleteTemporaryFiles(attachments);
 		}
 
+		if (journal != null)
+			finishJournal(result, journal);
+
+		return result;
+	}
+
+	@Override
+	protected boolean isAttachmentUploadSupported() {
+		return true;
+	}
+
+	/**
+	 * Uploads go through journal in resumable mode, result with missing
+	 * attachments is marked incomplete.
+	 */
+	@Override
+	protected AttachmentUploads createResultForUploads(String projectKey, Result result) throws StorageException {
+		AttachmentJournal journal = openJournal(result);
+		// created result may be another instance holding id
+		Result created = createResultEntity(projectKey, result, journal);
+		return new AttachmentUploads() {
+
+			@Override
+			public Result getResult() {
+				return created;
+			}
+
+			@Override
+			public void upload(Object attachment, String key) throws StorageException {
+				addResultAttachment(created, attachment, key, journal);
+			}
+
+			@Override
+			public void finish(List<String> missing) {
+				if (journal == null) {
+					if (!missing.isEmpty())
+						markResultIncomplete(created, missing);
+					return;
+				}
+				for (String key : missing) {
+					journal.recordFailure(key);
+				}
+				finishJournal(created, journal);
+			}
+
+		};
+	}
+
+	/**
+	 * Creates result without attachments, result recorded in journal is
+	 * resumed instead.
+	 * 
+	 * @param projectKey
+	 * @param result
+	 * @param journal
+	 *            Journal of resumable mode or null
+	 * @return Created result holding id
+	 * @throws StorageException
+	 */
+	protected Result createResultEntity(String projectKey, Result result, AttachmentJournal journal)
+			throws StorageException {
+		if (journal != null && journal.getResultId() != null) {
+			result.setId(journal.getResultId());
+			getLogger().info("Result resumed " + result.getName() + " " + result.getId());
+			return result;
+		}
+		String uri;
+		if (projectKey == null)
+			uri = METHOD_RESULT_CREATE;
+		else
+			uri = METHOD_RESULT_CREATE_PROJECT_KEY.replace("{projectKey}", projectKey);
+		String idempotencyKey = result.getIdempotencyKey();
+		result = requestEntity(result, uri, idempotencyKey);
+		result.setIdempotencyKey(idempotencyKey);
+		if (journal != null)
+			journal.recordResult(result.getId());
+		getLogger().info("Result created " + result.getName() + " " + result.getId() + " "
+				+ getUrl(VIEW_RESULT_DETAIL).replace("{resultId}", result.getId()));
 		return result;
 	}
 
+	@Override
+	protected void createSuiteSummary(String projectKey, SuiteSummary summary) throws StorageException {
+		if (!suiteSummaryUpload) {
+			super.createSuiteSummary(projectKey, summary);
+			return;
+		}
+		String uri;
+		if (projectKey == null)
+			uri = METHOD_SUITE_SUMMARY_CREATE;
+		else
+			uri = METHOD_SUITE_SUMMARY_CREATE_PROJECT_KEY.replace("{projectKey}", projectKey);
+		requestEntity(summary, uri, null);
+		getLogger().info("Suite summary created " + summary.getSuite() + " " + summary.getSuiteId());
+	}
+
 	@Override
 	protected void deleteResult(Result result) throws StorageException {
-		request(getUrl(METHOD_RESULT_DELETE).replace("{resultId}", result.getId()));
+		request(METHOD_RESULT_DELETE.replace("{resultId}", result.getId()));
 	}
 
 	protected void addResultAttachment(final Result result, Object attachment) throws StorageException {
+		addResultAttachment(result, attachment, null, null);
+	}
+
+	/**
+	 * Stores attachment, directories are stored file by file. With journal
+	 * attachments stored before are skipped and failing ones are retried,
+	 * exhausted ones are recorded in journal instead of throwing.
+	 * 
+	 * @param result
+	 * @param attachment
+	 * @param key
+	 *            Key of attachment, see
+	 *            {@link AttachmentUploads#getKey(Object, int)}, or null to
+	 *            use its path
+	 * @param journal
+	 *            Journal of resumable mode or null
+	 * @throws StorageException
+	 */
+	protected void addResultAttachment(final Result result, Object attachment, final String key,
+			final AttachmentJournal journal) throws StorageException {
 		File file = null;
 		String path = null;
 		String contentType = null;
@@ -108,7 +540,7 @@ public class RestApiStorage extends Storage {
 			path = fileWithPath.getPath();
 			contentType = fileWithPath.getContentType();
 		} else {
-			throw new StorageException("Unsupported attachment type " + attachment.getClass());
+			throw new PermanentStorageException("Unsupported attachment type " + attachment.getClass());
 		}
 
 		if (path != null) {
@@ -123,9 +555,11 @@ public class RestApiStorage extends Storage {
 					@Override
 					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
 						FileVisitResult res = super.visitFile(file, attrs);
-						String relativePath = rootPath + "/" + root.relativize(file).normalize().toString();
+						String relative = root.relativize(file).normalize().toString();
+						String relativePath = rootPath + "/" + relative;
 						try {
-							addResultAttachment(result, ExtendedFile.withPath(file.toFile(), relativePath));
+							addResultAttachment(result, ExtendedFile.withPath(file.toFile(), relativePath),
+									key == null ? null : key + "/" + relative, journal);
 						} catch (StorageException e) {
 							throw new IOException(e);
 						}
@@ -139,75 +573,480 @@ public class RestApiStorage extends Storage {
 			return;
 		}
 		
-		MultipartBody body = Unirest.post(getUrl(METHOD_RESULT_ATTACHMENT_CREATE).replace("{resultId}", result.getId()))
-				.basicAuth(username, password).header("Accept", "application/json").field("file", file);
-		if (path != null) {
-			body.field("path", path);
+		String attachmentKey = key != null ? key : path == null ? file.getName() : path;
+		if (journal == null) {
+			try (WriterSpan span = WriterTrace.begin(Phase.ATTACHMENT).bytes(file.length())) {
+				uploadResultAttachment(result, file, path, contentType, attachmentKey);
+				span.success();
+			}
+			return;
+		}
+
+		if (journal.isStored(attachmentKey)) {
+			getLogger().debug("Result attachment already stored " + attachmentKey);
+			return;
 		}
-		if (contentType != null) {
-			body.field("contentType", contentType);
+		long delay = ATTACHMENT_RETRY_DELAY_MIN;
+		for (int attempt = 0;; attempt++) {
+			try (WriterSpan span = WriterTrace.begin(Phase.ATTACHMENT).bytes(file.length())) {
+				uploadResultAttachment(result, file, path, contentType, attachmentKey);
+				span.success();
+				journal.recordAttachment(attachmentKey);
+				return;
+			} catch (StorageException e) {
+				if (attempt >= attachmentRetries) {
+					getLogger().warn("Unable to store result attachment " + attachmentKey + " after " + (attempt + 1)
+							+ " attempts", e);
+					journal.recordFailure(attachmentKey);
+					return;
+				}
+				getLogger().info("Unable to store result attachment " + attachmentKey + ", it will be retried in "
+						+ delay + " ms: " + e.getMessage());
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StorageException("Interrupted while retrying result attachment " + attachmentKey, e);
+			}
+			delay = Math.min(delay * 2, ATTACHMENT_RETRY_DELAY_MAX);
 		}
+	}
 
-		HttpResponse<String> response;
+	/**
+	 * Finishes journal once all attachments were tried. Journal of complete
+	 * result is deleted together with incomplete mark of previous run,
+	 * incomplete result is marked and its journal is kept for later resume.
+	 * 
+	 * @param result
+	 * @param journal
+	 */
+	protected void finishJournal(Result result, AttachmentJournal journal) {
+		if (!journal.getFailed().isEmpty()) {
+			markResultIncomplete(result, journal);
+			return;
+		}
+		if (journal.getMarkId() != null) {
+			try {
+				request(METHOD_RESULT_ATTACHMENT_DELETE.replace("{attachmentId}", journal.getMarkId()));
+				getLogger().info("Result " + result.getId() + " is complete, incomplete mark removed");
+			} catch (StorageException e) {
+				// journal is kept, so the next resume removes it
+				getLogger().warn("Unable to remove incomplete mark of result " + result.getId(), e);
+				return;
+			}
+		}
+		journal.delete();
+	}
+
+	/**
+	 * Marks result whose attachments were not all stored by attachment
+	 * listing missing ones. Journal is kept for later resume.
+	 * 
+	 * @param result
+	 * @param journal
+	 */
+	protected void markResultIncomplete(Result result, AttachmentJournal journal) {
+		getLogger().info("Journal of incomplete result " + result.getId() + " is kept " + journal.getFile());
+		String markId = markResultIncomplete(result, journal.getFailed());
+		if (markId != null) {
+			try {
+				journal.recordMark(markId);
+			} catch (StorageException e) {
+				getLogger().warn("Unable to record incomplete mark of result " + result.getId(), e);
+			}
+		}
+	}
+
+	/**
+	 * Marks result whose attachments were not all stored by attachment
+	 * listing missing ones.
+	 * 
+	 * @param result
+	 * @param missing
+	 *            Keys of missing attachments
+	 * @return Id of mark attachment or null when result was not marked
+	 */
+	protected String markResultIncomplete(Result result, List<String> missing) {
+		getLogger().warn("Result " + result.getId() + " is incomplete, missing attachments " + missing);
+		File marker = null;
+		try {
+			marker = File.createTempFile("reesmo-incomplete-", ".txt");
+			Files.write(marker.toPath(), String.join("\n", missing).getBytes(StandardCharsets.UTF_8));
+			return uploadResultAttachment(result, marker, INCOMPLETE_PATH, "text/plain", INCOMPLETE_PATH);
+		} catch (IOException | StorageException e) {
+			getLogger().warn("Unable to mark result " + result.getId() + " as incomplete", e);
+			return null;
+		} finally {
+			if (marker != null)
+				marker.delete();
+		}
+	}
+
+	/**
+	 * Opens journal of result in resumable mode.
+	 * 
+	 * @param result
+	 * @return Journal or null when attachments are not resumable or result
+	 *         has no idempotency key
+	 * @throws StorageException
+	 */
+	protected AttachmentJournal openJournal(Result result) throws StorageException {
+		String idempotencyKey = result.getIdempotencyKey();
+		return resumableAttachments && idempotencyKey != null ? openJournal(idempotencyKey) : null;
+	}
+
+	/**
+	 * Opens journal of result, stale journals are pruned by the first open.
+	 * 
+	 * @param idempotencyKey
+	 * @return
+	 * @throws StorageException
+	 */
+	protected AttachmentJournal openJournal(String idempotencyKey) throws StorageException {
+		if (!journalsPruned) {
+			journalsPruned = true;
+			int pruned = AttachmentJournal.prune(attachmentJournalDir, AttachmentJournal.MAX_AGE_MILLIS);
+			if (pruned > 0)
+				getLogger().info("Pruned " + pruned + " stale attachment journals in " + attachmentJournalDir);
+		}
+		return AttachmentJournal.open(attachmentJournalDir, idempotencyKey);
+	}
+
+	private void deleteResultQuietly(Result result) {
 		try {
-			response = body.asString();
+			getLogger().info("Deleting result " + result.getId());
+			deleteResult(result);
+		} catch (StorageException e) {
+			getLogger().error("Unable to delete result " + result.getId(), e);
+		}
+	}
+
+	/**
+	 * Uploads attachment file.
+	 * 
+	 * @param result
+	 * @param file
+	 * @param path
+	 * @param contentType
+	 * @param key
+	 *            Key unique within result, attachment idempotency key is
+	 *            derived from it
+	 * @return Id of stored attachment
+	 * @throws StorageException
+	 */
+	protected String uploadResultAttachment(Result result, File file, String path, String contentType, String key)
+			throws StorageException {
+		if (chunkedUploadThreshold > 0 && file.length() >= chunkedUploadThreshold) {
+			ResultAttachment resultAttachment = new ChunkedUpload(this, result, file, path, contentType, key).upload();
+			getLogger().info("Result attachment uploaded in chunks " + resultAttachment.getPath() + " "
+					+ resultAttachment.getId());
+			return resultAttachment.getId();
+		}
+		String uri = METHOD_RESULT_ATTACHMENT_CREATE.replace("{resultId}", result.getId());
+		String idempotencyKey = getAttachmentIdempotencyKey(result, key);
+		HttpResponse<String> response;
+		try (WriterSpan span = WriterTrace.begin(Phase.HTTP).bytes(file.length())) {
+			response = execute(endpoint -> {
+				HttpRequestWithBody request = Unirest.post(endpoint + uri).basicAuth(username, password)
+						.header("Accept", "application/json");
+				if (idempotencyKey != null) {
+					request.header(HEADER_IDEMPOTENCY_KEY, idempotencyKey);
+				}
+				if (minimalAck) {
+					request.header(HEADER_PREFER, PREFER_RETURN_MINIMAL);
+				}
+				MultipartBody body = request.field("file", file);
+				if (path != null) {
+					body.field("path", path);
+				}
+				if (contentType != null) {
+					body.field("contentType", contentType);
+				}
+				return body.asString();
+			}, idempotencyKey != null);
+			if (isSuccess(response))
+				span.success();
 		} catch (UnirestException e) {
 			throw new StorageException("Unable to store result attachment", e);
 		}
 
-		if (response.getStatus() != 200) {
-			throw new StorageException("Wrong status code when storing result attachment " + response.getStatus());
+		if (!isSuccess(response)) {
+			throw statusException("Wrong status code when storing result attachment " + response.getStatus(),
+					response.getStatus());
+		}
+
+		if (minimalAck) {
+			String id;
+			try {
+				id = readAcknowledgement(response, null);
+			} catch (IOException e) {
+				throw new StorageException("Unable to parse result attachment acknowledgement from response", e);
+			}
+			getLogger().info("Result attachment stored " + (path == null ? file.getName() : path) + " " + id);
+			return id;
 		}
 
 		ResultAttachment resultAttachment = null;
 		try {
-			resultAttachment = new ObjectMapper().readValue(response.getBody(), ResultAttachment.class);
+			resultAttachment = MAPPER.readValue(response.getBody(), ResultAttachment.class);
 		} catch (UnsupportedOperationException | IOException e) {
 			throw new StorageException("Unable to parse result attachment from response", e);
 		}
 
 		getLogger().info("Result attachment stored " + resultAttachment.getPath() + " " + resultAttachment.getId());
+		return resultAttachment.getId();
+	}
+
+	/**
+	 * Returns idempotency key of attachment with given key, attachments with
+	 * the same file name have different keys.
+	 * 
+	 * @param result
+	 * @param key
+	 * @return Key or null when result has no idempotency key
+	 */
+	protected static String getAttachmentIdempotencyKey(Result result, String key) {
+		return result.getIdempotencyKey() == null ? null : result.getIdempotencyKey() + "/" + key;
+	}
+
+	/**
+	 * Executes call on one of endpoints when admission controller admits it.
+	 * Outcome of call is reported back to controller.
+	 * 
+	 * @param call
+	 * @param idempotent
+	 * @return
+	 * @throws UnirestException
+	 * @throws StorageException
+	 */
+	protected HttpResponse<String> execute(EndpointBalancer.Call call, boolean idempotent)
+			throws UnirestException, StorageException {
+		if (admissionController == null)
+			return balancer.execute(call, idempotent);
+		try (AdmissionController.Permit permit = admissionController.acquire()) {
+			HttpResponse<String> response;
+			try {
+				response = balancer.execute(call, idempotent);
+			} catch (UnirestException | RuntimeException e) {
+				permit.release(AdmissionController.Outcome.DROPPED);
+				throw e;
+			}
+			int status = response.getStatus();
+			if (status == 429 || status >= 500) {
+				permit.release(AdmissionController.Outcome.DROPPED);
+				long retryAfter = getRetryAfterMillis(response);
+				if (retryAfter > 0)
+					admissionController.pause(retryAfter);
+			} else {
+				permit.release(status < 400 ? AdmissionController.Outcome.SUCCESS : AdmissionController.Outcome.IGNORED);
+			}
+			return response;
+		}
+	}
+
+	private long getRetryAfterMillis(HttpResponse<String> response) {
+		String retryAfter = response.getHeaders() == null ? null : response.getHeaders().getFirst(HEADER_RETRY_AFTER);
+		if (retryAfter == null)
+			return 0;
+		try {
+			return Long.parseLong(retryAfter.trim()) * 1000;
+		} catch (NumberFormatException e) {
+			// http date is not supported
+			return 0;
+		}
 	}
 
 	protected String getUrl(String uri) {
 		return endpoint + uri;
 	}
 
+	/**
+	 * Posts entity to one of endpoints and returns entity parsed from
+	 * response. In minimal acknowledgement mode, id and audit fields of
+	 * result are read into the sent instance, which is returned, other
+	 * entities are returned as sent.
+	 * 
+	 * @param entity
+	 * @param uri
+	 *            Method uri relative to endpoint
+	 * @param idempotencyKey
+	 *            Key sent in {@value #HEADER_IDEMPOTENCY_KEY} header, request
+	 *            with key can be retried and hedged
+	 * @return
+	 * @throws StorageException
+	 */
 	@SuppressWarnings("unchecked")
-	protected <T> T requestEntity(T entity, String url) throws StorageException {
+	protected <T> T requestEntity(T entity, String uri, String idempotencyKey) throws StorageException {
+		String json;
+		try (WriterSpan span = WriterTrace.begin(Phase.SERIALIZE)) {
+			json = MAPPER.writeValueAsString(entity);
+			span.bytes(json.length()).success();
+		} catch (JsonProcessingException e) {
+			throw new StorageException("Unable to serialize entity for uri " + uri, e);
+		}
+
 		HttpResponse<String> response;
-		try {
-			response = Unirest.post(url).basicAuth(username, password).header("Accept", "application/json")
-					.header("Content-Type", "application/json; charset=UTF-8")
-					.body(new ObjectMapper().writeValueAsString(entity)).asString();
-		} catch (UnirestException | JsonProcessingException e) {
-			throw new StorageException("Unable to execute entity request on url " + url, e);
+		try (WriterSpan span = WriterTrace.begin(Phase.HTTP).bytes(json.length())) {
+			response = execute(endpoint -> {
+				HttpRequestWithBody request = Unirest.post(endpoint + uri).basicAuth(username, password)
+						.header("Accept", "application/json").header("Content-Type", "application/json; charset=UTF-8");
+				if (idempotencyKey != null) {
+					request.header(HEADER_IDEMPOTENCY_KEY, idempotencyKey);
+				}
+				if (minimalAck) {
+					request.header(HEADER_PREFER, PREFER_RETURN_MINIMAL);
+				}
+				return request.body(json).asString();
+			}, idempotencyKey != null);
+			if (isSuccess(response))
+				span.success();
+		} catch (UnirestException e) {
+			throw new StorageException("Unable to execute entity request on uri " + uri, e);
 		}
 
-		if (response.getStatus() != 200) {
-			throw new StorageException(
-					"Wrong status code " + response.getStatus() + " when requesting entity url " + url);
+		if (!isSuccess(response)) {
+			throw statusException("Wrong status code " + response.getStatus() + " when requesting entity uri " + uri,
+					response.getStatus());
+		}
+
+		if (minimalAck) {
+			if (entity instanceof Result) {
+				try {
+					String id = readAcknowledgement(response, (Result) entity);
+					if (id == null || id.isEmpty())
+						throw new StorageException("Result id is missing in response of uri " + uri);
+					((Result) entity).setId(id);
+				} catch (IOException e) {
+					throw new StorageException("Unable to parse acknowledgement from response of uri " + uri, e);
+				}
+			}
+			return entity;
 		}
 
 		try {
-			entity = (T) new ObjectMapper().readValue(response.getBody(), entity.getClass());
+			entity = (T) MAPPER.readValue(response.getBody(), entity.getClass());
 		} catch (UnsupportedOperationException | IOException e) {
-			throw new StorageException("Unable to parse result from response while requesting url " + url, e);
+			throw new StorageException("Unable to parse result from response while requesting uri " + uri, e);
 		}
 
 		return entity;
 	}
 
-	protected void request(String url) throws StorageException {
-		HttpResponse<String> response;
+	/**
+	 * Client errors other than timeout and throttling are permanent, the same
+	 * request gets the same answer again.
+	 * 
+	 * @param message
+	 * @param status
+	 * @return
+	 */
+	protected static StorageException statusException(String message, int status) {
+		if (status >= 400 && status < 500 && status != 408 && status != 429)
+			return new PermanentStorageException(message);
+		return new StorageException(message);
+	}
+
+	/**
+	 * Minimal acknowledgement may come as 201 or 204 without body.
+	 * 
+	 * @param response
+	 * @return
+	 */
+	protected boolean isSuccess(HttpResponse<String> response) {
+		int status = response.getStatus();
+		return status == 200 || minimalAck && (status == 201 || status == 204);
+	}
+
+	/**
+	 * Reads id and audit fields of created entity by streaming parser,
+	 * other fields (whole echoed entity when server ignores preference) are
+	 * skipped without building them. Response without body is identified by
+	 * the last segment of {@value #HEADER_LOCATION} header.
+	 * 
+	 * @param response
+	 * @param target
+	 *            Model which audit fields are set or null
+	 * @return Id or null when response has none
+	 * @throws IOException
+	 */
+	protected static String readAcknowledgement(HttpResponse<String> response, AuditedModel target) throws IOException {
+		String body = response.getBody();
+		if (body == null || body.trim().isEmpty()) {
+			String location = response.getHeaders() == null ? null : response.getHeaders().getFirst(HEADER_LOCATION);
+			if (location == null)
+				return null;
+			location = location.replaceAll("/+$", "");
+			return location.substring(location.lastIndexOf('/') + 1);
+		}
+		String id = null;
+		try (JsonParser parser = MAPPER.getFactory().createParser(body)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new JsonParseException(parser, "Object expected in acknowledgement");
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if (token == JsonToken.VALUE_NULL)
+					continue;
+				switch (field) {
+				case "id":
+					id = parser.getValueAsString();
+					break;
+				case "createdAt":
+					if (target != null)
+						target.setCreatedAt(readDate(parser));
+					break;
+				case "updatedAt":
+					if (target != null)
+						target.setUpdatedAt(readDate(parser));
+					break;
+				case "createdBy":
+					if (target != null)
+						target.setCreatedBy(parser.getValueAsString());
+					break;
+				case "updatedBy":
+					if (target != null)
+						target.setUpdatedBy(parser.getValueAsString());
+					break;
+				default:
+					parser.skipChildren();
+					break;
+				}
+			}
+		}
+		return id;
+	}
+
+	private static Date readDate(JsonParser parser) throws IOException {
+		if (parser.getCurrentToken() == JsonToken.VALUE_NUMBER_INT)
+			return new Date(parser.getLongValue());
 		try {
-			response = Unirest.get(url).basicAuth(username, password).asString();
+			// date format of mapper is not thread safe
+			return ((DateFormat) MAPPER.getDeserializationConfig().getDateFormat().clone()).parse(parser.getText());
+		} catch (ParseException e) {
+			throw new JsonParseException(parser, "Invalid date " + parser.getText(), e);
+		}
+	}
+
+	/**
+	 * Executes idempotent request on one of endpoints, it can be hedged.
+	 * 
+	 * @param uri
+	 *            Method uri relative to endpoint
+	 * @throws StorageException
+	 */
+	protected void request(String uri) throws StorageException {
+		HttpResponse<String> response;
+		try (WriterSpan span = WriterTrace.begin(Phase.HTTP)) {
+			response = execute(endpoint -> Unirest.get(endpoint + uri).basicAuth(username, password).asString(), true);
+			if (response.getStatus() == 200)
+				span.success();
 		} catch (UnirestException e) {
-			throw new StorageException("Unable to execute request on url " + url, e);
+			throw new StorageException("Unable to execute request on uri " + uri, e);
 		}
 
 		if (response.getStatus() != 200) {
-			throw new StorageException("Wrong status code " + response.getStatus() + " when requesting url " + url);
+			throw new StorageException("Wrong status code " + response.getStatus() + " when requesting uri " + uri);
 		}
 	}
 
@@ -0,0 +1,241 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+
+/**
+ * Index of results stored in {@link FileSystemStorage} base directory. It is
+ * a file of fixed size records with hashed suite and job, status, time
+ * interval and model id. Records are appended under file lock, so several
+ * processes can share one base directory. Queries scan memory mapped file
+ * under shared lock and return ids of possibly matching results, hash
+ * collisions have to be filtered by caller.
+ */
+public class ResultIndex {
+
+	public static final String FILE_NAME = ".reesmo-index";
+
+	protected static final int MAGIC = 0x52534d49;
+
+	protected static final int VERSION = 1;
+
+	protected static final int HEADER_LENGTH = 16;
+
+	protected static final int RECORD_LENGTH = 256;
+
+	protected static final int ID_LENGTH = RECORD_LENGTH - 36;
+
+	protected static final byte FLAG_DELETED = 1;
+
+	protected final File file;
+
+	public ResultIndex(File baseDir) {
+		this.file = new File(baseDir, FILE_NAME);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public boolean exists() {
+		return file.isFile();
+	}
+
+	/**
+	 * Appends result record.
+	 *
+	 * @param modelId
+	 * @param result
+	 * @return False if model id is too long to be indexed
+	 * @throws StorageException
+	 */
+	@SuppressWarnings("try")
+	public boolean add(String modelId, Result result) throws StorageException {
+		byte[] id = modelId.getBytes(StandardCharsets.UTF_8);
+		if (id.length > ID_LENGTH)
+			return false;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+		record.putLong(hash(result.getSuite()));
+		record.putLong(hash(result.getJob()));
+		record.put((byte) (result.getStatus() == null ? -1 : result.getStatus().ordinal()));
+		record.put((byte) 0);
+		record.putLong(result.getStartedAt() == null ? 0 : result.getStartedAt().getTime());
+		record.putLong(result.getEndedAt() == null ? 0 : result.getEndedAt().getTime());
+		record.putShort((short) id.length);
+		record.put(id);
+		record.clear();
+		synchronized (ResultIndex.class) {
+			try (FileChannel channel = open(); FileLock lock = channel.lock()) {
+				long size = channel.size();
+				long position = size < HEADER_LENGTH ? writeHeader(channel)
+						: HEADER_LENGTH + (size - HEADER_LENGTH) / RECORD_LENGTH * RECORD_LENGTH;
+				channel.write(record, position);
+			} catch (IOException e) {
+				throw new StorageException("Unable to add result to index " + file, e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Marks record of given model as deleted.
+	 *
+	 * @param modelId
+	 * @throws StorageException
+	 */
+	@SuppressWarnings("try")
+	public void remove(String modelId) throws StorageException {
+		if (!exists())
+			return;
+		byte[] id = modelId.getBytes(StandardCharsets.UTF_8);
+		synchronized (ResultIndex.class) {
+			try (FileChannel channel = open(); FileLock lock = channel.lock()) {
+				MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+				for (int position = HEADER_LENGTH; position + RECORD_LENGTH <= buffer.limit(); position += RECORD_LENGTH) {
+					if (matchesId(buffer, position, id)) {
+						channel.write(ByteBuffer.wrap(new byte[] { FLAG_DELETED }), position + 17);
+					}
+				}
+			} catch (IOException e) {
+				throw new StorageException("Unable to remove result from index " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Finds ids of results which can match given query.
+	 *
+	 * @param query
+	 * @return
+	 * @throws StorageException
+	 */
+	public List<String> find(ResultQuery query) throws StorageException {
+		List<String> ids = new ArrayList<>();
+		if (!exists())
+			return ids;
+		long suite = query.getSuite() == null ? 0 : hash(query.getSuite());
+		long job = query.getJob() == null ? 0 : hash(query.getJob());
+		// locks of one file overlapping within JVM are not allowed
+		synchronized (ResultIndex.class) {
+			find(query, suite, job, ids);
+		}
+		return ids;
+	}
+
+	@SuppressWarnings("try")
+	private void find(ResultQuery query, long suite, long job, List<String> ids) throws StorageException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				FileLock lock = channel.lock(0, Long.MAX_VALUE, true)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			checkHeader(buffer);
+			for (int position = HEADER_LENGTH; position + RECORD_LENGTH <= buffer.limit(); position += RECORD_LENGTH) {
+				if (buffer.get(position + 17) == FLAG_DELETED)
+					continue;
+				if (query.getSuite() != null && buffer.getLong(position) != suite)
+					continue;
+				if (query.getJob() != null && buffer.getLong(position + 8) != job)
+					continue;
+				byte status = buffer.get(position + 16);
+				if (query.getStatuses() != null && (status < 0 || !query.getStatuses().contains(TestStatus.values()[status])))
+					continue;
+				if (!query.matchesStartedAt(buffer.getLong(position + 18)))
+					continue;
+				byte[] id = new byte[buffer.getShort(position + 34)];
+				for (int i = 0; i < id.length; i++) {
+					id[i] = buffer.get(position + 36 + i);
+				}
+				ids.add(new String(id, StandardCharsets.UTF_8));
+			}
+		} catch (IOException e) {
+			throw new StorageException("Unable to read index " + file, e);
+		}
+	}
+
+	/**
+	 * Removes all records.
+	 *
+	 * @throws StorageException
+	 */
+	@SuppressWarnings("try")
+	public void clear() throws StorageException {
+		synchronized (ResultIndex.class) {
+			try (FileChannel channel = open(); FileLock lock = channel.lock()) {
+				channel.truncate(0);
+				writeHeader(channel);
+			} catch (IOException e) {
+				throw new StorageException("Unable to clear index " + file, e);
+			}
+		}
+	}
+
+	protected long hash(String value) {
+		if (value == null)
+			return 0;
+		// FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+
+	private FileChannel open() throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+	}
+
+	private long writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(RECORD_LENGTH);
+		header.clear();
+		channel.write(header, 0);
+		return HEADER_LENGTH;
+	}
+
+	private void checkHeader(ByteBuffer buffer) throws IOException {
+		if (buffer.limit() < HEADER_LENGTH)
+			return;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != RECORD_LENGTH)
+			throw new IOException("Unsupported index format");
+	}
+
+	private boolean matchesId(ByteBuffer buffer, int position, byte[] id) {
+		if (buffer.getShort(position + 34) != id.length)
+			return false;
+		for (int i = 0; i < id.length; i++) {
+			if (buffer.get(position + 36 + i) != id[i])
+				return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,120 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+
+import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+
+/**
+ * Criteria for reading stored results. Empty criteria match everything.
+ */
+public class ResultQuery {
+
+	private String suite;
+
+	private String job;
+
+	private Set<TestStatus> statuses;
+
+	private Date startedFrom;
+
+	private Date startedTo;
+
+	public static ResultQuery create() {
+		return new ResultQuery();
+	}
+
+	public ResultQuery withSuite(String suite) {
+		this.suite = suite;
+		return this;
+	}
+
+	public ResultQuery withJob(String job) {
+		this.job = job;
+		return this;
+	}
+
+	public ResultQuery withStatus(TestStatus... statuses) {
+		this.statuses = statuses.length == 0 ? null : EnumSet.copyOf(Arrays.asList(statuses));
+		return this;
+	}
+
+	/**
+	 * Match results started in given interval.
+	 * 
+	 * @param from
+	 *            Inclusive start, null for unbounded
+	 * @param to
+	 *            Exclusive end, null for unbounded
+	 * @return
+	 */
+	public ResultQuery withStartedBetween(Date from, Date to) {
+		this.startedFrom = from;
+		this.startedTo = to;
+		return this;
+	}
+
+	public String getSuite() {
+		return suite;
+	}
+
+	public String getJob() {
+		return job;
+	}
+
+	public Set<TestStatus> getStatuses() {
+		return statuses;
+	}
+
+	public Date getStartedFrom() {
+		return startedFrom;
+	}
+
+	public Date getStartedTo() {
+		return startedTo;
+	}
+
+	public boolean matches(Result result) {
+		if (suite != null && !Objects.equals(suite, result.getSuite()))
+			return false;
+		if (job != null && !Objects.equals(job, result.getJob()))
+			return false;
+		if (statuses != null && !statuses.contains(result.getStatus()))
+			return false;
+		long startedAt = result.getStartedAt() == null ? 0 : result.getStartedAt().getTime();
+		return matchesStartedAt(startedAt);
+	}
+
+	protected boolean matchesStartedAt(long startedAt) {
+		if (startedFrom != null && startedAt < startedFrom.getTime())
+			return false;
+		if (startedTo != null && startedAt >= startedTo.getTime())
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "ResultQuery [suite=" + suite + ", job=" + job + ", statuses=" + statuses + ", startedFrom="
+				+ startedFrom + ", startedTo=" + startedTo + "]";
+	}
+
+}
@@ -0,0 +1,259 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import cz.etnetera.reesmo.writer.Property;
+import cz.etnetera.reesmo.writer.model.result.Result;
+
+/**
+ * Stores each result into storage of the first route matching its project
+ * key, suite and environment. Routes are configured by
+ * {@code reesmo.routes=a;b} and properties {@code reesmo.route.<name>.*}
+ * which override {@code reesmo.*} properties for backend of the route, e.g.
+ * {@code reesmo.route.a.endpoint}. Property
+ * {@code reesmo.route.<name>.match} holds route rules like
+ * {@code projectKey=unit-a-.*,environment=prod}, all rules must match whole
+ * value, route without rules matches everything. Backends created from
+ * configuration are buffered, so slow backend does not block results
+ * routed elsewhere. REST backends share connection pool of Unirest, each
+ * endpoint host has its own per route limit of the pool and backend limits
+ * are applied by its admission controller.
+ */
+public class RoutingStorage extends Storage {
+
+	public static final String ROUTE_PREFIX = "reesmo.route.";
+
+	public static final String MATCH = "match";
+
+	protected static final int MAX_REMEMBERED_ROUTES = 10000;
+
+	protected final List<Route> routes = new ArrayList<>();
+
+	/**
+	 * Routes of recently created results by id, results are deleted by
+	 * backend which created them even when routing rules do not match
+	 * anymore, e.g. project key of deleted result is unknown.
+	 */
+	protected final Map<String, Route> resultRoutes = Collections
+			.synchronizedMap(new LinkedHashMap<String, Route>() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Route> eldest) {
+					return size() > MAX_REMEMBERED_ROUTES;
+				}
+			});
+
+	/**
+	 * Adds route evaluated after already added routes.
+	 *
+	 * @param route
+	 * @return
+	 */
+	public RoutingStorage addRoute(Route route) {
+		routes.add(route);
+		return this;
+	}
+
+	public List<Route> getRoutes() {
+		return Collections.unmodifiableList(routes);
+	}
+
+	/**
+	 * Collects properties of given route from system properties, prefix of
+	 * route is replaced by {@code reesmo.}, so they can be used as storage
+	 * configuration.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static Properties getRouteConfiguration(String name) {
+		return getPrefixedConfiguration(ROUTE_PREFIX + name + ".");
+	}
+
+	@Override
+	public Result addResult(String projectKey, Result result, List<Object> attachments) throws StorageException {
+		Route route = getRoute(projectKey, result);
+		return rememberRoute(route, route.getStorage().addResult(projectKey, result, attachments));
+	}
+
+	@Override
+	public void flush() throws StorageException {
+		StorageException exception = null;
+		for (Route route : routes) {
+			try {
+				route.getStorage().flush();
+			} catch (StorageException e) {
+				getLogger().error("Unable to flush route " + route.getName(), e);
+				if (exception == null)
+					exception = e;
+			}
+		}
+		if (exception != null)
+			throw exception;
+	}
+
+	/**
+	 * Closes all backends, failing backend does not prevent others from
+	 * being closed.
+	 */
+	@Override
+	public void close() throws StorageException {
+		StorageException exception = null;
+		for (Route route : routes) {
+			try {
+				route.getStorage().close();
+			} catch (StorageException e) {
+				getLogger().error("Unable to close route " + route.getName(), e);
+				if (exception == null)
+					exception = e;
+			}
+		}
+		if (exception != null)
+			throw exception;
+	}
+
+	@Override
+	protected Result createResult(String projectKey, Result result, List<Object> attachments) throws StorageException {
+		Route route = getRoute(projectKey, result);
+		return rememberRoute(route, route.getStorage().createResult(projectKey, result, attachments));
+	}
+
+	@Override
+	protected void deleteResult(Result result) throws StorageException {
+		Route route = result.getId() == null ? null : resultRoutes.remove(result.getId());
+		if (route == null) {
+			getLogger().warn("Route of result " + result.getName() + " is not known, it is deleted by matching route");
+			route = getRoute(null, result);
+		}
+		route.getStorage().deleteResult(result);
+	}
+
+	protected Result rememberRoute(Route route, Result result) {
+		if (result != null && result.getId() != null)
+			resultRoutes.put(result.getId(), route);
+		return result;
+	}
+
+	protected Route getRoute(String projectKey, Result result) throws StorageException {
+		if (projectKey == null)
+			projectKey = (String) Property.PROJECT_KEY.get();
+		for (Route route : routes) {
+			if (route.matches(projectKey, result))
+				return route;
+		}
+		throw new StorageException("No route for result " + result.getName() + " with project key " + projectKey);
+	}
+
+	/**
+	 * Backend storage with rules for project key, suite and environment.
+	 */
+	public static class Route {
+
+		public static final String PROJECT_KEY = "projectKey";
+
+		public static final String SUITE = "suite";
+
+		public static final String ENVIRONMENT = "environment";
+
+		protected final String name;
+
+		protected final Storage storage;
+
+		protected final Map<String, Pattern> rules = new LinkedHashMap<>();
+
+		public Route(String name, Storage storage) {
+			this.name = name;
+			this.storage = storage;
+		}
+
+		/**
+		 * Creates route with rules like {@code projectKey=a.*,suite=b}.
+		 *
+		 * @param name
+		 * @param match
+		 *            Rules or null to match everything
+		 * @param storage
+		 * @return
+		 * @throws StorageException
+		 */
+		public static Route parse(String name, String match, Storage storage) throws StorageException {
+			Route route = new Route(name, storage);
+			if (match == null || match.trim().isEmpty())
+				return route;
+			for (String rule : match.split(",")) {
+				int index = rule.indexOf('=');
+				if (index < 1)
+					throw new StorageException("Invalid rule of route " + name + ": " + rule);
+				route.rule(rule.substring(0, index).trim(), rule.substring(index + 1).trim());
+			}
+			return route;
+		}
+
+		/**
+		 * Adds rule, field value must match whole regular expression.
+		 *
+		 * @param field
+		 *            {@value #PROJECT_KEY}, {@value #SUITE} or
+		 *            {@value #ENVIRONMENT}
+		 * @param regex
+		 * @return
+		 * @throws StorageException
+		 */
+		public Route rule(String field, String regex) throws StorageException {
+			if (!PROJECT_KEY.equals(field) && !SUITE.equals(field) && !ENVIRONMENT.equals(field))
+				throw new StorageException("Unsupported field of route " + name + ": " + field);
+			rules.put(field, Pattern.compile(regex));
+			return this;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Storage getStorage() {
+			return storage;
+		}
+
+		public boolean matches(String projectKey, Result result) {
+			for (Map.Entry<String, Pattern> rule : rules.entrySet()) {
+				String value;
+				switch (rule.getKey()) {
+				case PROJECT_KEY:
+					value = projectKey;
+					break;
+				case SUITE:
+					value = result.getSuite();
+					break;
+				default:
+					value = result.getEnvironment();
+				}
+				if (value == null || !rule.getValue().matcher(value).matches())
+					return false;
+			}
+			return true;
+		}
+
+	}
+
+}
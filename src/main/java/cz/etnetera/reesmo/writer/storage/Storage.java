@@ -15,26 +15,126 @@
 package cz.etnetera.reesmo.writer.storage;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
 import cz.etnetera.reesmo.writer.Bool;
 import cz.etnetera.reesmo.writer.Property;
 import cz.etnetera.reesmo.writer.model.result.Result;
 import cz.etnetera.reesmo.writer.model.result.ResultLink;
+import cz.etnetera.reesmo.writer.model.result.SuiteSummary;
 import cz.etnetera.reesmo.writer.model.result.TestSeverity;
 import cz.etnetera.reesmo.writer.model.result.TestStatus;
+import cz.etnetera.reesmo.writer.storage.FileSystemStorage.Durability;
+import cz.etnetera.reesmo.writer.storage.FileSystemStorage.ShardLevel;
+import cz.etnetera.reesmo.writer.stats.DurationHistory;
+import cz.etnetera.reesmo.writer.stats.SuiteRollup;
+import cz.etnetera.reesmo.writer.stats.SuiteRollup.SuiteStatistics;
+import cz.etnetera.reesmo.writer.trace.Phase;
+import cz.etnetera.reesmo.writer.trace.WriterSpan;
+import cz.etnetera.reesmo.writer.trace.WriterTrace;
 
-abstract public class Storage {
+abstract public class Storage implements AutoCloseable {
+	
+	private static final ObjectMapper COPY_MAPPER = new ObjectMapper();
+	
+	protected AttachmentTransformer attachmentTransformer;
+	
+	protected Set<TestStatus> lazyAttachmentStatuses = EnumSet.of(TestStatus.FAILED, TestStatus.BROKEN);
+	
+	protected double passedSampleRate = 1;
+	
+	protected boolean suiteRollupEnabled;
+	
+	protected File suiteRollupFile;
+	
+	private final SuiteRollup suiteRollup = new SuiteRollup();
+	
+	protected DurationHistory durationHistory;
+	
+	protected File durationHistoryFile;
 
 	@SuppressWarnings("unchecked")
 	public static Storage newInstance(Object configuration) throws StorageException {
+		List<String> routes = (List<String>) Property.ROUTES.get(configuration);
+		if (routes == null || routes.isEmpty() || Bool.FALSE.equals(Property.ENABLED.get(configuration))) {
+			return newInstance(configuration, Bool.TRUE.equals(Property.BUFFER.get(configuration)),
+					(File) Property.BUFFER_SPILL_FILE.get(configuration), true);
+		}
+		RoutingStorage routingStorage = new RoutingStorage();
+		try {
+			for (String name : routes) {
+				Properties routeConfiguration = RoutingStorage.getRouteConfiguration(name);
+				// every backend has its own buffer, so it needs its own spill file
+				File spillFile = (File) Property.BUFFER_SPILL_FILE.get(routeConfiguration, false);
+				File sharedSpillFile = (File) Property.BUFFER_SPILL_FILE.get(configuration);
+				if (spillFile == null && sharedSpillFile != null)
+					spillFile = new File(sharedSpillFile.getPath() + "." + name);
+				routingStorage.addRoute(RoutingStorage.Route.parse(name,
+						routeConfiguration.getProperty("reesmo." + RoutingStorage.MATCH),
+						newInstance(withConfiguration(configuration, routeConfiguration), true, spillFile, true)));
+			}
+		} catch (StorageException e) {
+			try {
+				routingStorage.close();
+			} catch (StorageException e2) {
+				// routes created so far are closed as well as possible
+			}
+			throw new StorageException("Failed to create routing storage", e);
+		}
+		return routingStorage;
+	}
+
+	/**
+	 * Collects system properties starting with given prefix, the prefix is
+	 * replaced by {@code reesmo.}, so they can be used as storage
+	 * configuration.
+	 * 
+	 * @param prefix
+	 * @return
+	 */
+	protected static Properties getPrefixedConfiguration(String prefix) {
+		Properties configuration = new Properties();
+		for (String key : System.getProperties().stringPropertyNames()) {
+			if (key.startsWith(prefix))
+				configuration.setProperty("reesmo." + key.substring(prefix.length()), System.getProperty(key));
+		}
+		return configuration;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Object> withConfiguration(Object configuration, Properties properties) {
+		List<Object> configurations = new ArrayList<>();
+		if (configuration instanceof List)
+			configurations.addAll((List<Object>) configuration);
+		else if (configuration != null)
+			configurations.add(configuration);
+		configurations.add(properties);
+		return configurations;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Storage newInstance(Object configuration, boolean buffer, File spillFile, boolean composite)
+			throws StorageException {
 		try {
 			Class<? extends Storage> clazz = null;
 			if (Bool.FALSE.equals(Property.ENABLED.get(configuration))) {
@@ -45,15 +145,84 @@ abstract public class Storage {
 			if (clazz.isAssignableFrom(DummyStorage.class)) {
 				return new DummyStorage();
 			}
-			if (clazz.isAssignableFrom(FileSystemStorage.class)) {
-				return new FileSystemStorage((File) Property.BASE_DIR.get(configuration));
-			}
-			if (clazz.isAssignableFrom(RestApiStorage.class)) {
-				return new RestApiStorage((String) Property.ENDPOINT.get(configuration),
+			Storage storage;
+			List<String> children = composite ? (List<String>) Property.CHILDREN.get(configuration) : null;
+			if (children != null && !children.isEmpty()) {
+				List<Storage> storages = new ArrayList<>();
+				for (String name : children) {
+					// children are not buffered, composite storage is
+					storages.add(newInstance(withConfiguration(configuration, CompositeStorage.getChildConfiguration(name)),
+							false, null, false));
+				}
+				storage = new CompositeStorage(storages, (CompositeStorage.Policy) Property.COMPOSITE_POLICY.get(configuration));
+			} else if (clazz.isAssignableFrom(FileSystemStorage.class)) {
+				FileSystemStorage fileSystemStorage = new FileSystemStorage((File) Property.BASE_DIR.get(configuration));
+				fileSystemStorage.setSharding((List<ShardLevel>) Property.SHARDING.get(configuration));
+				fileSystemStorage.setShardingDepth(((Number) Property.SHARDING_DEPTH.get(configuration)).intValue());
+				fileSystemStorage.setIndexEnabled(Bool.TRUE.equals(Property.INDEX.get(configuration)));
+				fileSystemStorage.setDurability((Durability) Property.DURABILITY.get(configuration));
+				fileSystemStorage.setGroupCommitWindow(((Number) Property.GROUP_COMMIT_WINDOW.get(configuration)).longValue());
+				storage = fileSystemStorage;
+			} else if (clazz.isAssignableFrom(RestApiStorage.class)) {
+				RestApiStorage restApiStorage = new RestApiStorage((String) Property.ENDPOINT.get(configuration),
 						(String) Property.USERNAME.get(configuration),
-						(String) Property.PASSWORD.get(configuration));
+						(String) Property.PASSWORD.get(configuration),
+						(Double) Property.HEDGE_PERCENTILE.get(configuration));
+				restApiStorage.setResumableAttachments(Bool.TRUE.equals(Property.RESUMABLE_ATTACHMENTS.get(configuration)));
+				restApiStorage.setAttachmentRetries(((Number) Property.ATTACHMENT_RETRIES.get(configuration)).intValue());
+				restApiStorage.setAttachmentJournalDir((File) Property.ATTACHMENT_JOURNAL_DIR.get(configuration));
+				Double rateLimit = (Double) Property.RATE_LIMIT.get(configuration);
+				boolean adaptiveConcurrency = Bool.TRUE.equals(Property.ADAPTIVE_CONCURRENCY.get(configuration));
+				Long chunkedUploadThreshold = (Long) Property.CHUNKED_UPLOAD_THRESHOLD.get(configuration);
+				if (chunkedUploadThreshold != null)
+					restApiStorage.setChunkedUploadThreshold(chunkedUploadThreshold);
+				restApiStorage.setChunkSize(((Number) Property.CHUNK_SIZE.get(configuration)).intValue());
+				restApiStorage.setChunkParallelism(((Number) Property.CHUNK_PARALLELISM.get(configuration)).intValue());
+				restApiStorage.setMinimalAck(Bool.TRUE.equals(Property.MINIMAL_ACK.get(configuration)));
+				restApiStorage.setSuiteSummaryUpload(Bool.TRUE.equals(Property.SUITE_SUMMARY_UPLOAD.get(configuration)));
+				// fixed concurrency limit alone needs admission controller too
+				if (rateLimit != null || adaptiveConcurrency || Property.MAX_CONCURRENCY.isSet(configuration)) {
+					restApiStorage.setAdmissionController(new AdmissionController(rateLimit == null ? 0 : rateLimit,
+							adaptiveConcurrency, ((Number) Property.MAX_CONCURRENCY.get(configuration)).intValue()));
+				}
+				if (Bool.TRUE.equals(Property.WARMUP.get(configuration)))
+					restApiStorage.startWarmUp((String) Property.WARMUP_HEALTH_URI.get(configuration));
+				storage = restApiStorage;
+				if (Bool.TRUE.equals(Property.PRIORITY_LANES.get(configuration))) {
+					PriorityStorage priorityStorage = new PriorityStorage(restApiStorage,
+							((Number) Property.PRIORITY_WORKERS.get(configuration)).intValue(),
+							(List<Double>) Property.PRIORITY_WEIGHTS.get(configuration),
+							(List<Double>) Property.PRIORITY_SHARES.get(configuration));
+					priorityStorage.setLargeAttachmentSize(((Number) Property.LARGE_ATTACHMENT_SIZE.get(configuration)).longValue());
+					priorityStorage.setMaxPending(((Number) Property.PRIORITY_MAX_PENDING.get(configuration)).intValue());
+					priorityStorage.setMaxAttempts(((Number) Property.PRIORITY_MAX_ATTEMPTS.get(configuration)).intValue());
+					storage = priorityStorage;
+				}
+			} else {
+				throw new StorageException("Unsupported storage type: " + clazz);
+			}
+			Integer imageMaxDimension = (Integer) Property.IMAGE_MAX_DIMENSION.get(configuration);
+			String imageFormat = (String) Property.IMAGE_FORMAT.get(configuration);
+			if (imageMaxDimension != null || imageFormat != null) {
+				storage.setAttachmentTransformer(new ImageAttachmentTransformer(imageMaxDimension, imageFormat,
+						((Number) Property.IMAGE_QUALITY.get(configuration)).doubleValue(),
+						Bool.TRUE.equals(Property.IMAGE_KEEP_ORIGINAL.get(configuration)),
+						Runtime.getRuntime().availableProcessors()));
+			}
+			storage.setLazyAttachmentStatuses((List<TestStatus>) Property.LAZY_ATTACHMENTS.get(configuration));
+			storage.setPassedSampleRate(((Number) Property.PASSED_SAMPLE_RATE.get(configuration)).doubleValue());
+			storage.setSuiteRollupEnabled(Bool.TRUE.equals(Property.ROLLUP.get(configuration)));
+			storage.setSuiteRollupFile((File) Property.ROLLUP_FILE.get(configuration));
+			storage.setDurationHistoryFile((File) Property.DURATION_HISTORY.get(configuration));
+			if (buffer) {
+				BufferedStorage bufferedStorage = new BufferedStorage(storage,
+						((Number) Property.BUFFER_BUDGET.get(configuration)).longValue(), spillFile);
+				bufferedStorage.setMaxAttempts(((Number) Property.BUFFER_MAX_ATTEMPTS.get(configuration)).intValue());
+				// buffered storage resolves lazy attachments before buffering
+				bufferedStorage.setLazyAttachmentStatuses(storage.getLazyAttachmentStatuses());
+				storage = bufferedStorage;
 			}
-			throw new StorageException("Unsupported storage type: " + clazz);
+			return storage;
 		} catch (Exception e) {
 			throw new StorageException("Failed to create storage instance", e);
 		}
@@ -146,36 +315,334 @@ abstract public class Storage {
 	 * @return
 	 */
 	public Result addResult(String projectKey, Result result, List<Object> attachments) throws StorageException {
+		WriterTrace.setContext(result == null ? null : result.getName(), projectKey);
 		try {
-			prepareResultBeforeCreate(result);
-			validateResult(result);
+			try (WriterSpan span = WriterTrace.begin(Phase.PREPARE)) {
+				prepareResultBeforeCreate(result);
+				span.success();
+			}
+			try (WriterSpan span = WriterTrace.begin(Phase.VALIDATE)) {
+				validateResult(result);
+				span.success();
+			}
+			attachments = resolveAttachments(result, attachments);
 			if (result.getProjectId() == null || result.getProjectId().trim().isEmpty()) {
 				if (projectKey == null)
 					projectKey = (String) Property.PROJECT_KEY.get();
 				if (projectKey == null || projectKey.trim().isEmpty())
 					throw new StorageException("Both result project key and id are empty");
 			}
-			result = createResult(projectKey, result, attachments);
+			if (!isSampled(result)) {
+				suiteRollup.addOmitted(projectKey, result, getResultLength(result));
+				if (suiteRollupEnabled)
+					suiteRollup.add(projectKey, result, getResultLength(result));
+				// attachments are not handed over to storage, which would delete them
+				deleteTemporaryFiles(attachments);
+				if (durationHistory != null)
+					durationHistory.record(result);
+				getLogger().debug("Result left out by sampling " + result.getName());
+				return result;
+			}
+			Result created = createResult(projectKey, result, attachments);
+			// failed attempts retried by buffered storage are not recorded,
+			// created result may hold only acknowledged fields
+			if (durationHistory != null)
+				durationHistory.record(result);
+			result = created;
+			if (suiteRollupEnabled)
+				suiteRollup.add(projectKey, result, getResultLength(result));
 			getLogger().info("Result added " + result.getName() + " " + result.getId());
 		} catch (Exception e) {
 			try {
 				if (result != null && result.getId() != null) {
 					getLogger().info("Deleting result " + result.getId());
-					deleteResult(result);
+					try (WriterSpan span = WriterTrace.begin(Phase.ROLLBACK)) {
+						deleteResult(result);
+						span.success();
+					}
 					getLogger().info("Result deleted " + result.getId());
 				}
 			} catch (Exception e2) {
 				getLogger().error("Failed to delete result after failing to add result", e2);
 			}
 			throw new StorageException("Failed to add result", e);
+		} finally {
+			WriterTrace.clearContext();
 		}
 		return result;
 	}
 	
+	/**
+	 * Store all results which were accepted but not stored yet,
+	 * summaries of suites collected since last flush and duration history.
+	 * 
+	 * @throws StorageException
+	 */
+	public void flush() throws StorageException {
+		for (SuiteStatistics statistics : suiteRollup.drain()) {
+			SuiteSummary summary = statistics.toSummary();
+			if (suiteRollupFile != null)
+				appendSuiteSummary(suiteRollupFile, statistics.getProjectKey(), summary);
+			createSuiteSummary(statistics.getProjectKey(), summary);
+		}
+		if (durationHistory != null && durationHistoryFile != null) {
+			try {
+				durationHistory.save(durationHistoryFile);
+			} catch (IOException e) {
+				throw new StorageException("Unable to save duration history " + durationHistoryFile, e);
+			}
+		}
+	}
+	
+	/**
+	 * Flush pending results and release resources held by storage.
+	 * 
+	 * @throws StorageException
+	 */
+	@Override
+	public void close() throws StorageException {
+		flush();
+		if (attachmentTransformer != null)
+			attachmentTransformer.close();
+	}
+	
+	public AttachmentTransformer getAttachmentTransformer() {
+		return attachmentTransformer;
+	}
+
+	public void setAttachmentTransformer(AttachmentTransformer attachmentTransformer) {
+		this.attachmentTransformer = attachmentTransformer;
+	}
+	
+	public Set<TestStatus> getLazyAttachmentStatuses() {
+		return lazyAttachmentStatuses;
+	}
+
+	/**
+	 * Set statuses of results for which {@link LazyAttachment}s are produced
+	 * and stored, they are dropped for other results.
+	 * 
+	 * @param statuses
+	 */
+	public void setLazyAttachmentStatuses(Collection<TestStatus> statuses) {
+		this.lazyAttachmentStatuses = statuses == null || statuses.isEmpty() ? EnumSet.noneOf(TestStatus.class)
+				: EnumSet.copyOf(statuses);
+	}
+	
+	public double getPassedSampleRate() {
+		return passedSampleRate;
+	}
+
+	/**
+	 * Set fraction of passed results which are stored. Other results are
+	 * always stored, left out passed results are counted in suite summaries
+	 * stored on {@link #flush()}. Selection is deterministic by result name.
+	 * 
+	 * @param passedSampleRate
+	 *            Number between 0 and 1
+	 */
+	public void setPassedSampleRate(double passedSampleRate) {
+		this.passedSampleRate = Math.max(0, Math.min(1, passedSampleRate));
+	}
+	
+	public boolean isSuiteRollupEnabled() {
+		return suiteRollupEnabled;
+	}
+
+	/**
+	 * Enable statistics of all results per suite run. They are stored as
+	 * suite summaries on {@link #flush()}.
+	 * 
+	 * @param suiteRollupEnabled
+	 */
+	public void setSuiteRollupEnabled(boolean suiteRollupEnabled) {
+		this.suiteRollupEnabled = suiteRollupEnabled;
+	}
+
+	public File getSuiteRollupFile() {
+		return suiteRollupFile;
+	}
+
+	/**
+	 * Set local file which suite summaries are appended to as JSON lines,
+	 * in addition to storing them.
+	 * 
+	 * @param suiteRollupFile
+	 */
+	public void setSuiteRollupFile(File suiteRollupFile) {
+		this.suiteRollupFile = suiteRollupFile;
+	}
+	
+	public DurationHistory getDurationHistory() {
+		return durationHistory;
+	}
+	
+	public File getDurationHistoryFile() {
+		return durationHistoryFile;
+	}
+
+	/**
+	 * Set local file with durations of tests, which is loaded now, updated
+	 * by added results and merged back on {@link #flush()}. It is used to
+	 * split tests into balanced shards, see {@link DurationHistory}.
+	 * 
+	 * @param durationHistoryFile
+	 * @throws StorageException
+	 */
+	public void setDurationHistoryFile(File durationHistoryFile) throws StorageException {
+		this.durationHistoryFile = durationHistoryFile;
+		if (durationHistoryFile == null) {
+			durationHistory = null;
+			return;
+		}
+		try {
+			durationHistory = DurationHistory.load(durationHistoryFile);
+		} catch (IOException e) {
+			getLogger().warn("Unable to load duration history " + durationHistoryFile + ", it is started again", e);
+			durationHistory = new DurationHistory();
+		}
+	}
+	
 	abstract protected Result createResult(String projectKey, Result result, List<Object> attachments) throws StorageException;
 	
 	abstract protected void deleteResult(Result result) throws StorageException;
 	
+	/**
+	 * Replaces lazy attachments with produced ones if result status requires
+	 * them or drops them otherwise.
+	 * 
+	 * @param result
+	 * @param attachments
+	 * @return
+	 */
+	protected List<Object> resolveAttachments(Result result, List<Object> attachments) {
+		if (attachments == null || attachments.stream().noneMatch(a -> a instanceof LazyAttachment))
+			return attachments;
+		boolean produce = result.getStatus() != null && lazyAttachmentStatuses.contains(result.getStatus());
+		List<Object> resolved = new ArrayList<>();
+		for (Object attachment : attachments) {
+			if (!(attachment instanceof LazyAttachment)) {
+				resolved.add(attachment);
+			} else if (produce) {
+				try {
+					resolved.addAll(((LazyAttachment) attachment).resolve());
+				} catch (StorageException e) {
+					getLogger().warn("Lazy attachment is skipped for result " + result.getName(), e);
+				}
+			}
+		}
+		return resolved;
+	}
+	
+	protected List<Object> transformAttachments(Result result, List<Object> attachments) throws StorageException {
+		if (attachmentTransformer == null || attachments == null || attachments.isEmpty())
+			return attachments;
+		return attachmentTransformer.transform(result, attachments);
+	}
+	
+	/**
+	 * Tells whether attachments of result can be stored one by one after
+	 * result is created, see {@link #createResultForUploads(String, Result)}.
+	 * 
+	 * @return
+	 */
+	protected boolean isAttachmentUploadSupported() {
+		return false;
+	}
+	
+	/**
+	 * Creates result without attachments, they are stored one by one by
+	 * returned uploads. Supported only when
+	 * {@link #isAttachmentUploadSupported()}.
+	 * 
+	 * @param projectKey
+	 * @param result
+	 * @return
+	 * @throws StorageException
+	 */
+	protected AttachmentUploads createResultForUploads(String projectKey, Result result) throws StorageException {
+		throw new StorageException("Attachment uploads are not supported by " + getClass().getSimpleName());
+	}
+	
+	/**
+	 * Copies result through json, so it can be handed to other thread or
+	 * storage while caller keeps its instance.
+	 * 
+	 * @param result
+	 * @return
+	 * @throws StorageException
+	 */
+	protected Result copyResult(Result result) throws StorageException {
+		try {
+			Result copy = COPY_MAPPER.readValue(COPY_MAPPER.writeValueAsBytes(result), Result.class);
+			copy.setIdempotencyKey(result.getIdempotencyKey());
+			return copy;
+		} catch (IOException e) {
+			throw new StorageException("Unable to copy result " + result.getName(), e);
+		}
+	}
+	
+	protected void deleteTemporaryFiles(List<Object> attachments) {
+		if (attachments == null)
+			return;
+		for (Object attachment : attachments) {
+			if (attachment instanceof TemporaryFile && !((TemporaryFile) attachment).delete())
+				getLogger().warn("Unable to delete temporary file " + attachment);
+		}
+	}
+	
+	/**
+	 * Store summary of suite run results. Storages without
+	 * summary support just log it.
+	 * 
+	 * @param projectKey
+	 * @param summary
+	 * @throws StorageException
+	 */
+	protected void createSuiteSummary(String projectKey, SuiteSummary summary) throws StorageException {
+		getLogger().info("Suite " + summary.getSuite() + " " + summary.getSuiteId() + " has " + summary.getCount()
+				+ " results, left out " + summary.getOmittedCount() + " passed results with total length "
+				+ summary.getOmittedLength());
+	}
+	
+	protected boolean isSampled(Result result) {
+		if (passedSampleRate >= 1 || !TestStatus.PASSED.equals(result.getStatus()))
+			return true;
+		if (passedSampleRate <= 0)
+			return false;
+		// murmur3 finalizer spreads similar names across the range
+		int hash = result.getName().hashCode();
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return (hash & 0x7fffffff) < passedSampleRate * Integer.MAX_VALUE;
+	}
+	
+	protected void appendSuiteSummary(File file, String projectKey, SuiteSummary summary) throws StorageException {
+		try {
+			ObjectMapper mapper = new ObjectMapper();
+			ObjectNode node = mapper.createObjectNode();
+			node.put("projectKey", projectKey);
+			node.setAll((ObjectNode) mapper.valueToTree(summary));
+			byte[] line = (mapper.writeValueAsString(node) + "\n").getBytes(StandardCharsets.UTF_8);
+			synchronized (Storage.class) {
+				Files.write(file.toPath(), line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			}
+		} catch (IOException e) {
+			throw new StorageException("Unable to append suite summary to file: " + file, e);
+		}
+	}
+	
+	protected long getResultLength(Result result) {
+		if (result.getLength() != null)
+			return result.getLength();
+		if (result.getStartedAt() == null || result.getEndedAt() == null)
+			return 0;
+		return result.getEndedAt().getTime() - result.getStartedAt().getTime();
+	}
+	
 	protected void prepareResultBeforeCreate(Result result) {
 		if (result == null)
 			return;
@@ -187,6 +654,8 @@ abstract public class Storage {
 			result.setStatus(TestStatus.PASSED);
 		if (result.getSeverity() == null)
 			result.setSeverity(TestSeverity.NORMAL);
+		if (result.getIdempotencyKey() == null)
+			result.setIdempotencyKey(UUID.randomUUID().toString());
 	}
 	
 	protected void validateResult(Result result) throws StorageException {
@@ -237,8 +706,16 @@ abstract public class Storage {
 		return LoggerFactory.getLogger(getClass());
 	}
 	
-	@SuppressWarnings("unchecked")
 	protected Result updateResultFromConfigurations(List<Object> configurations, Result result) {
+		try (WriterSpan span = WriterTrace.begin(Phase.CONFIGURE, result.getName(), null)) {
+			updateResultFromConfigurationsTraced(configurations, result);
+			span.success();
+		}
+		return result;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void updateResultFromConfigurationsTraced(List<Object> configurations, Result result) {
 		result.setSuite((String) Property.SUITE.get(configurations, result.getSuite()));
 		result.setSuiteId((String) Property.SUITE_ID.get(configurations, result.getSuiteId()));
 		result.setJob((String) Property.JOB.get(configurations, result.getJob()));
@@ -261,8 +738,6 @@ abstract public class Storage {
 		List<ResultLink> links = (List<ResultLink>) Property.LINKS.get(configurations);
 		if (result.getLinks() != null) links.addAll(result.getLinks());
 		result.setLinks(links);
-		
-		return result;
 	}
 
 }
@@ -0,0 +1,32 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.storage;
+
+import java.io.File;
+
+/**
+ * Attachment file created by writer itself, it is deleted once it is stored.
+ */
+public class TemporaryFile extends ExtendedFile {
+
+	public TemporaryFile(File file, String path, String contentType) {
+		super(file, path, contentType);
+	}
+
+	public boolean delete() {
+		return file.delete();
+	}
+
+}
@@ -0,0 +1,625 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.tool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import cz.etnetera.reesmo.writer.Bool;
+import cz.etnetera.reesmo.writer.Property;
+import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+import cz.etnetera.reesmo.writer.storage.DummyStorage;
+import cz.etnetera.reesmo.writer.storage.Storage;
+import cz.etnetera.reesmo.writer.storage.StorageException;
+import cz.etnetera.reesmo.writer.storage.TemporaryFile;
+
+/**
+ * Imports JUnit XML reports (surefire, failsafe, Ant, Gradle) into storage
+ * configured by reesmo system properties.
+ *
+ * <pre>
+ * java -Dreesmo.enabled=true -Dreesmo.storage=restapi -Dreesmo.endpoint=... -cp ... \
+ *     cz.etnetera.reesmo.writer.tool.JUnitReportImporter --threads 4 target/surefire-reports
+ * </pre>
+ *
+ * Storage is disabled by default, so the importer refuses to run unless
+ * {@code reesmo.enabled=true}, reports are only parsed with explicit
+ * {@code reesmo.storage=dummy}.
+ * Reports are read by StAX, each testcase is stored as soon as its element
+ * ends and its {@code system-out} and {@code system-err} are streamed to
+ * temporary attachment files, so memory used for a report does not depend
+ * on its size. Failure and error texts are kept up to
+ * {@value #MAX_ERROR_LENGTH} characters. Files are imported in parallel,
+ * each by one thread.
+ */
+public class JUnitReportImporter {
+
+	public static final String DEFAULT_PATTERN = "TEST-*.xml";
+
+	protected static final int MAX_ERROR_LENGTH = 64 * 1024;
+
+	protected static final String CONTENT_TYPE_TEXT = "text/plain; charset=UTF-8";
+
+	protected final Storage storage;
+
+	protected String projectKey;
+
+	protected int threads = 1;
+
+	private final XMLInputFactory factory;
+
+	private final LongAdder files = new LongAdder();
+
+	private final LongAdder failedFiles = new LongAdder();
+
+	private final LongAdder failedResults = new LongAdder();
+
+	private final LongAdder attachmentBytes = new LongAdder();
+
+	private final Map<TestStatus, LongAdder> statuses = new EnumMap<>(TestStatus.class);
+
+	public JUnitReportImporter(Storage storage) {
+		this.storage = storage;
+		factory = XMLInputFactory.newInstance();
+		// reports are not trusted, no DTD or external entities
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+		for (TestStatus status : TestStatus.values()) {
+			statuses.put(status, new LongAdder());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		String projectKey = (String) Property.PROJECT_KEY.get();
+		String pattern = DEFAULT_PATTERN;
+		File jsonFile = null;
+		List<File> paths = new ArrayList<>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if ("--help".equals(arg) || "-h".equals(arg)) {
+					printUsage(System.out);
+					System.exit(0);
+				}
+				if (!arg.startsWith("--")) {
+					paths.add(new File(arg));
+					continue;
+				}
+				if (i + 1 >= args.length)
+					throw new IllegalArgumentException("Missing value for " + arg);
+				String value = args[++i];
+				switch (arg) {
+				case "--threads":
+					threads = Integer.parseInt(value);
+					break;
+				case "--project-key":
+					projectKey = value;
+					break;
+				case "--pattern":
+					pattern = value;
+					break;
+				case "--json":
+					jsonFile = new File(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+			if (paths.isEmpty())
+				throw new IllegalArgumentException("No report file or directory given");
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid number: " + e.getMessage());
+			printUsage(System.err);
+			System.exit(2);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printUsage(System.err);
+			System.exit(2);
+		}
+		if (!Bool.TRUE.equals(Property.ENABLED.get())) {
+			System.err.println("Storage is disabled, results would not be imported anywhere. Set -Dreesmo.enabled=true,"
+					+ " with -Dreesmo.storage=dummy to only parse reports.");
+			System.exit(2);
+		}
+		Map<String, Object> report;
+		try (Storage storage = Storage.newInstance(null)) {
+			if (storage instanceof DummyStorage)
+				System.err.println("Warning: results are not stored by dummy storage, reports are only parsed");
+			JUnitReportImporter importer = new JUnitReportImporter(storage);
+			importer.setProjectKey(projectKey);
+			importer.setThreads(threads);
+			report = importer.importFiles(findReports(paths, pattern));
+		}
+		ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+		if (jsonFile == null) {
+			System.out.println(mapper.writeValueAsString(report));
+		} else {
+			mapper.writeValue(jsonFile, report);
+		}
+		if (((Number) report.get("failedFiles")).longValue() > 0 || ((Number) report.get("failedResults")).longValue() > 0)
+			System.exit(1);
+	}
+
+	protected static void printUsage(PrintStream out) {
+		out.println("Usage: JUnitReportImporter [options] FILE|DIR..., storage is configured by -Dreesmo.* system properties");
+		out.println("  --threads N          files imported in parallel (default number of processors)");
+		out.println("  --project-key KEY    project key (default reesmo.projectkey)");
+		out.println("  --pattern GLOB       report file names searched in directories (default " + DEFAULT_PATTERN + ")");
+		out.println("  --json FILE          write JSON report to file instead of standard output");
+	}
+
+	/**
+	 * Returns given files and files matching pattern in given directories
+	 * and their subdirectories.
+	 *
+	 * @param paths
+	 * @param pattern
+	 *            Glob of file name
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<File> findReports(List<File> paths, String pattern) throws IOException {
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		List<File> reports = new ArrayList<>();
+		for (File path : paths) {
+			if (!path.isDirectory()) {
+				reports.add(path);
+				continue;
+			}
+			try (Stream<Path> files = Files.walk(path.toPath())) {
+				reports.addAll(files.filter(Files::isRegularFile).filter(file -> matcher.matches(file.getFileName()))
+						.sorted().map(Path::toFile).collect(Collectors.toList()));
+			}
+		}
+		return reports;
+	}
+
+	public String getProjectKey() {
+		return projectKey;
+	}
+
+	public void setProjectKey(String projectKey) {
+		this.projectKey = projectKey;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Imports files in parallel, failure of one file does not stop others.
+	 *
+	 * @param reports
+	 * @return Summary of import
+	 * @throws InterruptedException
+	 */
+	public Map<String, Object> importFiles(List<File> reports) throws InterruptedException {
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, reports.size())), r -> {
+			Thread thread = new Thread(r, "reesmo-import");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			for (File report : reports) {
+				executor.execute(() -> {
+					try {
+						importFile(report);
+					} catch (IOException | XMLStreamException | RuntimeException e) {
+						failedFiles.increment();
+						getLogger().error("Unable to import report " + report, e);
+					}
+				});
+			}
+			executor.shutdown();
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				getLogger().info("Importing reports, " + files.sum() + " of " + reports.size() + " done");
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return getSummary(System.nanoTime() - start);
+	}
+
+	/**
+	 * Imports one report, results stored before report turns out to be
+	 * malformed are kept.
+	 *
+	 * @param report
+	 * @return Number of stored results
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	public int importFile(File report) throws IOException, XMLStreamException {
+		int stored = 0;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(report))) {
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			Deque<Suite> suites = new ArrayDeque<>();
+			TestCase testCase = null;
+			try {
+				while (reader.hasNext()) {
+					switch (reader.next()) {
+					case XMLStreamConstants.START_ELEMENT:
+						String name = reader.getLocalName();
+						if ("testsuite".equals(name)) {
+							suites.push(new Suite(reader, suites.peek(), report));
+						} else if ("testcase".equals(name)) {
+							testCase = new TestCase(reader, suites.peek(), report);
+						} else if (testCase != null) {
+							testCase.startElement(reader);
+						}
+						break;
+					case XMLStreamConstants.CHARACTERS:
+					case XMLStreamConstants.CDATA:
+					case XMLStreamConstants.SPACE:
+						if (testCase != null)
+							testCase.characters(reader);
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						name = reader.getLocalName();
+						if ("testsuite".equals(name)) {
+							suites.poll();
+						} else if ("testcase".equals(name) && testCase != null) {
+							if (store(testCase))
+								stored++;
+							testCase = null;
+						} else if (testCase != null) {
+							testCase.endElement(name);
+						}
+						break;
+					default:
+						break;
+					}
+				}
+			} finally {
+				if (testCase != null)
+					testCase.discard();
+				reader.close();
+			}
+		}
+		files.increment();
+		getLogger().info("Imported " + stored + " results from " + report);
+		return stored;
+	}
+
+	protected boolean store(TestCase testCase) throws IOException {
+		testCase.finish();
+		Result result = testCase.toResult();
+		try {
+			storage.addResult(projectKey, result, testCase.attachments.isEmpty() ? null : testCase.attachments);
+			statuses.get(result.getStatus()).increment();
+			return true;
+		} catch (StorageException e) {
+			testCase.discard();
+			failedResults.increment();
+			getLogger().error("Unable to store result " + result.getSuite() + "." + result.getName(), e);
+			return false;
+		}
+	}
+
+	protected Map<String, Object> getSummary(long elapsedNanos) {
+		long results = 0;
+		Map<String, Long> statusCounts = new LinkedHashMap<>();
+		for (Map.Entry<TestStatus, LongAdder> entry : statuses.entrySet()) {
+			statusCounts.put(entry.getKey().name(), entry.getValue().sum());
+			results += entry.getValue().sum();
+		}
+		double seconds = elapsedNanos / 1e9;
+		Map<String, Object> summary = new LinkedHashMap<>();
+		summary.put("files", files.sum());
+		summary.put("failedFiles", failedFiles.sum());
+		summary.put("results", results);
+		summary.put("failedResults", failedResults.sum());
+		summary.put("statuses", statusCounts);
+		summary.put("attachmentBytes", attachmentBytes.sum());
+		summary.put("elapsedSeconds", seconds);
+		summary.put("throughput", results / seconds);
+		return summary;
+	}
+
+	protected Logger getLogger() {
+		return LoggerFactory.getLogger(getClass());
+	}
+
+	private static Long parseMillis(String seconds) {
+		if (seconds == null || seconds.trim().isEmpty())
+			return null;
+		try {
+			// some reporters format thousands with comma
+			return Math.round(Double.parseDouble(seconds.trim().replace(",", "")) * 1000);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static Long parseTimestamp(String timestamp) {
+		if (timestamp == null || timestamp.trim().isEmpty())
+			return null;
+		try {
+			return OffsetDateTime.parse(timestamp.trim()).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			// usually local time without offset
+		}
+		try {
+			return LocalDateTime.parse(timestamp.trim()).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Test suite element, testcases are placed one after another from its
+	 * timestamp, which also identifies the suite run.
+	 */
+	private static class Suite {
+
+		private final String name;
+
+		private final String id;
+
+		private long cursor;
+
+		private Suite(XMLStreamReader reader, Suite parent, File report) {
+			String name = reader.getAttributeValue(null, "name");
+			this.name = name == null && parent != null ? parent.name : name;
+			Long timestamp = parseTimestamp(reader.getAttributeValue(null, "timestamp"));
+			this.cursor = timestamp != null ? timestamp : parent != null ? parent.cursor : report.lastModified();
+			this.id = String.valueOf(cursor);
+		}
+
+	}
+
+	/**
+	 * Testcase element being read.
+	 */
+	protected class TestCase {
+
+		private final String name;
+
+		private final String className;
+
+		private final String suiteName;
+
+		private final String suiteId;
+
+		private final Long length;
+
+		private final long startedAt;
+
+		private TestStatus status = TestStatus.PASSED;
+
+		private final List<String> errors = new ArrayList<>();
+
+		private final List<String> notes = new ArrayList<>();
+
+		private final List<Object> attachments = new ArrayList<>();
+
+		private boolean flaky;
+
+		private String element;
+
+		private StringBuilder text;
+
+		private boolean nestedOutput;
+
+		private String message;
+
+		private String type;
+
+		private TemporaryFile output;
+
+		private Writer outputWriter;
+
+		private TestCase(XMLStreamReader reader, Suite suite, File report) {
+			name = reader.getAttributeValue(null, "name");
+			className = reader.getAttributeValue(null, "classname");
+			suiteName = suite == null ? null : suite.name;
+			suiteId = suite == null ? String.valueOf(report.lastModified()) : suite.id;
+			length = parseMillis(reader.getAttributeValue(null, "time"));
+			startedAt = suite == null ? report.lastModified() : suite.cursor;
+			if (suite != null && length != null)
+				suite.cursor += length;
+		}
+
+		private void startElement(XMLStreamReader reader) throws IOException {
+			String name = reader.getLocalName();
+			switch (name) {
+			case "failure":
+			case "error":
+			case "rerunFailure":
+			case "rerunError":
+			case "flakyFailure":
+			case "flakyError":
+				element = name;
+				text = new StringBuilder();
+				message = reader.getAttributeValue(null, "message");
+				type = reader.getAttributeValue(null, "type");
+				if ("failure".equals(name)) {
+					status = TestStatus.FAILED;
+				} else if ("error".equals(name) && status != TestStatus.FAILED) {
+					status = TestStatus.BROKEN;
+				} else if (name.startsWith("flaky")) {
+					flaky = true;
+				}
+				break;
+			case "skipped":
+				status = TestStatus.SKIPPED;
+				String reason = reader.getAttributeValue(null, "message");
+				if (reason != null && !reason.isEmpty())
+					notes.add("Skipped: " + reason);
+				break;
+			case "system-out":
+			case "system-err":
+				// output of rerun is nested in its element and is not kept
+				if (element == null)
+					openOutput(name);
+				else
+					nestedOutput = true;
+				break;
+			default:
+				break;
+			}
+		}
+
+		private void characters(XMLStreamReader reader) throws IOException {
+			if (nestedOutput) {
+				return;
+			} else if (outputWriter != null) {
+				outputWriter.write(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+			} else if (text != null && text.length() < MAX_ERROR_LENGTH) {
+				text.append(reader.getTextCharacters(), reader.getTextStart(),
+						Math.min(reader.getTextLength(), MAX_ERROR_LENGTH - text.length()));
+			}
+		}
+
+		private void endElement(String name) throws IOException {
+			if (name.equals(element)) {
+				String error = text.toString().trim();
+				if (error.isEmpty())
+					error = type == null ? String.valueOf(message) : message == null ? type : type + ": " + message;
+				if (name.startsWith("flaky")) {
+					notes.add("Flaky run: " + error);
+				} else {
+					errors.add(error);
+				}
+				element = null;
+				text = null;
+			} else if ("system-out".equals(name) || "system-err".equals(name)) {
+				if (outputWriter != null)
+					closeOutput();
+				nestedOutput = false;
+			}
+		}
+
+		private void openOutput(String name) throws IOException {
+			File file = File.createTempFile("reesmo-import-", ".txt");
+			output = new TemporaryFile(file, name + ".txt", CONTENT_TYPE_TEXT);
+			outputWriter = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file.toPath()),
+					StandardCharsets.UTF_8));
+		}
+
+		private void closeOutput() throws IOException {
+			outputWriter.close();
+			outputWriter = null;
+			File file = output.getFile();
+			if (isBlank(file)) {
+				output.delete();
+			} else {
+				attachments.add(output);
+				attachmentBytes.add(file.length());
+			}
+			output = null;
+		}
+
+		private boolean isBlank(File file) throws IOException {
+			if (file.length() > 1024)
+				return false;
+			return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().isEmpty();
+		}
+
+		private void finish() throws IOException {
+			if (outputWriter != null)
+				closeOutput();
+		}
+
+		/**
+		 * Deletes temporary files of testcase which is not going to be
+		 * stored.
+		 */
+		private void discard() {
+			try {
+				if (outputWriter != null)
+					outputWriter.close();
+			} catch (IOException e) {
+				getLogger().warn("Unable to close output of " + name, e);
+			}
+			if (output != null)
+				output.delete();
+			for (Object attachment : attachments) {
+				((TemporaryFile) attachment).delete();
+			}
+		}
+
+		private Result toResult() {
+			Result result = new Result();
+			result.setName(name);
+			String suite = className != null && !className.isEmpty() ? className : suiteName;
+			if (suite != null) {
+				result.setSuite(suite);
+				result.setSuiteId(suiteId);
+			}
+			result.setStatus(status);
+			result.setStartedAt(new Date(startedAt));
+			result.setEndedAt(new Date(length == null ? startedAt : startedAt + length));
+			result.setLength(length);
+			result.setAutomated(true);
+			result.setErrors(errors);
+			result.setNotes(notes);
+			if (flaky)
+				result.addLabel("flaky");
+			return result;
+		}
+
+	}
+
+}
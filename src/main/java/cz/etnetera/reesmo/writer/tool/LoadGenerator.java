@@ -0,0 +1,469 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import cz.etnetera.reesmo.writer.Bool;
+import cz.etnetera.reesmo.writer.Property;
+import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.model.result.ResultLink;
+import cz.etnetera.reesmo.writer.model.result.TestSeverity;
+import cz.etnetera.reesmo.writer.model.result.TestStatus;
+import cz.etnetera.reesmo.writer.stats.Histogram;
+import cz.etnetera.reesmo.writer.storage.BufferedStorage;
+import cz.etnetera.reesmo.writer.storage.CompositeStorage;
+import cz.etnetera.reesmo.writer.storage.DummyStorage;
+import cz.etnetera.reesmo.writer.storage.ExtendedFile;
+import cz.etnetera.reesmo.writer.storage.PriorityStorage;
+import cz.etnetera.reesmo.writer.storage.RestApiStorage;
+import cz.etnetera.reesmo.writer.storage.RoutingStorage;
+import cz.etnetera.reesmo.writer.storage.Storage;
+import cz.etnetera.reesmo.writer.storage.StorageException;
+
+/**
+ * Drives synthetic results through storage configured by reesmo system
+ * properties and reports throughput, latency percentiles and errors.
+ *
+ * <pre>
+ * java -Dreesmo.enabled=true -Dreesmo.storage=restapi -Dreesmo.endpoint=... -cp ... \
+ *     cz.etnetera.reesmo.writer.tool.LoadGenerator --threads 8 --rate 200 --duration 60 --json report.json
+ * </pre>
+ *
+ * Storage is disabled by default, so the generator refuses to run unless
+ * {@code reesmo.enabled=true}. Writer overhead without storage is measured
+ * with {@code reesmo.storage=dummy}.
+ *
+ * Latency of rate limited run is measured from scheduled start of each
+ * result, so stalls of storage are not hidden by producers waiting for it.
+ *
+ * Buffered and prioritized storages, also when used by routes or composite
+ * children, only accept results and store them in background. Latency of
+ * such storage measures acceptance, report marks it as not acknowledged.
+ * Storage is flushed before elapsed time is taken, so throughput includes
+ * draining of accepted results, and results failed in background are
+ * counted as errors.
+ */
+public class LoadGenerator {
+
+	protected static final String DEFAULT_PROJECT_KEY = "loadtest";
+
+	protected static final int[] ATTACHMENT_SIZES = { 1024, 16 * 1024, 256 * 1024, 2 * 1024 * 1024 };
+
+	protected static final double[] ATTACHMENT_SIZE_WEIGHTS = { 0.5, 0.3, 0.15, 0.05 };
+
+	protected static final String[] SUITES = { "checkout", "login", "search", "catalog", "account", "payments" };
+
+	protected static final String[] LABELS = { "smoke", "regression", "api", "ui", "slow", "flaky", "nightly" };
+
+	protected int threads = 1;
+
+	protected double rate;
+
+	protected long count;
+
+	protected long duration = 30;
+
+	protected double attachmentProbability = 0.3;
+
+	protected long seed = System.nanoTime();
+
+	protected String projectKey;
+
+	protected File jsonFile;
+
+	private final Histogram latency = new Histogram();
+
+	private final LongAdder succeeded = new LongAdder();
+
+	private final LongAdder attachmentBytes = new LongAdder();
+
+	private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+	private final AtomicLong issued = new AtomicLong();
+
+	private final List<File> attachmentFiles = new ArrayList<>();
+
+	private Map<String, Object> admissionMetrics;
+
+	private boolean acknowledged = true;
+
+	private long acceptedNanos;
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		try {
+			generator.parseArguments(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printUsage(System.err);
+			System.exit(2);
+		}
+		if (!Bool.TRUE.equals(Property.ENABLED.get())) {
+			System.err.println("Storage is disabled, results would not be stored anywhere. Set -Dreesmo.enabled=true,"
+					+ " with -Dreesmo.storage=dummy to measure writer without storage.");
+			System.exit(2);
+		}
+		Map<String, Object> report = generator.run();
+		generator.printTable(report, System.out);
+		ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+		if (generator.jsonFile == null) {
+			System.out.println(mapper.writeValueAsString(report));
+		} else {
+			mapper.writeValue(generator.jsonFile, report);
+		}
+	}
+
+	protected static void printUsage(PrintStream out) {
+		out.println("Usage: LoadGenerator [options], storage is configured by -Dreesmo.* system properties");
+		out.println("  --threads N          producer threads (default 1)");
+		out.println("  --rate R             target results per second for all threads, 0 is maximum (default 0)");
+		out.println("  --count N            stop after N results");
+		out.println("  --duration S         stop after S seconds when count is not set (default 30)");
+		out.println("  --attachments P      probability of result having attachments (default 0.3)");
+		out.println("  --project-key KEY    project key (default reesmo.projectkey or " + DEFAULT_PROJECT_KEY + ")");
+		out.println("  --seed N             random seed");
+		out.println("  --json FILE          write JSON report to file instead of standard output");
+	}
+
+	protected void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if ("--help".equals(arg) || "-h".equals(arg)) {
+				printUsage(System.out);
+				System.exit(0);
+			}
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for " + arg);
+			String value = args[++i];
+			try {
+				switch (arg) {
+				case "--threads":
+					threads = Integer.parseInt(value);
+					break;
+				case "--rate":
+					rate = Double.parseDouble(value);
+					break;
+				case "--count":
+					count = Long.parseLong(value);
+					break;
+				case "--duration":
+					duration = Long.parseLong(value);
+					break;
+				case "--attachments":
+					attachmentProbability = Double.parseDouble(value);
+					break;
+				case "--project-key":
+					projectKey = value;
+					break;
+				case "--seed":
+					seed = Long.parseLong(value);
+					break;
+				case "--json":
+					jsonFile = new File(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value " + value + " for " + arg);
+			}
+		}
+		if (threads < 1)
+			throw new IllegalArgumentException("Threads must be positive");
+		if (rate < 0)
+			throw new IllegalArgumentException("Rate must not be negative");
+		if (count <= 0 && duration <= 0)
+			throw new IllegalArgumentException("Either count or duration must be positive");
+		if (projectKey == null)
+			projectKey = (String) Property.PROJECT_KEY.get();
+		if (projectKey == null)
+			projectKey = DEFAULT_PROJECT_KEY;
+	}
+
+	/**
+	 * Runs the load and returns report.
+	 *
+	 * @return
+	 * @throws StorageException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public Map<String, Object> run() throws StorageException, IOException, InterruptedException {
+		createAttachmentFiles();
+		long elapsed;
+		try (Storage storage = Storage.newInstance(null)) {
+			if (storage instanceof DummyStorage)
+				System.err.println("Warning: results are not stored by dummy storage, only writer overhead is measured");
+			List<Storage> asynchronous = new ArrayList<>();
+			collectAsynchronous(storage, asynchronous);
+			acknowledged = asynchronous.isEmpty();
+			if (!acknowledged)
+				System.err.println("Warning: results are stored in background by "
+						+ asynchronous.get(0).getClass().getSimpleName() + ", latency measures acceptance only");
+			long start = System.nanoTime();
+			long deadline = count > 0 ? Long.MAX_VALUE : start + TimeUnit.SECONDS.toNanos(duration);
+			long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+			List<Thread> producers = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				Random random = new Random(seed + i);
+				Thread producer = new Thread(() -> produce(storage, random, start, deadline, interval),
+						"reesmo-load-" + (i + 1));
+				producers.add(producer);
+				producer.start();
+			}
+			for (Thread producer : producers) {
+				producer.join();
+			}
+			acceptedNanos = System.nanoTime() - start;
+			// accepted results are drained, so they are counted in elapsed time
+			StorageException flushException = null;
+			try {
+				storage.flush();
+			} catch (StorageException e) {
+				flushException = e;
+			}
+			elapsed = System.nanoTime() - start;
+			long failedInBackground = 0;
+			for (Storage wrapper : asynchronous) {
+				if (wrapper instanceof BufferedStorage)
+					failedInBackground += ((BufferedStorage) wrapper).getDeadLetterCount();
+				else if (wrapper instanceof PriorityStorage)
+					failedInBackground += ((PriorityStorage) wrapper).getFailedCount();
+			}
+			// flush of prioritized storage fails because of counted failures
+			if (failedInBackground > 0)
+				errors.computeIfAbsent("Background", k -> new LongAdder()).add(failedInBackground);
+			else if (flushException != null)
+				recordError(flushException);
+			if (storage instanceof RestApiStorage && ((RestApiStorage) storage).getAdmissionController() != null)
+				admissionMetrics = ((RestApiStorage) storage).getAdmissionController().getMetrics();
+		} finally {
+			for (File file : attachmentFiles) {
+				file.delete();
+			}
+		}
+		return createReport(elapsed);
+	}
+
+	protected void produce(Storage storage, Random random, long start, long deadline, long interval) {
+		while (true) {
+			long sequence = issued.getAndIncrement();
+			if (count > 0 && sequence >= count)
+				return;
+			long scheduled = interval > 0 ? start + sequence * interval : System.nanoTime();
+			if (scheduled >= deadline)
+				return;
+			long now;
+			while ((now = System.nanoTime()) < scheduled) {
+				LockSupport.parkNanos(scheduled - now);
+			}
+			if (now >= deadline)
+				return;
+			Result result = createResult(random, sequence);
+			List<Object> attachments = createAttachments(random);
+			try {
+				storage.addResult(projectKey, result, attachments);
+				succeeded.increment();
+			} catch (Exception e) {
+				recordError(e);
+			}
+			latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduled));
+		}
+	}
+
+	protected void recordError(Exception e) {
+		Throwable cause = e;
+		while (cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		errors.computeIfAbsent(cause.getClass().getSimpleName(), k -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Collects storages which store results in background, they are looked
+	 * up also in routes and composite children.
+	 *
+	 * @param storage
+	 * @param asynchronous
+	 */
+	protected void collectAsynchronous(Storage storage, List<Storage> asynchronous) {
+		if (storage instanceof BufferedStorage || storage instanceof PriorityStorage) {
+			asynchronous.add(storage);
+		} else if (storage instanceof RoutingStorage) {
+			for (RoutingStorage.Route route : ((RoutingStorage) storage).getRoutes()) {
+				collectAsynchronous(route.getStorage(), asynchronous);
+			}
+		} else if (storage instanceof CompositeStorage) {
+			for (Storage child : ((CompositeStorage) storage).getStorages()) {
+				collectAsynchronous(child, asynchronous);
+			}
+		}
+	}
+
+	protected Result createResult(Random random, long sequence) {
+		Result result = new Result();
+		String suite = SUITES[random.nextInt(SUITES.length)];
+		result.setName(suite + "-test-" + random.nextInt(500));
+		result.setSuite(suite);
+		result.setSuiteId(suite + "-" + seed);
+		result.setJob("load");
+		result.setJobId(Long.toString(seed));
+		result.setEnvironment("load");
+		result.setAutomated(true);
+		long length = Math.max(1, (long) Math.exp(6 + random.nextGaussian() * 1.5));
+		Date endedAt = new Date();
+		result.setStartedAt(new Date(endedAt.getTime() - length));
+		result.setEndedAt(endedAt);
+		result.setLength(length);
+
+		double roll = random.nextDouble();
+		TestStatus status = roll < 0.85 ? TestStatus.PASSED
+				: roll < 0.93 ? TestStatus.FAILED : roll < 0.96 ? TestStatus.BROKEN : TestStatus.SKIPPED;
+		result.setStatus(status);
+		result.setSeverity(TestSeverity.values()[Math.min(random.nextInt(8), TestSeverity.values().length - 1)]);
+		if (TestStatus.FAILED.equals(status) || TestStatus.BROKEN.equals(status)) {
+			Throwable error = TestStatus.FAILED.equals(status)
+					? new AssertionError("Expected value " + random.nextInt(100) + " in result " + sequence)
+					: new IllegalStateException("Unexpected error in result " + sequence);
+			result.addError(error);
+		}
+		int labels = random.nextInt(4);
+		for (int i = 0; i < labels; i++) {
+			result.addLabel(LABELS[random.nextInt(LABELS.length)]);
+		}
+		if (random.nextInt(5) == 0) {
+			ResultLink link = new ResultLink();
+			link.setName("Issue");
+			link.setUrl("https://issues.example.com/browse/LOAD-" + random.nextInt(1000));
+			result.addLink(link);
+		}
+		return result;
+	}
+
+	protected List<Object> createAttachments(Random random) {
+		if (attachmentFiles.isEmpty() || random.nextDouble() >= attachmentProbability)
+			return null;
+		List<Object> attachments = new ArrayList<>();
+		int size = 1 + random.nextInt(3);
+		for (int i = 0; i < size; i++) {
+			File file = attachmentFiles.get(pickAttachmentSize(random));
+			attachments.add(ExtendedFile.withPathAndContentType(file, "attachment-" + i + ".bin",
+					"application/octet-stream"));
+			attachmentBytes.add(file.length());
+		}
+		return attachments;
+	}
+
+	protected int pickAttachmentSize(Random random) {
+		double roll = random.nextDouble();
+		for (int i = 0; i < ATTACHMENT_SIZE_WEIGHTS.length; i++) {
+			roll -= ATTACHMENT_SIZE_WEIGHTS[i];
+			if (roll < 0)
+				return i;
+		}
+		return ATTACHMENT_SIZE_WEIGHTS.length - 1;
+	}
+
+	protected void createAttachmentFiles() throws IOException {
+		if (attachmentProbability <= 0)
+			return;
+		Random random = new Random(seed);
+		for (int size : ATTACHMENT_SIZES) {
+			File file = File.createTempFile("reesmo-load-", ".bin");
+			file.deleteOnExit();
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+				output.write(data);
+			}
+			attachmentFiles.add(file);
+		}
+	}
+
+	protected Map<String, Object> createReport(long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		long errorCount = 0;
+		Map<String, Long> errorCounts = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> entry : errors.entrySet()) {
+			errorCounts.put(entry.getKey(), entry.getValue().sum());
+			errorCount += entry.getValue().sum();
+		}
+		Map<String, Object> report = new LinkedHashMap<>();
+		report.put("threads", threads);
+		report.put("targetRate", rate);
+		report.put("acknowledged", acknowledged);
+		report.put("acceptedSeconds", acceptedNanos / 1e9);
+		report.put("elapsedSeconds", seconds);
+		report.put("results", latency.getCount());
+		report.put("succeeded", succeeded.sum());
+		report.put("errors", errorCount);
+		report.put("throughput", latency.getCount() / seconds);
+		report.put("attachmentBytes", attachmentBytes.sum());
+		Map<String, Object> latencies = new LinkedHashMap<>();
+		if (latency.getCount() > 0) {
+			latencies.put("min", latency.getMin());
+			latencies.put("mean", latency.getMean());
+			latencies.put("p50", latency.getPercentile(50));
+			latencies.put("p90", latency.getPercentile(90));
+			latencies.put("p99", latency.getPercentile(99));
+			latencies.put("p999", latency.getPercentile(99.9));
+			latencies.put("max", latency.getMax());
+		}
+		report.put("latencyMicros", latencies);
+		report.put("errorTypes", errorCounts);
+		if (admissionMetrics != null)
+			report.put("admission", admissionMetrics);
+		return report;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected void printTable(Map<String, Object> report, PrintStream out) {
+		for (Map.Entry<String, Object> entry : report.entrySet()) {
+			if (entry.getValue() instanceof Map) {
+				for (Map.Entry<String, Object> nested : ((Map<String, Object>) entry.getValue()).entrySet()) {
+					out.println(String.format("%-28s %s", entry.getKey() + "." + nested.getKey(), format(nested.getValue())));
+				}
+			} else {
+				out.println(String.format("%-28s %s", entry.getKey(), format(entry.getValue())));
+			}
+		}
+	}
+
+	private String format(Object value) {
+		if (value instanceof Double)
+			return String.format("%.2f", (Double) value);
+		return String.valueOf(value);
+	}
+
+}
@@ -0,0 +1,153 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.tool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import cz.etnetera.reesmo.writer.model.result.Result;
+import cz.etnetera.reesmo.writer.model.result.ResultBatch;
+
+/**
+ * Compares retained heap and serialization time of results kept as list of
+ * {@link Result} and as {@link ResultBatch}. Results are the same synthetic
+ * results as used by {@link LoadGenerator}.
+ *
+ * <pre>
+ * java -Xmx2g -cp ... cz.etnetera.reesmo.writer.tool.ResultBatchBenchmark --count 200000
+ * </pre>
+ */
+public class ResultBatchBenchmark {
+
+	protected int count = 200000;
+
+	protected long seed = 42;
+
+	public static void main(String[] args) throws Exception {
+		ResultBatchBenchmark benchmark = new ResultBatchBenchmark();
+		try {
+			benchmark.parseArguments(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printUsage(System.err);
+			System.exit(2);
+		}
+		benchmark.run(System.out);
+	}
+
+	protected static void printUsage(PrintStream out) {
+		out.println("Usage: ResultBatchBenchmark [options]");
+		out.println("  --count N            number of results (default 200000)");
+		out.println("  --seed N             random seed (default 42)");
+	}
+
+	protected void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if ("--help".equals(arg) || "-h".equals(arg)) {
+				printUsage(System.out);
+				System.exit(0);
+			}
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for " + arg);
+			String value = args[++i];
+			try {
+				switch (arg) {
+				case "--count":
+					count = Integer.parseInt(value);
+					break;
+				case "--seed":
+					seed = Long.parseLong(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value for " + arg + ": " + value);
+			}
+		}
+		if (count <= 0)
+			throw new IllegalArgumentException("Count must be positive");
+	}
+
+	public void run(PrintStream out) throws IOException {
+		LoadGenerator generator = new LoadGenerator();
+		generator.seed = seed;
+
+		long base = usedMemory();
+		List<Result> list = new ArrayList<>(count);
+		Random random = new Random(seed);
+		for (int i = 0; i < count; i++) {
+			list.add(generator.createResult(random, i));
+		}
+		long listMemory = usedMemory() - base;
+		long listNanos = System.nanoTime();
+		new ObjectMapper().writeValue(new NullOutputStream(), list);
+		listNanos = System.nanoTime() - listNanos;
+		list = null;
+
+		base = usedMemory();
+		ResultBatch batch = new ResultBatch(count);
+		random = new Random(seed);
+		for (int i = 0; i < count; i++) {
+			batch.add(generator.createResult(random, i));
+		}
+		long batchMemory = usedMemory() - base;
+		long batchNanos = System.nanoTime();
+		batch.writeJson(new NullOutputStream());
+		batchNanos = System.nanoTime() - batchNanos;
+
+		out.println(String.format("%-10s %14s %14s %14s", "", "bytes", "bytes/result", "json ms"));
+		out.println(String.format("%-10s %14d %14d %14d", "list", listMemory, listMemory / count, listNanos / 1000000));
+		out.println(String.format("%-10s %14d %14d %14d", "batch", batchMemory, batchMemory / count,
+				batchNanos / 1000000));
+		out.println("results " + count + ", dictionary " + batch.getDictionarySize() + " strings");
+	}
+
+	protected static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		// a few rounds so finalization and reference processing settle
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+
+	private static class NullOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+
+	}
+
+}
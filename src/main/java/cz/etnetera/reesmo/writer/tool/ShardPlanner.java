@@ -0,0 +1,166 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import cz.etnetera.reesmo.writer.stats.DurationHistory;
+import cz.etnetera.reesmo.writer.stats.DurationHistory.Estimate;
+import cz.etnetera.reesmo.writer.stats.DurationHistory.Shard;
+
+/**
+ * Splits tests into shards of balanced expected duration by history written
+ * with {@code reesmo.durationhistory}.
+ *
+ * <pre>
+ * java -cp ... cz.etnetera.reesmo.writer.tool.ShardPlanner \
+ *     --history node1.bin --history node2.bin --shards 4 --index 2 tests.txt
+ * </pre>
+ *
+ * Tests are read one per line as {@code suite#name} or suite name from
+ * given files or standard input. With {@code --index} tests of that shard
+ * are printed one per line, otherwise the whole plan is printed as JSON.
+ * Histories of nodes are merged, {@code --merge} writes the merged history,
+ * so it can be handed to the next run.
+ */
+public class ShardPlanner {
+
+	public static void main(String[] args) throws Exception {
+		List<File> histories = new ArrayList<>();
+		List<File> testFiles = new ArrayList<>();
+		int shards = 1;
+		Integer index = null;
+		Estimate estimate = Estimate.MEAN;
+		File mergeFile = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if ("--help".equals(arg) || "-h".equals(arg)) {
+					printUsage(System.out);
+					System.exit(0);
+				}
+				if (!arg.startsWith("--")) {
+					testFiles.add(new File(arg));
+					continue;
+				}
+				if (i + 1 >= args.length)
+					throw new IllegalArgumentException("Missing value for " + arg);
+				String value = args[++i];
+				switch (arg) {
+				case "--history":
+					histories.add(new File(value));
+					break;
+				case "--shards":
+					shards = Integer.parseInt(value);
+					break;
+				case "--index":
+					index = Integer.parseInt(value);
+					break;
+				case "--estimate":
+					estimate = Estimate.valueOfString(value);
+					break;
+				case "--merge":
+					mergeFile = new File(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+			if (shards < 1)
+				throw new IllegalArgumentException("Number of shards must be positive");
+			if (index != null && (index < 0 || index >= shards))
+				throw new IllegalArgumentException("Shard index must be from 0 to " + (shards - 1));
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid number: " + e.getMessage());
+			printUsage(System.err);
+			System.exit(2);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printUsage(System.err);
+			System.exit(2);
+		}
+		DurationHistory history = new DurationHistory();
+		for (File file : histories) {
+			history.merge(DurationHistory.load(file));
+		}
+		if (mergeFile != null) {
+			history.save(mergeFile);
+			if (testFiles.isEmpty() && index == null)
+				return;
+		}
+		List<Shard> plan = history.partition(readTests(testFiles), shards, estimate);
+		if (index != null) {
+			for (String test : plan.get(index).getTests()) {
+				System.out.println(test);
+			}
+			return;
+		}
+		List<Map<String, Object>> report = new ArrayList<>();
+		for (Shard shard : plan) {
+			Map<String, Object> item = new LinkedHashMap<>();
+			item.put("index", shard.getIndex());
+			item.put("expectedDuration", shard.getExpectedDuration());
+			item.put("tests", shard.getTests());
+			report.add(item);
+		}
+		System.out.println(new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValueAsString(report));
+	}
+
+	protected static void printUsage(PrintStream out) {
+		out.println("Usage: ShardPlanner [options] [TESTS_FILE...], tests are read from standard input without files");
+		out.println("  --history FILE       duration history, repeated histories are merged");
+		out.println("  --shards N           number of shards (default 1)");
+		out.println("  --index I            print tests of shard I (from 0) instead of JSON plan");
+		out.println("  --estimate E         mean or p90 (default mean)");
+		out.println("  --merge FILE         write merged history to file");
+	}
+
+	private static List<String> readTests(List<File> files) throws IOException {
+		List<String> tests = new ArrayList<>();
+		if (files.isEmpty()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				addTest(tests, line);
+			}
+		}
+		for (File file : files) {
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				addTest(tests, line);
+			}
+		}
+		return tests;
+	}
+
+	private static void addTest(List<String> tests, String line) {
+		line = line.trim();
+		if (!line.isEmpty() && !line.startsWith("#"))
+			tests.add(line);
+	}
+
+}
@@ -0,0 +1,96 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records phases as Flight Recorder events. It is loaded only when Flight
+ * Recorder is available.
+ */
+class JfrTracer implements WriterTrace.Tracer {
+
+	@Override
+	public WriterSpan begin(Phase phase, String resultName, String projectKey) {
+		PhaseEvent event = new PhaseEvent();
+		if (!event.isEnabled())
+			return WriterTrace.NOOP_SPAN;
+		event.phase = phase.name();
+		event.resultName = resultName;
+		event.projectKey = projectKey;
+		event.outcome = WriterSpan.OUTCOME_FAILURE;
+		event.begin();
+		return new JfrSpan(event);
+	}
+
+	@Name("cz.etnetera.reesmo.writer.Phase")
+	@Label("Reesmo Writer Phase")
+	@Description("Phase of storing result by Reesmo writer")
+	@Category({ "Reesmo", "Writer" })
+	static class PhaseEvent extends Event {
+
+		@Label("Phase")
+		String phase;
+
+		@Label("Result Name")
+		String resultName;
+
+		@Label("Project Key")
+		String projectKey;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Outcome")
+		String outcome;
+
+	}
+
+	private static class JfrSpan implements WriterSpan {
+
+		private final PhaseEvent event;
+
+		private JfrSpan(PhaseEvent event) {
+			this.event = event;
+		}
+
+		@Override
+		public WriterSpan bytes(long bytes) {
+			event.bytes = bytes;
+			return this;
+		}
+
+		@Override
+		public WriterSpan success() {
+			event.outcome = OUTCOME_SUCCESS;
+			return this;
+		}
+
+		@Override
+		public void close() {
+			event.end();
+			if (event.shouldCommit())
+				event.commit();
+		}
+
+	}
+
+}
@@ -0,0 +1,34 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.trace;
+
+/**
+ * Traced phase. It is finished by {@link #close()} and it is considered
+ * failed unless {@link #success()} was called before.
+ */
+public interface WriterSpan extends AutoCloseable {
+
+	public static final String OUTCOME_SUCCESS = "success";
+
+	public static final String OUTCOME_FAILURE = "failure";
+
+	WriterSpan bytes(long bytes);
+
+	WriterSpan success();
+
+	@Override
+	void close();
+
+}
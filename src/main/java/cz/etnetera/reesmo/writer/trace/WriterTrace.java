@@ -0,0 +1,105 @@
+/* Copyright 2016 Etnetera a.s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.etnetera.reesmo.writer.trace;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Traces phases of result write path. Phases are recorded as Java Flight
+ * Recorder events when running on JVM with Flight Recorder, otherwise
+ * tracing does nothing. Result name and project key of current thread are
+ * set by storage, so nested phases need not to know them.
+ */
+public final class WriterTrace {
+
+	protected static final String JFR_TRACER = "cz.etnetera.reesmo.writer.trace.JfrTracer";
+
+	static final WriterSpan NOOP_SPAN = new WriterSpan() {
+
+		@Override
+		public WriterSpan bytes(long bytes) {
+			return this;
+		}
+
+		@Override
+		public WriterSpan success() {
+			return this;
+		}
+
+		@Override
+		public void close() {
+		}
+
+	};
+
+	private static final ThreadLocal<String[]> CONTEXT = new ThreadLocal<>();
+
+	private static final Tracer TRACER = createTracer();
+
+	private WriterTrace() {
+	}
+
+	public static boolean isEnabled() {
+		return TRACER != null;
+	}
+
+	public static WriterSpan begin(Phase phase) {
+		String[] context = CONTEXT.get();
+		return context == null ? begin(phase, null, null) : begin(phase, context[0], context[1]);
+	}
+
+	public static WriterSpan begin(Phase phase, String resultName, String projectKey) {
+		if (TRACER == null)
+			return NOOP_SPAN;
+		return TRACER.begin(phase, resultName, projectKey);
+	}
+
+	/**
+	 * Set result name and project key used by phases of current thread.
+	 * 
+	 * @param resultName
+	 * @param projectKey
+	 */
+	public static void setContext(String resultName, String projectKey) {
+		if (TRACER != null)
+			CONTEXT.set(new String[] { resultName, projectKey });
+	}
+
+	public static void clearContext() {
+		if (TRACER != null)
+			CONTEXT.remove();
+	}
+
+	private static Tracer createTracer() {
+		try {
+			Class.forName("jdk.jfr.Event");
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+		try {
+			return (Tracer) Class.forName(JFR_TRACER).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			LoggerFactory.getLogger(WriterTrace.class).debug("Flight Recorder tracing is not available", e);
+			return null;
+		}
+	}
+
+	interface Tracer {
+
+		WriterSpan begin(Phase phase, String resultName, String projectKey);
+
+	}
+
+}